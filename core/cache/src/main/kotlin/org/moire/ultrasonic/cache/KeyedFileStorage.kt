@@ -0,0 +1,364 @@
+package org.moire.ultrasonic.cache
+
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.Serial
+import com.twitter.serial.stream.bytebuffer.ByteBufferSerial
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.TreeMap
+
+internal const val KEYED_STORAGE_DIR_NAME = "keyed_storage"
+internal const val VALUES_FILE_NAME = "values.dat"
+internal const val INDEX_FILE_NAME = "index.log"
+internal const val PAGE_SIZE = 4096
+
+private const val OP_PUT: Byte = 1
+private const val OP_REMOVE: Byte = 2
+
+// Values of at least this size are read through a memory mapping, smaller ones with a single read
+private const val MAP_THRESHOLD = 64 * 1024
+
+// The index log is compacted when it holds more than this many records per key, plus a constant
+private const val COMPACTION_FACTOR = 2
+private const val COMPACTION_SLACK = 64
+
+/**
+ * Stores values under string keys in a single page structured file, so that a value can be
+ * read or replaced without touching the others.
+ *
+ * Every value occupies a run of consecutive [PAGE_SIZE] pages in the values file. Pages of
+ * replaced and removed values are reused for new ones, and the file is truncated when its last
+ * pages are freed. The location of the values is kept in memory and persisted in an append
+ * only index log, which is replayed when the storage is first used and compacted when it grows
+ * too large.
+ * A value is only referenced by the index after it has been completely written, so a crash
+ * leaves either the old or the new value in place.
+ *
+ * Each value carries the version of its format and an expiry time. Values with another version
+ * or which have expired are treated as absent.
+ *
+ * [serverId] is currently active server, the values of different servers are stored separately.
+ */
+class KeyedFileStorage(
+    private val directories: Directories,
+    private val serverId: String,
+    private val debug: Boolean = false
+) {
+    private val serializationContext = object : SerializationContext {
+        override fun isDebug(): Boolean = debug
+        override fun isRelease(): Boolean = !debug
+    }
+
+    private val serializer: Serial = ByteBufferSerial(serializationContext)
+
+    private val entries = HashMap<String, Entry>()
+    // Free page runs, first page to page count
+    private val freePages = TreeMap<Int, Int>()
+    private var pageCount = 0
+    private var indexRecords = 0
+    private var loaded = false
+
+    private data class Entry(
+        val firstPage: Int,
+        val pageCount: Int,
+        val length: Int,
+        val version: Int,
+        val expires: Long
+    ) {
+        fun isExpired(now: Long) = now >= expires
+    }
+
+    /**
+     * Stores given [objectToStore] using [key], replacing any previous value.
+     * The value will be returned by [load] for [ttlMillis] milliseconds,
+     * if asked for the same [version].
+     */
+    @Synchronized
+    fun <T> store(
+        key: String,
+        objectToStore: T,
+        objectSerializer: DomainEntitySerializer<T>,
+        version: Int = 0,
+        ttlMillis: Long = Long.MAX_VALUE
+    ) {
+        ensureLoaded()
+        val data = serializer.toByteArray(objectToStore, objectSerializer)
+        val pages = pagesFor(data.size)
+        val firstPage = allocate(pages)
+
+        RandomAccessFile(getValuesFile(), "rw").use { file ->
+            writeFully(file.channel, ByteBuffer.wrap(data), firstPage.toLong() * PAGE_SIZE)
+        }
+
+        val now = System.currentTimeMillis()
+        val expires = if (ttlMillis >= Long.MAX_VALUE - now) Long.MAX_VALUE else now + ttlMillis
+        val entry = Entry(firstPage, pages, data.size, version, expires)
+        appendToIndex(OP_PUT, key, entry)
+
+        entries.put(key, entry)?.let { free(it.firstPage, it.pageCount) }
+        compactIfNeeded()
+    }
+
+    /**
+     * Loads the value stored with [key] using [objectDeserializer] deserializer.
+     * Returns null if there is no such value, or if it is of another [version] or has expired.
+     */
+    @Synchronized
+    fun <T> load(
+        key: String,
+        objectDeserializer: DomainEntitySerializer<T>,
+        version: Int = 0
+    ): T? {
+        ensureLoaded()
+        val entry = entries[key] ?: return null
+
+        if (entry.version != version || entry.isExpired(System.currentTimeMillis())) {
+            remove(key)
+            return null
+        }
+
+        return try {
+            serializer.fromByteArray(readValue(entry), objectDeserializer)
+        } catch (e: Exception) {
+            // The value can't be read back, it is of no use anymore
+            remove(key)
+            null
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds when the value stored with [key] expires,
+     * or 0 if there is no such value.
+     */
+    @Synchronized
+    fun getExpiryTime(key: String): Long {
+        ensureLoaded()
+        return entries[key]?.expires ?: 0
+    }
+
+    /**
+     * Removes the value stored with [key], if any.
+     */
+    @Synchronized
+    fun remove(key: String) {
+        ensureLoaded()
+        val entry = entries.remove(key) ?: return
+        appendToIndex(OP_REMOVE, key, null)
+        free(entry.firstPage, entry.pageCount)
+        compactIfNeeded()
+    }
+
+    /**
+     * Removes the values stored with a key starting with [prefix], so users of a shared storage
+     * can drop their own values without touching the others.
+     */
+    @Synchronized
+    fun removeAll(prefix: String) {
+        ensureLoaded()
+        entries.keys.filter { it.startsWith(prefix) }.forEach { remove(it) }
+    }
+
+    /**
+     * Removes all stored values.
+     */
+    @Synchronized
+    fun clearAll() {
+        getStorageDir().listFiles()?.forEach { it.delete() }
+        entries.clear()
+        freePages.clear()
+        pageCount = 0
+        indexRecords = 0
+        loaded = true
+    }
+
+    private fun readValue(entry: Entry): ByteArray {
+        val data = ByteArray(entry.length)
+        val position = entry.firstPage.toLong() * PAGE_SIZE
+
+        RandomAccessFile(getValuesFile(), "r").use { file ->
+            val channel = file.channel
+            if (entry.length >= MAP_THRESHOLD) {
+                channel.map(FileChannel.MapMode.READ_ONLY, position, entry.length.toLong())
+                    .get(data)
+            } else {
+                val buffer = ByteBuffer.wrap(data)
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) throw EOFException()
+                }
+            }
+        }
+
+        return data
+    }
+
+    private fun pagesFor(length: Int) = maxOf((length + PAGE_SIZE - 1) / PAGE_SIZE, 1)
+
+    /**
+     * Returns the first page of a free run of [pages] pages, the first one that fits or a new one
+     * at the end of the file.
+     */
+    private fun allocate(pages: Int): Int {
+        val run = freePages.entries.firstOrNull { it.value >= pages }
+            ?: return pageCount.also { pageCount += pages }
+
+        // Removing a node may recycle the entry, read it first
+        val start = run.key
+        val count = run.value
+        freePages.remove(start)
+        if (count > pages) freePages[start + pages] = count - pages
+        return start
+    }
+
+    /**
+     * Returns the pages to the free runs, merging them with the adjacent runs.
+     */
+    private fun free(firstPage: Int, pages: Int) {
+        var start = firstPage
+        var count = pages
+
+        val previous = freePages.floorEntry(start - 1)
+        if (previous != null && previous.key + previous.value == start) {
+            freePages.remove(previous.key)
+            start = previous.key
+            count += previous.value
+        }
+
+        val next = freePages[start + count]
+        if (next != null) {
+            freePages.remove(start + count)
+            count += next
+        }
+
+        if (start + count == pageCount) {
+            // The run is at the end of the file, give the space back
+            pageCount = start
+            RandomAccessFile(getValuesFile(), "rw").use { it.setLength(start.toLong() * PAGE_SIZE) }
+        } else {
+            freePages[start] = count
+        }
+    }
+
+    private fun ensureLoaded() {
+        if (loaded) return
+        loaded = true
+
+        val indexFile = getIndexFile()
+        if (indexFile.exists()) {
+            val data = indexFile.readBytes()
+            val input = DataInputStream(ByteArrayInputStream(data))
+            var validLength = 0
+
+            // A record cut short by a crash ends the log, it is dropped with the rest of the file
+            try {
+                while (validLength < data.size) {
+                    val op = input.readByte()
+                    val key = input.readUTF()
+                    if (op == OP_PUT) {
+                        entries[key] = Entry(
+                            input.readInt(), input.readInt(), input.readInt(),
+                            input.readInt(), input.readLong()
+                        )
+                    } else {
+                        entries.remove(key)
+                    }
+                    indexRecords++
+                    validLength = data.size - input.available()
+                }
+            } catch (e: EOFException) {
+                RandomAccessFile(indexFile, "rw").use { it.setLength(validLength.toLong()) }
+            }
+        }
+
+        // Drop the expired values and the values which don't fit in the file anymore
+        val now = System.currentTimeMillis()
+        val valuesLength = getValuesFile().length()
+        val dropped = entries.filterValues {
+            it.isExpired(now) || (it.firstPage.toLong() * PAGE_SIZE + it.length > valuesLength)
+        }.keys
+        dropped.forEach {
+            entries.remove(it)
+            appendToIndex(OP_REMOVE, it, null)
+        }
+
+        // Every page which isn't used by a value is free
+        pageCount = ((valuesLength + PAGE_SIZE - 1) / PAGE_SIZE).toInt()
+        var page = 0
+        for (entry in entries.values.sortedBy { it.firstPage }) {
+            if (entry.firstPage > page) freePages[page] = entry.firstPage - page
+            page = maxOf(page, entry.firstPage + entry.pageCount)
+        }
+        // The last value doesn't necessarily fill its last page
+        pageCount = maxOf(pageCount, page)
+        if (page < pageCount) free(page, pageCount - page)
+
+        compactIfNeeded()
+    }
+
+    private fun appendToIndex(op: Byte, key: String, entry: Entry?) {
+        FileOutputStream(getIndexFile(), true).use {
+            writeRecord(DataOutputStream(it), op, key, entry)
+        }
+        indexRecords++
+    }
+
+    private fun writeRecord(output: DataOutputStream, op: Byte, key: String, entry: Entry?) {
+        val record = ByteArrayOutputStream()
+        DataOutputStream(record).apply {
+            writeByte(op.toInt())
+            writeUTF(key)
+            if (entry != null) {
+                writeInt(entry.firstPage)
+                writeInt(entry.pageCount)
+                writeInt(entry.length)
+                writeInt(entry.version)
+                writeLong(entry.expires)
+            }
+        }
+        // Written at once, so a crash can only cut the last record
+        output.write(record.toByteArray())
+    }
+
+    private fun compactIfNeeded() {
+        if (indexRecords <= COMPACTION_FACTOR * entries.size + COMPACTION_SLACK) return
+
+        val indexFile = getIndexFile()
+        val tmpFile = File(indexFile.path + ".tmp")
+        FileOutputStream(tmpFile).use { stream ->
+            val output = DataOutputStream(stream.buffered())
+            entries.forEach { (key, entry) -> writeRecord(output, OP_PUT, key, entry) }
+            output.flush()
+        }
+
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete()
+            throw IOException("Failed to replace $indexFile")
+        }
+        indexRecords = entries.size
+    }
+
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position())
+        }
+    }
+
+    private fun getValuesFile() = File(getStorageDir(), VALUES_FILE_NAME)
+
+    private fun getIndexFile() = File(getStorageDir(), INDEX_FILE_NAME)
+
+    private fun getStorageDir(): File {
+        val mainDir = File(directories.getInternalDataDir(), KEYED_STORAGE_DIR_NAME)
+        val serverDir = File(mainDir, serverId)
+        if (!serverDir.exists()) serverDir.mkdirs()
+        return serverDir
+    }
+}
@@ -0,0 +1,356 @@
+package org.moire.ultrasonic.cache
+
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.CoreSerializers
+import java.util.LinkedList
+import java.util.Random
+import org.moire.ultrasonic.cache.serializers.getMusicDirectoryEntrySerializer
+import org.moire.ultrasonic.domain.MusicDirectory
+
+internal const val CATALOG_DIRECTORY_KEY_PREFIX = "catalogDirectory:"
+internal const val CATALOG_COMPLETE_KEY_PREFIX = "catalogComplete:"
+internal const val CATALOG_MODIFIED_KEY_PREFIX = "catalogModified:"
+private const val OFFLINE_CATALOG_VERSION = 1
+
+// Random songs are drawn this many times per requested song before the songs are scanned instead
+private const val MAX_DRAWS_PER_SONG = 4
+
+/**
+ * Catalog of the downloaded files, with the metadata read from their tags, so browsing,
+ * searching and shuffling offline don't have to walk the file system and read the tags again.
+ *
+ * The catalog holds the listings of the directories which have been read, identified by their
+ * path. Every listing is persisted in [storage] by itself as soon as it changes, so cataloging a
+ * single download only rewrites the listing of its album. The modification time of a directory
+ * when it was listed is kept, so changes made outside of the app can be detected.
+ * A root is complete when the whole tree below it has been listed, only then are the queries
+ * over all files answered.
+ *
+ * The songs below the root which random songs were last picked from are kept in an array, which
+ * is updated along with the listings, so random songs are picked in time proportional to their
+ * number rather than to the size of the library.
+ */
+class OfflineCatalog(private val storage: KeyedFileStorage) {
+    private val directories = HashMap<String, LinkedHashMap<String, MusicDirectory.Entry>>()
+    private val completeRoots = HashMap<String, Boolean>()
+    private val modifiedTimes = HashMap<String, Long?>()
+
+    private var songIndexRoot: String? = null
+    private val songIndexDirectories = HashSet<String>()
+    private val songs = ArrayList<MusicDirectory.Entry>()
+    private val songPositions = HashMap<String, Int>()
+
+    /**
+     * Returns the entries of the directory with [directoryId], or null if it isn't listed.
+     */
+    @Synchronized
+    fun getChildren(directoryId: String): List<MusicDirectory.Entry>? =
+        getListing(directoryId)?.values?.toList()
+
+    /**
+     * Returns the entry with [id] from the listing of [parentId], if it is cataloged.
+     */
+    @Synchronized
+    fun get(id: String, parentId: String): MusicDirectory.Entry? = getListing(parentId)?.get(id)
+
+    /**
+     * Returns the modification time the directory with [directoryId] had when it was listed,
+     * or null if it isn't known.
+     */
+    @Synchronized
+    fun getModified(directoryId: String): Long? {
+        if (!modifiedTimes.containsKey(directoryId)) {
+            modifiedTimes[directoryId] = storage.load(
+                modifiedKey(directoryId), CoreSerializers.LONG, OFFLINE_CATALOG_VERSION
+            )
+        }
+        return modifiedTimes[directoryId]
+    }
+
+    /**
+     * Replaces the listing of the directory with [directoryId], which was [modified] at the time
+     * it was listed.
+     * The directories which are not in the new listing are forgotten with everything below them.
+     */
+    @Synchronized
+    @JvmOverloads
+    fun setChildren(
+        directoryId: String,
+        children: List<MusicDirectory.Entry>,
+        modified: Long? = null
+    ) {
+        val listing = LinkedHashMap<String, MusicDirectory.Entry>()
+        children.forEach { child -> child.id?.let { listing[it] = child } }
+
+        getListing(directoryId)?.values?.forEach { old ->
+            val id = old.id ?: return@forEach
+            if (old.isDirectory && !listing.containsKey(id)) forget(id)
+            if (!old.isDirectory) removeSong(id)
+        }
+
+        directories[directoryId] = listing
+        persist(directoryId, listing)
+        setModified(directoryId, modified)
+        if (songIndexDirectories.contains(directoryId)) listing.values.forEach { indexSong(it) }
+    }
+
+    /**
+     * Adds the entry to the listing of its parent, replacing the one with the same id.
+     * Nothing is done if the parent isn't listed, the entry is cataloged when it is.
+     * A directory which wasn't in the listing of its parent is new, so it is listed as empty.
+     */
+    @Synchronized
+    fun put(entry: MusicDirectory.Entry) {
+        val id = entry.id ?: return
+        val parentId = entry.parent ?: return
+        val listing = getListing(parentId) ?: return
+
+        val isNew = listing.put(id, entry) == null
+        persist(parentId, listing)
+        if (songIndexDirectories.contains(parentId)) indexSong(entry)
+
+        if (isNew && entry.isDirectory && getListing(id) == null) {
+            setChildren(id, emptyList())
+        }
+    }
+
+    /**
+     * Removes the entry with [id] from the listing of [parentId], and everything below it.
+     */
+    @Synchronized
+    fun remove(id: String, parentId: String) {
+        val listing = getListing(parentId)
+        if (listing?.remove(id) != null) persist(parentId, listing)
+        removeSong(id)
+        forget(id)
+    }
+
+    @Synchronized
+    fun isComplete(rootId: String): Boolean = completeRoots.getOrPut(rootId) {
+        storage.load(completeKey(rootId), CoreSerializers.LONG, OFFLINE_CATALOG_VERSION) != null
+    }
+
+    /**
+     * Marks the tree below [rootId] as completely listed.
+     */
+    @Synchronized
+    fun setComplete(rootId: String) {
+        completeRoots[rootId] = true
+        storage.store(
+            completeKey(rootId), System.currentTimeMillis(), CoreSerializers.LONG,
+            OFFLINE_CATALOG_VERSION
+        )
+    }
+
+    /**
+     * Returns all entries below [rootId], parents before their children, or null if the tree
+     * isn't completely listed.
+     */
+    @Synchronized
+    fun getDescendants(rootId: String): List<MusicDirectory.Entry>? {
+        if (!isComplete(rootId)) return null
+
+        val result = ArrayList<MusicDirectory.Entry>()
+        val pending = LinkedList<String>()
+        pending.add(rootId)
+
+        while (pending.isNotEmpty()) {
+            val listing = getListing(pending.removeFirst())
+            if (listing == null) {
+                // A listing was lost, or a directory was added by a rescan of its parent only
+                setIncomplete(rootId)
+                return null
+            }
+
+            for (child in listing.values) {
+                result.add(child)
+                val id = child.id
+                if (child.isDirectory && id != null) pending.add(id)
+            }
+        }
+
+        return result
+    }
+
+    /**
+     * Returns up to [count] different songs below [rootId], picked uniformly at random,
+     * or null if the tree isn't completely listed.
+     * The songs with [excludedIds] are only picked if there are not enough others.
+     */
+    @Synchronized
+    fun getRandomSongs(
+        rootId: String,
+        count: Int,
+        random: Random,
+        excludedIds: Set<String> = emptySet()
+    ): List<MusicDirectory.Entry>? {
+        if (songIndexRoot != rootId && !buildSongIndex(rootId)) return null
+
+        val result = ArrayList<MusicDirectory.Entry>(count)
+        val picked = HashSet<String>()
+
+        // Drawing is cheap as long as most songs can be picked
+        var draws = count * MAX_DRAWS_PER_SONG
+        while (result.size < count && draws-- > 0 && songs.isNotEmpty()) {
+            val song = songs[random.nextInt(songs.size)]
+            val id = song.id ?: continue
+            if (!excludedIds.contains(id) && picked.add(id)) result.add(song)
+        }
+
+        // Otherwise the songs which are left are sampled in a single pass
+        if (result.size < count) {
+            sampleSongs(count - result.size, random, result) {
+                !picked.contains(it) && !excludedIds.contains(it)
+            }
+            result.forEach { song -> song.id?.let { picked.add(it) } }
+            sampleSongs(count - result.size, random, result) { !picked.contains(it) }
+        }
+
+        result.shuffle(random)
+        return result
+    }
+
+    @Synchronized
+    fun clear() {
+        directories.clear()
+        completeRoots.clear()
+        modifiedTimes.clear()
+        clearSongIndex()
+        // The storage is shared with the offline search index
+        storage.removeAll(CATALOG_DIRECTORY_KEY_PREFIX)
+        storage.removeAll(CATALOG_COMPLETE_KEY_PREFIX)
+        storage.removeAll(CATALOG_MODIFIED_KEY_PREFIX)
+    }
+
+    private fun setIncomplete(rootId: String) {
+        completeRoots[rootId] = false
+        storage.remove(completeKey(rootId))
+        if (songIndexRoot == rootId) clearSongIndex()
+    }
+
+    private fun setModified(directoryId: String, modified: Long?) {
+        modifiedTimes[directoryId] = modified
+        if (modified != null) {
+            storage.store(
+                modifiedKey(directoryId), modified, CoreSerializers.LONG, OFFLINE_CATALOG_VERSION
+            )
+        } else {
+            storage.remove(modifiedKey(directoryId))
+        }
+    }
+
+    private fun buildSongIndex(rootId: String): Boolean {
+        val descendants = getDescendants(rootId) ?: return false
+
+        clearSongIndex()
+        songIndexRoot = rootId
+        songIndexDirectories.add(rootId)
+        descendants.forEach { indexSong(it) }
+        return true
+    }
+
+    private fun clearSongIndex() {
+        songIndexRoot = null
+        songIndexDirectories.clear()
+        songs.clear()
+        songPositions.clear()
+    }
+
+    private fun indexSong(entry: MusicDirectory.Entry) {
+        val id = entry.id ?: return
+
+        if (entry.isDirectory) {
+            songIndexDirectories.add(id)
+            return
+        }
+
+        val position = songPositions[id]
+        if (position != null) {
+            songs[position] = entry
+        } else {
+            songPositions[id] = songs.size
+            songs.add(entry)
+        }
+    }
+
+    private fun removeSong(id: String) {
+        val position = songPositions.remove(id) ?: return
+        val last = songs.removeAt(songs.size - 1)
+
+        // The last song fills the gap
+        if (position < songs.size) {
+            songs[position] = last
+            last.id?.let { songPositions[it] = position }
+        }
+    }
+
+    // Reservoir sampling of the songs whose id is accepted
+    private fun sampleSongs(
+        count: Int,
+        random: Random,
+        result: MutableList<MusicDirectory.Entry>,
+        accept: (String) -> Boolean
+    ) {
+        if (count <= 0) return
+
+        val sample = ArrayList<MusicDirectory.Entry>(count)
+        var seen = 0
+
+        for (song in songs) {
+            val id = song.id ?: continue
+            if (!accept(id)) continue
+
+            seen++
+            if (sample.size < count) {
+                sample.add(song)
+            } else {
+                val index = random.nextInt(seen)
+                if (index < count) sample[index] = song
+            }
+        }
+
+        result.addAll(sample)
+    }
+
+    private fun forget(directoryId: String) {
+        val listing = getListing(directoryId) ?: return
+
+        listing.values.forEach { child ->
+            val id = child.id ?: return@forEach
+            if (child.isDirectory) forget(id) else removeSong(id)
+        }
+
+        directories.remove(directoryId)
+        songIndexDirectories.remove(directoryId)
+        modifiedTimes.remove(directoryId)
+        storage.remove(directoryKey(directoryId))
+        storage.remove(modifiedKey(directoryId))
+    }
+
+    private fun getListing(directoryId: String): LinkedHashMap<String, MusicDirectory.Entry>? {
+        directories[directoryId]?.let { return it }
+
+        val children = storage.load(
+            directoryKey(directoryId), entryListSerializer, OFFLINE_CATALOG_VERSION
+        ) ?: return null
+
+        val listing = LinkedHashMap<String, MusicDirectory.Entry>()
+        children.forEach { child -> child.id?.let { listing[it] = child } }
+        directories[directoryId] = listing
+        return listing
+    }
+
+    private fun persist(directoryId: String, listing: Map<String, MusicDirectory.Entry>) {
+        storage.store(
+            directoryKey(directoryId), listing.values.toList(), entryListSerializer,
+            OFFLINE_CATALOG_VERSION
+        )
+    }
+
+    private fun directoryKey(directoryId: String) = "$CATALOG_DIRECTORY_KEY_PREFIX$directoryId"
+    private fun completeKey(rootId: String) = "$CATALOG_COMPLETE_KEY_PREFIX$rootId"
+    private fun modifiedKey(directoryId: String) = "$CATALOG_MODIFIED_KEY_PREFIX$directoryId"
+
+    private val entryListSerializer get() =
+        CollectionSerializers.getListSerializer(getMusicDirectoryEntrySerializer())
+}
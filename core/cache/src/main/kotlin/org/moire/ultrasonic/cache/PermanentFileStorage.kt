@@ -5,6 +5,7 @@ import com.twitter.serial.serializer.Serializer
 import com.twitter.serial.stream.Serial
 import com.twitter.serial.stream.bytebuffer.ByteBufferSerial
 import java.io.File
+import java.io.IOException
 
 typealias DomainEntitySerializer<T> = Serializer<T>
 
@@ -32,6 +33,9 @@ class PermanentFileStorage(
 
     /**
      * Stores given [objectToStore] using [name] as a key and [objectSerializer] as serializer.
+     *
+     * The object is written to a temporary file which then replaces the stored one, so a
+     * concurrent [load] reads either the old or the new object, never a partly written one.
      */
     fun <T> store(
         name: String,
@@ -39,8 +43,13 @@ class PermanentFileStorage(
         objectSerializer: DomainEntitySerializer<T>
     ) {
         val storeFile = getFile(name)
-        if (!storeFile.exists()) storeFile.createNewFile()
-        storeFile.writeBytes(serializer.toByteArray(objectToStore, objectSerializer))
+        val tmpFile = File.createTempFile(storeFile.name, ".tmp", storeFile.parentFile)
+        try {
+            tmpFile.writeBytes(serializer.toByteArray(objectToStore, objectSerializer))
+            if (!tmpFile.renameTo(storeFile)) throw IOException("Failed to replace $storeFile")
+        } finally {
+            tmpFile.delete()
+        }
     }
 
     /**
@@ -56,6 +65,19 @@ class PermanentFileStorage(
         return serializer.fromByteArray(storeFile.readBytes(), objectDeserializer)
     }
 
+    /**
+     * Returns the time the object with [name] key was stored or [touch]ed at, in milliseconds
+     * since the epoch, or 0 if it isn't stored.
+     */
+    fun getStoreTime(name: String): Long = getFile(name).lastModified()
+
+    /**
+     * Marks the object with [name] key as up to date, without rewriting it.
+     */
+    fun touch(name: String) {
+        getFile(name).setLastModified(System.currentTimeMillis())
+    }
+
     /**
      * Clear all files in storage.
      */
@@ -0,0 +1,329 @@
+package org.moire.ultrasonic.cache
+
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import java.text.Normalizer
+import java.util.Locale
+import java.util.TreeMap
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import org.moire.ultrasonic.cache.serializers.getArtistListSerializer
+import org.moire.ultrasonic.cache.serializers.getMusicDirectoryEntrySerializer
+import org.moire.ultrasonic.domain.Artist
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.SearchCriteria
+import org.moire.ultrasonic.domain.SearchResult
+
+internal const val SEARCH_INDEX_KEY = "searchIndex"
+private const val SEARCH_INDEX_VERSION = 1
+
+// The index is persisted at most this often while it changes
+internal const val SEARCH_INDEX_SAVE_INTERVAL = 5 * 60 * 1000L
+
+// A query token matching a token of the name scores higher than one matching the album or artist
+private const val EXACT_NAME_SCORE = 4
+private const val PREFIX_NAME_SCORE = 3
+private const val EXACT_CONTEXT_SCORE = 2
+private const val PREFIX_CONTEXT_SCORE = 1
+
+private val TOKEN_SEPARATOR = Regex("[^\\p{L}\\p{N}]+")
+private val COMBINING_MARKS = Regex("\\p{Mn}+")
+
+// Shared by all indexes, so the snapshots of an index are written in the order they were taken
+private val saveExecutor: Executor = Executors.newSingleThreadExecutor { runnable ->
+    Thread(runnable, "SearchIndexSaver").apply { isDaemon = true }
+}
+
+/**
+ * In memory inverted index of the artists, albums and songs seen in the responses of the
+ * server, or found on the device, which answers searches without a server round trip.
+ *
+ * Names are split into tokens which are matched case and diacritic insensitively, and every
+ * query token matches the tokens it is a prefix of. An item matches a query if all query tokens
+ * match a token of its name, album or artist. The items are ranked by how well they match.
+ *
+ * The index is persisted in [storage], if given, when it has changed but at most once per
+ * [SEARCH_INDEX_SAVE_INTERVAL], and when [save] is called. The snapshots are written by
+ * [executor], so the changes made since the last snapshot are lost if the process dies before
+ * the next one is written; the users call [save] when the app goes to the background.
+ */
+class SearchIndex(
+    private val storage: KeyedFileStorage?,
+    private val executor: Executor = saveExecutor,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private class Document(
+        val artist: Artist?,
+        val entry: MusicDirectory.Entry?,
+        val nameTokens: List<String>,
+        val contextTokens: List<String>
+    ) {
+        val name get() = artist?.name ?: entry?.title ?: ""
+    }
+
+    private class Snapshot(val artists: List<Artist>, val entries: List<MusicDirectory.Entry>)
+
+    private val documents = HashMap<Int, Document>()
+    private val documentIds = HashMap<String, Int>()
+    private val postings = TreeMap<String, MutableSet<Int>>()
+    private var nextId = 0
+    private var loaded = false
+    private var dirty = false
+    private var lastSave = 0L
+
+    /**
+     * Adds the artists to the index, replacing the ones with the same id.
+     */
+    @Synchronized
+    fun addArtists(artists: Collection<Artist>) {
+        ensureLoaded()
+        artists.forEach { putArtist(it) }
+        saveIfDue()
+    }
+
+    /**
+     * Adds the albums and songs to the index, replacing the ones with the same id.
+     * Videos are not indexed.
+     */
+    @Synchronized
+    fun addEntries(entries: Collection<MusicDirectory.Entry>) {
+        ensureLoaded()
+        entries.forEach { putEntry(it) }
+        saveIfDue()
+    }
+
+    /**
+     * Removes the artist, album or song with [id] from the index.
+     */
+    @Synchronized
+    fun remove(id: String) {
+        ensureLoaded()
+        removeDocument(artistKey(id))
+        removeDocument(albumKey(id))
+        removeDocument(songKey(id))
+        saveIfDue()
+    }
+
+    @Synchronized
+    fun isEmpty(): Boolean {
+        ensureLoaded()
+        return documents.isEmpty()
+    }
+
+    @Synchronized
+    fun clear() {
+        documents.clear()
+        documentIds.clear()
+        postings.clear()
+        loaded = true
+        dirty = true
+    }
+
+    /**
+     * Returns the artists, albums and songs matching the query of [criteria], the best
+     * matches first, at most as many as the [criteria] asks for.
+     * The closeness of the returned items is their score.
+     */
+    @Synchronized
+    fun search(criteria: SearchCriteria): SearchResult {
+        ensureLoaded()
+        val queryTokens = tokenize(criteria.query).distinct()
+        if (queryTokens.isEmpty()) return SearchResult(emptyList(), emptyList(), emptyList())
+
+        // The longest tokens are the most selective, they narrow the candidates down first
+        var candidates: MutableSet<Int>? = null
+        for (token in queryTokens.sortedByDescending { it.length }) {
+            val matching = HashSet<Int>()
+            getPrefixPostings(token).forEach { matching.addAll(it) }
+            candidates = candidates?.apply { retainAll(matching) } ?: matching
+            if (candidates.isEmpty()) break
+        }
+
+        val artists = ArrayList<Artist>()
+        val albums = ArrayList<MusicDirectory.Entry>()
+        val songs = ArrayList<MusicDirectory.Entry>()
+
+        val ranked = candidates.orEmpty()
+            .map { documents.getValue(it) }
+            .map { it to score(it, queryTokens) }
+            .sortedWith(compareBy({ -it.second }, { it.first.name.toLowerCase(Locale.ROOT) }))
+
+        for ((document, score) in ranked) {
+            val artist = document.artist
+            val entry = document.entry
+            when {
+                artist != null ->
+                    if (artists.size < criteria.artistCount) {
+                        artists.add(artist.copy(closeness = score))
+                    }
+                entry != null && entry.isDirectory ->
+                    if (albums.size < criteria.albumCount) {
+                        albums.add(entry.copy(closeness = score))
+                    }
+                entry != null ->
+                    if (songs.size < criteria.songCount) songs.add(entry.copy(closeness = score))
+            }
+        }
+
+        return SearchResult(artists, albums, songs)
+    }
+
+    /**
+     * Persists the index in the background if it has changed.
+     * Only the items are collected by the caller, they are serialized by [executor].
+     */
+    @Synchronized
+    fun save() {
+        if (!dirty || storage == null) return
+
+        val snapshot = Snapshot(
+            documents.values.mapNotNull { it.artist }, documents.values.mapNotNull { it.entry }
+        )
+        dirty = false
+        lastSave = clock()
+
+        // Submitted while holding the lock, so an older snapshot can't overwrite a newer one
+        executor.execute {
+            try {
+                storage.store(SEARCH_INDEX_KEY, snapshot, snapshotSerializer, SEARCH_INDEX_VERSION)
+            } catch (e: Exception) {
+                // Written again by the next save
+                synchronized(this) { dirty = true }
+            }
+        }
+    }
+
+    private fun saveIfDue() {
+        if (dirty && clock() - lastSave >= SEARCH_INDEX_SAVE_INTERVAL) save()
+    }
+
+    private fun ensureLoaded() {
+        if (loaded) return
+        loaded = true
+
+        val snapshot = storage?.load(SEARCH_INDEX_KEY, snapshotSerializer, SEARCH_INDEX_VERSION)
+            ?: return
+        snapshot.artists.forEach { putArtist(it) }
+        snapshot.entries.forEach { putEntry(it) }
+        dirty = false
+        lastSave = clock()
+    }
+
+    private fun putArtist(artist: Artist) {
+        val id = artist.id ?: return
+        val name = artist.name ?: return
+        put(artistKey(id), Document(artist, null, tokenize(name), emptyList()))
+    }
+
+    private fun putEntry(entry: MusicDirectory.Entry) {
+        val id = entry.id ?: return
+        if (entry.isVideo) return
+
+        val document = if (entry.isDirectory) {
+            val name = entry.title ?: entry.album ?: return
+            Document(null, entry, tokenize(name), tokenize(entry.artist))
+        } else {
+            val name = entry.title ?: return
+            Document(null, entry, tokenize(name), tokenize(entry.album) + tokenize(entry.artist))
+        }
+
+        put(if (entry.isDirectory) albumKey(id) else songKey(id), document)
+    }
+
+    private fun put(key: String, document: Document) {
+        val id = documentIds[key]?.also { removePostings(it) } ?: nextId++
+        documentIds[key] = id
+        documents[id] = document
+        (document.nameTokens + document.contextTokens).forEach {
+            postings.getOrPut(it) { HashSet() }.add(id)
+        }
+        dirty = true
+    }
+
+    private fun removeDocument(key: String) {
+        val id = documentIds.remove(key) ?: return
+        removePostings(id)
+        documents.remove(id)
+        dirty = true
+    }
+
+    private fun removePostings(id: Int) {
+        val document = documents[id] ?: return
+        (document.nameTokens + document.contextTokens).forEach { token ->
+            val ids = postings[token] ?: return@forEach
+            ids.remove(id)
+            if (ids.isEmpty()) postings.remove(token)
+        }
+    }
+
+    private fun getPrefixPostings(prefix: String): Collection<Set<Int>> =
+        postings.subMap(prefix, true, prefix + Char.MAX_VALUE, false).values
+
+    private fun score(document: Document, queryTokens: List<String>): Int =
+        queryTokens.sumBy { token ->
+            maxOf(
+                score(document.nameTokens, token, EXACT_NAME_SCORE, PREFIX_NAME_SCORE),
+                score(document.contextTokens, token, EXACT_CONTEXT_SCORE, PREFIX_CONTEXT_SCORE)
+            )
+        }
+
+    private fun score(tokens: List<String>, queryToken: String, exact: Int, prefix: Int): Int =
+        when {
+            tokens.contains(queryToken) -> exact
+            tokens.any { it.startsWith(queryToken) } -> prefix
+            else -> 0
+        }
+
+    private fun artistKey(id: String) = "artist:$id"
+    private fun albumKey(id: String) = "album:$id"
+    private fun songKey(id: String) = "song:$id"
+
+    companion object {
+        /**
+         * Splits [text] into lower case tokens without diacritics.
+         */
+        @JvmStatic
+        fun tokenize(text: String?): List<String> {
+            if (text.isNullOrEmpty()) return emptyList()
+
+            val normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replace(COMBINING_MARKS, "")
+                .toLowerCase(Locale.ROOT)
+            return normalized.split(TOKEN_SEPARATOR).filter { it.isNotEmpty() }
+        }
+
+        private val snapshotSerializer get() = object : ObjectSerializer<Snapshot>(
+            SEARCH_INDEX_VERSION
+        ) {
+            override fun serializeObject(
+                context: SerializationContext,
+                output: SerializerOutput<out SerializerOutput<*>>,
+                item: Snapshot
+            ) {
+                val entryListSerializer =
+                    CollectionSerializers.getListSerializer(getMusicDirectoryEntrySerializer())
+                output.writeObject<List<Artist>>(context, item.artists, getArtistListSerializer())
+                    .writeObject<List<MusicDirectory.Entry>>(
+                        context, item.entries, entryListSerializer
+                    )
+            }
+
+            override fun deserializeObject(
+                context: SerializationContext,
+                input: SerializerInput,
+                versionNumber: Int
+            ): Snapshot? {
+                if (versionNumber != SEARCH_INDEX_VERSION) return null
+
+                val entryListSerializer =
+                    CollectionSerializers.getListSerializer(getMusicDirectoryEntrySerializer())
+                val artists = input.readObject(context, getArtistListSerializer()) ?: return null
+                val entries = input.readObject(context, entryListSerializer) ?: return null
+                return Snapshot(artists, entries)
+            }
+        }
+    }
+}
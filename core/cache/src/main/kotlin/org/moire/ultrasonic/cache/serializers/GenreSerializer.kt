@@ -0,0 +1,47 @@
+@file:JvmMultifileClass
+@file:JvmName("DomainSerializers")
+package org.moire.ultrasonic.cache.serializers
+
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import org.moire.ultrasonic.cache.DomainEntitySerializer
+import org.moire.ultrasonic.domain.Genre
+
+private const val SERIALIZATION_VERSION = 1
+
+private val genreSerializer = object : ObjectSerializer<Genre>(SERIALIZATION_VERSION) {
+    override fun serializeObject(
+        context: SerializationContext,
+        output: SerializerOutput<out SerializerOutput<*>>,
+        item: Genre
+    ) {
+        output.writeString(item.name).writeString(item.index)
+    }
+
+    override fun deserializeObject(
+        context: SerializationContext,
+        input: SerializerInput,
+        versionNumber: Int
+    ): Genre? {
+        if (versionNumber != SERIALIZATION_VERSION) return null
+
+        val name = input.readString() ?: return null
+        val index = input.readString() ?: return null
+        return Genre(name, index)
+    }
+}
+
+/**
+ * Serializer/deserializer for [Genre] domain entity.
+ */
+fun getGenreSerializer(): DomainEntitySerializer<Genre> = genreSerializer
+
+private val genreListSerializer = CollectionSerializers.getListSerializer(genreSerializer)
+
+/**
+ * Serializer/deserializer for [List] of [Genre] items.
+ */
+fun getGenreListSerializer(): DomainEntitySerializer<List<Genre>> = genreListSerializer
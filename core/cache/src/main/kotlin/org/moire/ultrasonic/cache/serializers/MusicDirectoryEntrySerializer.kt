@@ -0,0 +1,136 @@
+@file:JvmMultifileClass
+@file:JvmName("DomainSerializers")
+package org.moire.ultrasonic.cache.serializers
+
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerDefs
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import java.util.Date
+import org.moire.ultrasonic.cache.DomainEntitySerializer
+import org.moire.ultrasonic.domain.MusicDirectory
+
+private const val SERIALIZATION_VERSION = 1
+
+private val entrySerializer get() = object : ObjectSerializer<MusicDirectory.Entry>(
+    SERIALIZATION_VERSION
+) {
+    override fun serializeObject(
+        context: SerializationContext,
+        output: SerializerOutput<out SerializerOutput<*>>,
+        item: MusicDirectory.Entry
+    ) {
+        with(output) {
+            writeString(item.id)
+            writeString(item.parent)
+            writeBoolean(item.isDirectory)
+            writeString(item.title)
+            writeString(item.album)
+            writeString(item.albumId)
+            writeString(item.artist)
+            writeString(item.artistId)
+            writeNullableInt(item.track)
+            writeNullableInt(item.year)
+            writeString(item.genre)
+            writeString(item.contentType)
+            writeString(item.suffix)
+            writeString(item.transcodedContentType)
+            writeString(item.transcodedSuffix)
+            writeString(item.coverArt)
+            writeNullableLong(item.size)
+            writeNullableLong(item.songCount)
+            writeNullableInt(item.duration)
+            writeNullableInt(item.bitRate)
+            writeString(item.path)
+            writeBoolean(item.isVideo)
+            writeBoolean(item.starred)
+            writeNullableInt(item.discNumber)
+            writeString(item.type)
+            writeNullableLong(item.created?.time)
+            writeInt(item.closeness)
+            writeInt(item.bookmarkPosition)
+            writeNullableInt(item.userRating)
+            writeNullableFloat(item.averageRating)
+        }
+    }
+
+    override fun deserializeObject(
+        context: SerializationContext,
+        input: SerializerInput,
+        versionNumber: Int
+    ): MusicDirectory.Entry? {
+        if (versionNumber != SERIALIZATION_VERSION) return null
+
+        return MusicDirectory.Entry(
+            id = input.readString(),
+            parent = input.readString(),
+            isDirectory = input.readBoolean(),
+            title = input.readString(),
+            album = input.readString(),
+            albumId = input.readString(),
+            artist = input.readString(),
+            artistId = input.readString(),
+            track = input.readNullableInt(),
+            year = input.readNullableInt(),
+            genre = input.readString(),
+            contentType = input.readString(),
+            suffix = input.readString(),
+            transcodedContentType = input.readString(),
+            transcodedSuffix = input.readString(),
+            coverArt = input.readString(),
+            size = input.readNullableLong(),
+            songCount = input.readNullableLong(),
+            duration = input.readNullableInt(),
+            bitRate = input.readNullableInt(),
+            path = input.readString(),
+            isVideo = input.readBoolean(),
+            starred = input.readBoolean(),
+            discNumber = input.readNullableInt(),
+            type = input.readString(),
+            created = input.readNullableLong()?.let { Date(it) },
+            closeness = input.readInt(),
+            bookmarkPosition = input.readInt(),
+            userRating = input.readNullableInt(),
+            averageRating = input.readNullableFloat()
+        )
+    }
+}
+
+private fun SerializerOutput<*>.writeNullableInt(value: Int?) {
+    if (value != null) writeInt(value) else writeNull()
+}
+
+private fun SerializerOutput<*>.writeNullableLong(value: Long?) {
+    if (value != null) writeLong(value) else writeNull()
+}
+
+private fun SerializerOutput<*>.writeNullableFloat(value: Float?) {
+    if (value != null) writeFloat(value) else writeNull()
+}
+
+private fun SerializerInput.isNextNull() = peekType() == SerializerDefs.TYPE_NULL
+
+private fun SerializerInput.readNullableInt(): Int? {
+    if (!isNextNull()) return readInt()
+    readNull()
+    return null
+}
+
+private fun SerializerInput.readNullableLong(): Long? {
+    if (!isNextNull()) return readLong()
+    readNull()
+    return null
+}
+
+private fun SerializerInput.readNullableFloat(): Float? {
+    if (!isNextNull()) return readFloat()
+    readNull()
+    return null
+}
+
+/**
+ * Serializer/deserializer for [MusicDirectory.Entry] domain entity.
+ */
+fun getMusicDirectoryEntrySerializer(): DomainEntitySerializer<MusicDirectory.Entry> =
+    entrySerializer
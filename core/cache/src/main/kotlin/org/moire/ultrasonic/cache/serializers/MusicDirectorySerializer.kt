@@ -0,0 +1,53 @@
+@file:JvmMultifileClass
+@file:JvmName("DomainSerializers")
+package org.moire.ultrasonic.cache.serializers
+
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import org.moire.ultrasonic.cache.DomainEntitySerializer
+import org.moire.ultrasonic.domain.MusicDirectory
+
+private const val SERIALIZATION_VERSION = 1
+
+private val musicDirectorySerializer get() = object : ObjectSerializer<MusicDirectory>(
+    SERIALIZATION_VERSION
+) {
+    override fun serializeObject(
+        context: SerializationContext,
+        output: SerializerOutput<out SerializerOutput<*>>,
+        item: MusicDirectory
+    ) {
+        val entryListSerializer =
+            CollectionSerializers.getListSerializer(getMusicDirectoryEntrySerializer())
+        output.writeString(item.name)
+            .writeObject<List<MusicDirectory.Entry>>(
+                context, item.getAllChild(), entryListSerializer
+            )
+    }
+
+    override fun deserializeObject(
+        context: SerializationContext,
+        input: SerializerInput,
+        versionNumber: Int
+    ): MusicDirectory? {
+        if (versionNumber != SERIALIZATION_VERSION) return null
+
+        val entryListSerializer =
+            CollectionSerializers.getListSerializer(getMusicDirectoryEntrySerializer())
+        val name = input.readString()
+        val children = input.readObject(context, entryListSerializer) ?: return null
+        return MusicDirectory().apply {
+            this.name = name
+            addAll(children)
+        }
+    }
+}
+
+/**
+ * Serializer/deserializer for [MusicDirectory] domain entity.
+ */
+fun getMusicDirectorySerializer(): DomainEntitySerializer<MusicDirectory> =
+    musicDirectorySerializer
@@ -0,0 +1,67 @@
+@file:JvmMultifileClass
+@file:JvmName("DomainSerializers")
+package org.moire.ultrasonic.cache.serializers
+
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerDefs
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import org.moire.ultrasonic.cache.DomainEntitySerializer
+import org.moire.ultrasonic.domain.Playlist
+
+private const val SERIALIZATION_VERSION = 1
+
+private val playlistSerializer = object : ObjectSerializer<Playlist>(SERIALIZATION_VERSION) {
+    override fun serializeObject(
+        context: SerializationContext,
+        output: SerializerOutput<out SerializerOutput<*>>,
+        item: Playlist
+    ) {
+        output.writeString(item.id)
+            .writeString(item.name)
+            .writeString(item.owner)
+            .writeString(item.comment)
+            .writeString(item.songCount)
+            .writeString(item.created)
+            .apply {
+                val public = item.public
+                if (public != null) writeBoolean(public) else writeNull()
+            }
+    }
+
+    override fun deserializeObject(
+        context: SerializationContext,
+        input: SerializerInput,
+        versionNumber: Int
+    ): Playlist? {
+        if (versionNumber != SERIALIZATION_VERSION) return null
+
+        val id = input.readString() ?: return null
+        val name = input.readString() ?: return null
+        val owner = input.readString() ?: return null
+        val comment = input.readString() ?: return null
+        val songCount = input.readString() ?: return null
+        val created = input.readString() ?: return null
+        val public = if (input.peekType() == SerializerDefs.TYPE_NULL) {
+            input.readNull()
+            null
+        } else {
+            input.readBoolean()
+        }
+        return Playlist(id, name, owner, comment, songCount, created, public)
+    }
+}
+
+/**
+ * Serializer/deserializer for [Playlist] domain entity.
+ */
+fun getPlaylistSerializer(): DomainEntitySerializer<Playlist> = playlistSerializer
+
+private val playlistListSerializer = CollectionSerializers.getListSerializer(playlistSerializer)
+
+/**
+ * Serializer/deserializer for [List] of [Playlist] items.
+ */
+fun getPlaylistListSerializer(): DomainEntitySerializer<List<Playlist>> = playlistListSerializer
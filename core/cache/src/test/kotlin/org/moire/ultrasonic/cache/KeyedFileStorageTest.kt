@@ -0,0 +1,157 @@
+package org.moire.ultrasonic.cache
+
+import java.io.File
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.serializers.getMusicFolderListSerializer
+import org.moire.ultrasonic.cache.serializers.getMusicFolderSerializer
+import org.moire.ultrasonic.domain.MusicFolder
+
+/**
+ * Integration test for [KeyedFileStorage].
+ */
+class KeyedFileStorageTest : BaseStorageTest() {
+    override val serverId: String
+        get() = "some-server-id"
+
+    private val keyedStorage by lazy { KeyedFileStorage(mockDirectories, serverId, true) }
+
+    @Test
+    fun `Should return null if key is not stored`() {
+        val loadedItem = keyedStorage.load("some-key", getMusicFolderSerializer())
+
+        loadedItem `should equal` null
+    }
+
+    @Test
+    fun `Should load stored object`() {
+        val item = MusicFolder("some", "nice")
+        keyedStorage.store("some-key", item, getMusicFolderSerializer())
+
+        val loadedItem = keyedStorage.load("some-key", getMusicFolderSerializer())
+
+        loadedItem `should equal` item
+    }
+
+    @Test
+    fun `Should keep objects stored with other keys`() {
+        keyedStorage.store("key1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        keyedStorage.store("key2", MusicFolder("2", "2"), getMusicFolderSerializer())
+        keyedStorage.store("key1", MusicFolder("3", "3"), getMusicFolderSerializer())
+
+        keyedStorage.load("key1", getMusicFolderSerializer()) `should equal` MusicFolder("3", "3")
+        keyedStorage.load("key2", getMusicFolderSerializer()) `should equal` MusicFolder("2", "2")
+    }
+
+    @Test
+    fun `Should reuse pages of replaced objects`() {
+        keyedStorage.store("key1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        keyedStorage.store("key2", MusicFolder("2", "2"), getMusicFolderSerializer())
+        keyedStorage.store("key1", MusicFolder("3", "3"), getMusicFolderSerializer())
+        keyedStorage.store("key1", MusicFolder("4", "4"), getMusicFolderSerializer())
+
+        getValuesFile().length() `should be equal to` 2L * PAGE_SIZE
+    }
+
+    @Test
+    fun `Should truncate values file when last object is removed`() {
+        keyedStorage.store("key1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        keyedStorage.store("key2", MusicFolder("2", "2"), getMusicFolderSerializer())
+
+        keyedStorage.remove("key2")
+
+        getValuesFile().length() `should be equal to` PAGE_SIZE.toLong()
+        keyedStorage.load("key2", getMusicFolderSerializer()) `should equal` null
+    }
+
+    @Test
+    fun `Should load objects stored by another instance`() {
+        val items = (1..100).map { MusicFolder("$it", "folder $it") }
+        keyedStorage.store("list", items, getMusicFolderListSerializer())
+        keyedStorage.store("single", items[0], getMusicFolderSerializer())
+        keyedStorage.remove("single")
+
+        val otherStorage = KeyedFileStorage(mockDirectories, serverId, true)
+
+        otherStorage.load("list", getMusicFolderListSerializer()) `should equal` items
+        otherStorage.load("single", getMusicFolderSerializer()) `should equal` null
+    }
+
+    @Test
+    fun `Should load large objects`() {
+        val items = (1..10000).map { MusicFolder("$it", "some long folder name $it") }
+        keyedStorage.store("list", items, getMusicFolderListSerializer())
+
+        val otherStorage = KeyedFileStorage(mockDirectories, serverId, true)
+
+        otherStorage.load("list", getMusicFolderListSerializer()) `should equal` items
+    }
+
+    @Test
+    fun `Should return null if version differs`() {
+        keyedStorage.store("key", MusicFolder("1", "1"), getMusicFolderSerializer(), version = 1)
+
+        keyedStorage.load("key", getMusicFolderSerializer(), version = 2) `should equal` null
+    }
+
+    @Test
+    fun `Should return null if object has expired`() {
+        keyedStorage.store("key", MusicFolder("1", "1"), getMusicFolderSerializer(), ttlMillis = 0)
+
+        keyedStorage.load("key", getMusicFolderSerializer()) `should equal` null
+    }
+
+    @Test
+    fun `Should return expiry time of stored object`() {
+        val before = System.currentTimeMillis()
+        keyedStorage.store("key", MusicFolder("1", "1"), getMusicFolderSerializer(), ttlMillis = 1000)
+        val after = System.currentTimeMillis()
+
+        val expiryTime = keyedStorage.getExpiryTime("key")
+
+        (expiryTime in before + 1000..after + 1000) `should be equal to` true
+        keyedStorage.getExpiryTime("other") `should be equal to` 0L
+    }
+
+    @Test
+    fun `Should ignore incomplete index record`() {
+        keyedStorage.store("key1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        keyedStorage.store("key2", MusicFolder("2", "2"), getMusicFolderSerializer())
+        val indexFile = File(getStorageDir(), INDEX_FILE_NAME)
+        indexFile.writeBytes(indexFile.readBytes().copyOf(indexFile.length().toInt() - 3))
+
+        val otherStorage = KeyedFileStorage(mockDirectories, serverId, true)
+
+        otherStorage.load("key1", getMusicFolderSerializer()) `should equal` MusicFolder("1", "1")
+        otherStorage.load("key2", getMusicFolderSerializer()) `should equal` null
+    }
+
+    @Test
+    fun `Should only remove objects with given key prefix`() {
+        keyedStorage.store("cache:1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        keyedStorage.store("cache:2", MusicFolder("2", "2"), getMusicFolderSerializer())
+        keyedStorage.store("other", MusicFolder("3", "3"), getMusicFolderSerializer())
+
+        keyedStorage.removeAll("cache:")
+
+        keyedStorage.load("cache:1", getMusicFolderSerializer()) `should equal` null
+        keyedStorage.load("cache:2", getMusicFolderSerializer()) `should equal` null
+        keyedStorage.load("other", getMusicFolderSerializer()) `should equal` MusicFolder("3", "3")
+    }
+
+    @Test
+    fun `Should remove all objects when clearAll is called`() {
+        keyedStorage.store("key1", MusicFolder("1", "1"), getMusicFolderSerializer())
+
+        keyedStorage.clearAll()
+
+        keyedStorage.load("key1", getMusicFolderSerializer()) `should equal` null
+        getStorageDir().listFiles().size `should be equal to` 0
+    }
+
+    private fun getStorageDir() =
+        File(File(mockDirectories.getInternalDataDir(), KEYED_STORAGE_DIR_NAME), serverId)
+
+    private fun getValuesFile() = File(getStorageDir(), VALUES_FILE_NAME)
+}
@@ -0,0 +1,158 @@
+package org.moire.ultrasonic.cache
+
+import java.util.Random
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * Integration test for [OfflineCatalog].
+ */
+class OfflineCatalogTest : BaseStorageTest() {
+    override val serverId: String
+        get() = "offline"
+
+    private val keyedStorage by lazy { KeyedFileStorage(mockDirectories, serverId, true) }
+    private val catalog by lazy { OfflineCatalog(keyedStorage) }
+
+    private val artist = directory("/music/Artist", "/music")
+    private val album = directory("/music/Artist/Album", "/music/Artist")
+    private val song = song("/music/Artist/Album/01 Song.mp3", "/music/Artist/Album")
+    private val otherSong = song("/music/Artist/Album/02 Other.mp3", "/music/Artist/Album")
+
+    @Test
+    fun `Should return null for directories which are not listed`() {
+        catalog.getChildren("/music") `should equal` null
+    }
+
+    @Test
+    fun `Should restore listings from storage`() {
+        catalog.setChildren("/music", listOf(artist))
+        catalog.setChildren("/music/Artist", listOf(album))
+
+        val restored = OfflineCatalog(keyedStorage)
+
+        restored.getChildren("/music") `should equal` listOf(artist)
+        restored.getChildren("/music/Artist") `should equal` listOf(album)
+    }
+
+    @Test
+    fun `Should restore modification times of listings`() {
+        catalog.setChildren("/music", listOf(artist), 1000L)
+        catalog.setChildren("/music/Artist", listOf(album))
+
+        val restored = OfflineCatalog(keyedStorage)
+
+        restored.getModified("/music") `should equal` 1000L
+        restored.getModified("/music/Artist") `should equal` null
+    }
+
+    @Test
+    fun `Should list new directories as empty`() {
+        catalog.setChildren("/music", emptyList())
+
+        catalog.put(artist)
+        catalog.put(album)
+        catalog.put(song)
+
+        catalog.getChildren("/music/Artist") `should equal` listOf(album)
+        catalog.getChildren("/music/Artist/Album") `should equal` listOf(song)
+    }
+
+    @Test
+    fun `Should ignore entries of directories which are not listed`() {
+        catalog.put(song)
+
+        catalog.getChildren("/music/Artist/Album") `should equal` null
+    }
+
+    @Test
+    fun `Should forget everything below removed directories`() {
+        catalog.setChildren("/music", listOf(artist))
+        catalog.setChildren("/music/Artist", listOf(album))
+        catalog.setChildren("/music/Artist/Album", listOf(song))
+
+        catalog.remove(artist.id!!, "/music")
+
+        catalog.getChildren("/music") `should equal` emptyList()
+        OfflineCatalog(keyedStorage).getChildren("/music/Artist/Album") `should equal` null
+    }
+
+    @Test
+    fun `Should only return descendants of complete roots`() {
+        catalog.setChildren("/music", listOf(artist))
+        catalog.setChildren("/music/Artist", listOf(album))
+        catalog.setChildren("/music/Artist/Album", listOf(song, otherSong))
+
+        catalog.getDescendants("/music") `should equal` null
+
+        catalog.setComplete("/music")
+
+        OfflineCatalog(keyedStorage).getDescendants("/music") `should equal`
+            listOf(artist, album, song, otherSong)
+    }
+
+    @Test
+    fun `Should become incomplete when a listing is missing`() {
+        catalog.setChildren("/music", listOf(artist))
+        catalog.setComplete("/music")
+
+        catalog.getDescendants("/music") `should equal` null
+        catalog.isComplete("/music") `should be equal to` false
+    }
+
+    @Test
+    fun `Should pick different random songs`() {
+        val songs = (1..20).map { song("/music/Artist/Album/$it.mp3", "/music/Artist/Album") }
+        catalog.setChildren("/music", listOf(artist))
+        catalog.setChildren("/music/Artist", listOf(album))
+        catalog.setChildren("/music/Artist/Album", songs)
+        catalog.setComplete("/music")
+
+        val result = catalog.getRandomSongs("/music", 5, Random(1))!!
+
+        result.size `should be equal to` 5
+        result.toSet().size `should be equal to` 5
+        songs.containsAll(result) `should be equal to` true
+        catalog.getRandomSongs("/music", 50, Random(1))!!.size `should be equal to` 20
+    }
+
+    @Test
+    fun `Should only pick excluded songs if there are not enough others`() {
+        catalog.setChildren("/music", listOf(artist))
+        catalog.setChildren("/music/Artist", listOf(album))
+        catalog.setChildren("/music/Artist/Album", listOf(song, otherSong))
+        catalog.setComplete("/music")
+
+        catalog.getRandomSongs("/music", 1, Random(1), setOf(song.id!!)) `should equal`
+            listOf(otherSong)
+        catalog.getRandomSongs("/music", 2, Random(1), setOf(song.id!!))!!.toSet() `should equal`
+            setOf(song, otherSong)
+    }
+
+    @Test
+    fun `Should pick random songs from the updated catalog`() {
+        catalog.setChildren("/music", emptyList())
+        catalog.setComplete("/music")
+        catalog.getRandomSongs("/music", 5, Random(1)) `should equal` emptyList()
+
+        catalog.put(artist)
+        catalog.put(album)
+        catalog.put(song)
+        catalog.put(otherSong)
+        catalog.remove(song.id!!, song.parent!!)
+
+        catalog.getRandomSongs("/music", 5, Random(1)) `should equal` listOf(otherSong)
+
+        catalog.remove(artist.id!!, artist.parent!!)
+
+        catalog.getRandomSongs("/music", 5, Random(1)) `should equal` emptyList()
+    }
+
+    private fun directory(id: String, parent: String) =
+        MusicDirectory.Entry(id = id, parent = parent, isDirectory = true, title = id)
+
+    private fun song(id: String, parent: String) =
+        MusicDirectory.Entry(id = id, parent = parent, title = id, size = 1L)
+}
@@ -60,6 +60,16 @@ class PermanentFileStorageTest : BaseStorageTest() {
         loadedItem `should equal` item2
     }
 
+    @Test
+    fun `Should not leave temporary files when overwriting`() {
+        storage.store("some-name", MusicFolder("1", "1"), getMusicFolderSerializer())
+        storage.store("some-name", MusicFolder("2", "2"), getMusicFolderSerializer())
+
+        val storageFiles = getServerStorageDir().listFiles()
+        storageFiles.size `should be equal to` 1
+        storageFiles[0].name `should be equal to` "some-name.ser"
+    }
+
     @Test
     fun `Should clear all files when clearAll is called`() {
         storage.store("name1", MusicFolder("1", "1"), getMusicFolderSerializer())
@@ -77,5 +87,19 @@ class PermanentFileStorageTest : BaseStorageTest() {
         loadedItem `should equal` null
     }
 
+    @Test
+    fun `Should return store time of stored objects`() {
+        storage.getStoreTime("some-name") `should be equal to` 0L
+
+        storage.store("some-name", MusicFolder("1", "1"), getMusicFolderSerializer())
+        File(getServerStorageDir(), "some-name.ser").setLastModified(1000L)
+
+        storage.getStoreTime("some-name") `should be equal to` 1000L
+
+        storage.touch("some-name")
+
+        (storage.getStoreTime("some-name") > 1000L) `should be equal to` true
+    }
+
     private fun getServerStorageDir() = File(storageDir, serverId)
 }
@@ -0,0 +1,114 @@
+package org.moire.ultrasonic.cache
+
+import java.util.concurrent.Executor
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.domain.Artist
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.SearchCriteria
+
+/**
+ * Integration test for [SearchIndex].
+ */
+class SearchIndexTest : BaseStorageTest() {
+    override val serverId: String
+        get() = "some-server-id"
+
+    private var now = 0L
+    private val directExecutor = Executor { it.run() }
+    private val keyedStorage by lazy { KeyedFileStorage(mockDirectories, serverId, true) }
+    private val index by lazy { SearchIndex(keyedStorage, directExecutor) { now } }
+
+    private val album = MusicDirectory.Entry(
+        id = "1", isDirectory = true, title = "Déjà Vu", artist = "Crosby, Stills & Nash"
+    )
+    private val song = MusicDirectory.Entry(
+        id = "2", title = "Carry On", album = "Déjà Vu", artist = "Crosby, Stills & Nash"
+    )
+    private val otherSong = MusicDirectory.Entry(
+        id = "3", title = "Dejavu Blues", album = "Other", artist = "Someone"
+    )
+
+    @Test
+    fun `Should tokenize without case and diacritics`() {
+        SearchIndex.tokenize("Björk - Jóga (Live)") `should equal` listOf("bjork", "joga", "live")
+    }
+
+    @Test
+    fun `Should find entries by token prefix`() {
+        index.addEntries(listOf(album, song, otherSong))
+
+        val result = index.search(SearchCriteria("deja", 10, 10, 10))
+
+        result.albums.map { it.id } `should equal` listOf("1")
+        result.songs.map { it.id } `should equal` listOf("3", "2")
+    }
+
+    @Test
+    fun `Should require all query tokens to match`() {
+        index.addEntries(listOf(album, song, otherSong))
+
+        val result = index.search(SearchCriteria("carry cros", 10, 10, 10))
+
+        result.albums `should equal` emptyList()
+        result.songs.map { it.id } `should equal` listOf("2")
+    }
+
+    @Test
+    fun `Should find artists and limit the result counts`() {
+        index.addArtists(listOf(Artist("a1", "Nash"), Artist("a2", "Nashville Pussy")))
+
+        val result = index.search(SearchCriteria("nash", 1, 10, 10))
+
+        result.artists.map { it.id } `should equal` listOf("a1")
+        result.artists[0].closeness `should be equal to` 4
+    }
+
+    @Test
+    fun `Should replace entries with the same id`() {
+        index.addEntries(listOf(song))
+        index.addEntries(listOf(song.copy(title = "Helplessly Hoping")))
+
+        index.search(SearchCriteria("carry", 10, 10, 10)).songs `should equal` emptyList()
+        index.search(SearchCriteria("help", 10, 10, 10)).songs.size `should be equal to` 1
+    }
+
+    @Test
+    fun `Should remove entries`() {
+        index.addEntries(listOf(album, song))
+        index.remove("2")
+
+        index.search(SearchCriteria("deja", 10, 10, 10)).songs `should equal` emptyList()
+    }
+
+    @Test
+    fun `Should restore saved index`() {
+        index.addArtists(listOf(Artist("a1", "Nash")))
+        index.addEntries(listOf(album, song))
+        index.save()
+
+        val restored = SearchIndex(keyedStorage, directExecutor) { now }
+        val result = restored.search(SearchCriteria("nash", 10, 10, 10))
+
+        result.artists.map { it.id } `should equal` listOf("a1")
+        result.albums.map { it.id } `should equal` listOf("1")
+        result.songs.map { it.id } `should equal` listOf("2")
+    }
+
+    @Test
+    fun `Should save changes at most once per interval`() {
+        index.addEntries(listOf(album))
+        now += SEARCH_INDEX_SAVE_INTERVAL - 1
+        index.addEntries(listOf(song))
+
+        SearchIndex(keyedStorage, directExecutor) { now }.search(SearchCriteria("carry", 10, 10, 10))
+            .songs `should equal` emptyList()
+
+        now += 1
+        index.addEntries(listOf(otherSong))
+
+        SearchIndex(keyedStorage, directExecutor) { now }.search(SearchCriteria("carry", 10, 10, 10))
+            .songs.size `should be equal to` 1
+    }
+}
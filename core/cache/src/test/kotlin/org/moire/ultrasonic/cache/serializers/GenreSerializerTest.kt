@@ -0,0 +1,31 @@
+package org.moire.ultrasonic.cache.serializers
+
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.BaseStorageTest
+import org.moire.ultrasonic.domain.Genre
+
+/**
+ * [Genre] serializers test.
+ */
+class GenreSerializerTest : BaseStorageTest() {
+    @Test
+    fun `Should correctly serialize list of Genres`() {
+        val itemsList = listOf(Genre("Rock", "R"), Genre("Jazz", "J"))
+
+        storage.store("some-name", itemsList, getGenreListSerializer())
+
+        validateSerializedData()
+    }
+
+    @Test
+    fun `Should correctly deserialize list of Genres`() {
+        val name = "some-name"
+        val itemsList = listOf(Genre("Rock", "R"), Genre("Jazz", "J"))
+        storage.store(name, itemsList, getGenreListSerializer())
+
+        val loadedItems = storage.load(name, getGenreListSerializer())
+
+        loadedItems `should equal` itemsList
+    }
+}
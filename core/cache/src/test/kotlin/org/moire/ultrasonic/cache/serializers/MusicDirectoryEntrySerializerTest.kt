@@ -0,0 +1,37 @@
+package org.moire.ultrasonic.cache.serializers
+
+import java.util.Date
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.BaseStorageTest
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * [MusicDirectory.Entry] serializers test.
+ */
+class MusicDirectoryEntrySerializerTest : BaseStorageTest() {
+    @Test
+    fun `Should correctly serialize MusicDirectory Entry object`() {
+        val item = MusicDirectory.Entry(id = "id", title = "title", duration = 240)
+
+        storage.store("some-name", item, getMusicDirectoryEntrySerializer())
+
+        validateSerializedData()
+    }
+
+    @Test
+    fun `Should correctly deserialize MusicDirectory Entry object`() {
+        val itemName = "some-name"
+        val item = MusicDirectory.Entry(
+            id = "id", parent = "parent", title = "title", album = "album", artist = "artist",
+            track = 3, year = null, size = 1234L, duration = 240, bitRate = 320,
+            path = "artist/album/03 title.mp3", starred = true, created = Date(1000L),
+            userRating = null, averageRating = 3.5f
+        )
+        storage.store(itemName, item, getMusicDirectoryEntrySerializer())
+
+        val loadedItem = storage.load(itemName, getMusicDirectoryEntrySerializer())
+
+        loadedItem `should equal` item
+    }
+}
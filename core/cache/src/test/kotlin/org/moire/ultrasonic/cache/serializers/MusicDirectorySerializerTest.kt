@@ -0,0 +1,39 @@
+package org.moire.ultrasonic.cache.serializers
+
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.BaseStorageTest
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * [MusicDirectory] serializers test.
+ */
+class MusicDirectorySerializerTest : BaseStorageTest() {
+    @Test
+    fun `Should correctly serialize MusicDirectory object`() {
+        val item = MusicDirectory().apply {
+            name = "name"
+            addChild(MusicDirectory.Entry(id = "1", isDirectory = true))
+        }
+
+        storage.store("some-name", item, getMusicDirectorySerializer())
+
+        validateSerializedData()
+    }
+
+    @Test
+    fun `Should correctly deserialize MusicDirectory object`() {
+        val itemName = "some-name"
+        val item = MusicDirectory().apply {
+            name = "name"
+            addChild(MusicDirectory.Entry(id = "1", isDirectory = true, title = "album"))
+            addChild(MusicDirectory.Entry(id = "2", title = "song", duration = 100))
+        }
+        storage.store(itemName, item, getMusicDirectorySerializer())
+
+        val loadedItem = storage.load(itemName, getMusicDirectorySerializer())
+
+        loadedItem?.name `should equal` item.name
+        loadedItem?.getAllChild() `should equal` item.getAllChild()
+    }
+}
@@ -0,0 +1,37 @@
+package org.moire.ultrasonic.cache.serializers
+
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.BaseStorageTest
+import org.moire.ultrasonic.domain.Playlist
+
+/**
+ * [Playlist] serializers test.
+ */
+class PlaylistSerializerTest : BaseStorageTest() {
+    @Test
+    fun `Should correctly serialize list of Playlists`() {
+        val itemsList = listOf(
+            Playlist("1", "first"),
+            Playlist("2", "second", public = true)
+        )
+
+        storage.store("some-name", itemsList, getPlaylistListSerializer())
+
+        validateSerializedData()
+    }
+
+    @Test
+    fun `Should correctly deserialize list of Playlists`() {
+        val name = "some-name"
+        val itemsList = listOf(
+            Playlist("1", "first"),
+            Playlist("2", "second", "owner", "comment", "10", "2020", false)
+        )
+        storage.store(name, itemsList, getPlaylistListSerializer())
+
+        val loadedItems = storage.load(name, getPlaylistListSerializer())
+
+        loadedItems `should equal` itemsList
+    }
+}
@@ -0,0 +1,74 @@
+package org.moire.ultrasonic.api.subsonic.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import org.moire.ultrasonic.api.subsonic.SubsonicAPIClient
+import org.moire.ultrasonic.api.subsonic.response.GetIndexesResponse
+import org.moire.ultrasonic.api.subsonic.response.GetPlaylistResponse
+import org.moire.ultrasonic.api.subsonic.response.SubsonicResponse
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+
+/**
+ * Calls through the whole client stack against a local server.
+ *
+ * [ping] compared with [plainPing] is the per request overhead of the interceptor chain and
+ * the converter, the other benchmarks measure the decoding of large responses. The gc profiler
+ * enabled by the build reports their allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class ApiCallBenchmark {
+    @Param("10000")
+    @JvmField
+    var artistCount = 0
+
+    @Param("5000")
+    @JvmField
+    var songCount = 0
+
+    private val server = BenchmarkServer()
+    private val plainClient = OkHttpClient()
+    private lateinit var client: SubsonicAPIClient
+    private lateinit var plainPingRequest: Request
+
+    @Setup
+    fun setUp() {
+        server.respondJson("ping.view", Fixtures.ping)
+        server.respondJson("getIndexes.view", Fixtures.indexes(artistCount))
+        server.respondJson("getPlaylist.view", Fixtures.playlist(songCount))
+        server.start()
+
+        client = server.createClient()
+        plainPingRequest = Request.Builder().url(server.url("/rest/ping.view")).build()
+    }
+
+    @TearDown
+    fun tearDown() {
+        server.shutdown()
+        plainClient.dispatcher().executorService().shutdown()
+    }
+
+    @Benchmark
+    fun plainPing(): ByteArray = plainClient.newCall(plainPingRequest).execute().use {
+        it.body()!!.bytes()
+    }
+
+    @Benchmark
+    fun ping(): SubsonicResponse? = client.api.ping().execute().body()
+
+    @Benchmark
+    fun getIndexes(): GetIndexesResponse? = client.api.getIndexes(null, null).execute().body()
+
+    @Benchmark
+    fun getPlaylist(): GetPlaylistResponse? = client.api.getPlaylist("1").execute().body()
+}
@@ -0,0 +1,143 @@
+package org.moire.ultrasonic.api.subsonic.benchmarks
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.moire.ultrasonic.api.subsonic.SubsonicAPIClient
+import org.moire.ultrasonic.api.subsonic.SubsonicAPIVersions
+import org.moire.ultrasonic.api.subsonic.SubsonicClientConfiguration
+
+private const val JSON_CONTENT_TYPE = "application/json; charset=utf-8"
+
+/**
+ * Local server answering the benchmarked API calls with generated fixtures.
+ *
+ * Responses are registered by the name of the called view, and served for every request so
+ * benchmark invocations don't have to enqueue them.
+ */
+class BenchmarkServer {
+    private val server = MockWebServer()
+    private val responses = HashMap<String, MockResponse>()
+
+    fun start() {
+        server.setDispatcher(object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                val view = request.requestUrl.pathSegments().last()
+                return responses[view] ?: MockResponse().setResponseCode(404)
+            }
+        })
+        server.start()
+    }
+
+    fun shutdown() = server.shutdown()
+
+    fun url(path: String = "") = server.url(path)
+
+    fun respondJson(view: String, body: ByteArray) {
+        responses[view] = MockResponse()
+            .setHeader("Content-Type", JSON_CONTENT_TYPE)
+            .setBody(Buffer().write(body))
+    }
+
+    fun respondBytes(view: String, contentType: String, body: ByteArray) {
+        responses[view] = MockResponse()
+            .setHeader("Content-Type", contentType)
+            .setBody(Buffer().write(body))
+    }
+
+    /**
+     * Creates a client which authenticates with a salted token, the default of current servers.
+     */
+    fun createClient() = SubsonicAPIClient(
+        SubsonicClientConfiguration(
+            url().toString().removeSuffix("/"),
+            "username",
+            "password",
+            SubsonicAPIVersions.V1_16_0,
+            "benchmark"
+        )
+    )
+}
+
+/**
+ * Generates responses of the sizes met in large libraries.
+ */
+object Fixtures {
+    private val mapper = ObjectMapper()
+
+    val ping: ByteArray = wrap(emptyMap())
+
+    fun indexes(artistCount: Int): ByteArray {
+        val indexes = (0 until artistCount)
+            .groupBy { ('A' + it % 26).toString() }
+            .map { (name, ids) ->
+                mapOf(
+                    "name" to name,
+                    "artist" to ids.map { mapOf("id" to "$it", "name" to "$name Artist $it") }
+                )
+            }
+
+        return wrap(
+            mapOf(
+                "indexes" to mapOf(
+                    "lastModified" to 1491069027523L,
+                    "ignoredArticles" to "The El La Los Las Le Les",
+                    "index" to indexes
+                )
+            )
+        )
+    }
+
+    fun playlist(songCount: Int): ByteArray = wrap(
+        mapOf(
+            "playlist" to mapOf(
+                "id" to "1",
+                "name" to "Everything",
+                "owner" to "username",
+                "public" to true,
+                "songCount" to songCount,
+                "duration" to songCount * 240,
+                "created" to "2017-08-27T11:17:26.218Z",
+                "changed" to "2017-08-27T11:17:26.218Z",
+                "entry" to (0 until songCount).map { song(it) }
+            )
+        )
+    )
+
+    fun bytes(size: Int): ByteArray = ByteArray(size) { it.toByte() }
+
+    private fun song(id: Int) = mapOf(
+        "id" to "$id",
+        "parent" to "${id / 12}",
+        "isDir" to false,
+        "title" to "Song $id",
+        "album" to "Album ${id / 12}",
+        "artist" to "Artist ${id / 120}",
+        "track" to id % 12 + 1,
+        "year" to 2000 + id % 20,
+        "genre" to "Rock",
+        "coverArt" to "${id / 12}",
+        "size" to 8_000_000L + id,
+        "contentType" to "audio/mpeg",
+        "suffix" to "mp3",
+        "duration" to 240,
+        "bitRate" to 320,
+        "path" to "Artist ${id / 120}/Album ${id / 12}/Song $id.mp3",
+        "isVideo" to false,
+        "playCount" to id % 7,
+        "discNumber" to 1,
+        "created" to "2017-08-27T11:17:26.218Z",
+        "albumId" to "${id / 12}",
+        "artistId" to "${id / 120}",
+        "type" to "music"
+    )
+
+    private fun wrap(content: Map<String, Any>): ByteArray = mapper.writeValueAsBytes(
+        mapOf(
+            "subsonic-response" to mapOf("status" to "ok", "version" to "1.16.0") + content
+        )
+    )
+}
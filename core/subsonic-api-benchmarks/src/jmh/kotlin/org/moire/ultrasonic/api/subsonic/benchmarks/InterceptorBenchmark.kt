@@ -0,0 +1,77 @@
+package org.moire.ultrasonic.api.subsonic.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.Interceptor
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody
+import org.moire.ultrasonic.api.subsonic.interceptors.PasswordHexInterceptor
+import org.moire.ultrasonic.api.subsonic.interceptors.PasswordMD5Interceptor
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+
+/**
+ * Per request overhead of the interceptors adding the credentials.
+ *
+ * The calls don't leave the process: the last interceptor answers them, so the difference to
+ * [noAuthentication] is the cost of the authentication interceptor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class InterceptorBenchmark {
+    private val request = Request.Builder()
+        .url("http://localhost/rest/ping.view?u=username&c=benchmark&f=json&v=1.16.0")
+        .build()
+
+    private lateinit var plainClient: OkHttpClient
+    private lateinit var tokenClient: OkHttpClient
+    private lateinit var hexClient: OkHttpClient
+
+    @Setup
+    fun setUp() {
+        plainClient = createClient(null)
+        tokenClient = createClient(PasswordMD5Interceptor("password"))
+        hexClient = createClient(PasswordHexInterceptor("password"))
+    }
+
+    @TearDown
+    fun tearDown() {
+        listOf(plainClient, tokenClient, hexClient).forEach {
+            it.dispatcher().executorService().shutdown()
+        }
+    }
+
+    @Benchmark
+    fun noAuthentication() = execute(plainClient)
+
+    @Benchmark
+    fun tokenAuthentication() = execute(tokenClient)
+
+    @Benchmark
+    fun hexAuthentication() = execute(hexClient)
+
+    private fun execute(client: OkHttpClient): Request =
+        client.newCall(request).execute().use { it.request() }
+
+    private fun createClient(authentication: Interceptor?) = OkHttpClient.Builder()
+        .apply { if (authentication != null) addInterceptor(authentication) }
+        .addInterceptor { chain ->
+            Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(null, ""))
+                .build()
+        }
+        .build()
+}
@@ -0,0 +1,61 @@
+package org.moire.ultrasonic.api.subsonic.benchmarks
+
+import java.io.InputStream
+import java.util.concurrent.TimeUnit
+import org.moire.ultrasonic.api.subsonic.SubsonicAPIClient
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+
+/**
+ * Throughput of the stream responses handled by [SubsonicAPIClient], read to the end like
+ * a download is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class StreamResponseBenchmark {
+    @Param("1048576")
+    @JvmField
+    var streamSize = 0
+
+    private val server = BenchmarkServer()
+    private val buffer = ByteArray(8192)
+    private lateinit var client: SubsonicAPIClient
+
+    @Setup
+    fun setUp() {
+        server.respondBytes("stream.view", "audio/mpeg", Fixtures.bytes(streamSize))
+        server.respondBytes("getCoverArt.view", "image/jpeg", Fixtures.bytes(65536))
+        server.start()
+
+        client = server.createClient()
+    }
+
+    @TearDown
+    fun tearDown() = server.shutdown()
+
+    @Benchmark
+    fun stream(): Long = read(client.stream("1").stream)
+
+    @Benchmark
+    fun getCoverArt(): Long = read(client.getCoverArt("1").stream)
+
+    private fun read(stream: InputStream?): Long {
+        var total = 0L
+        stream!!.use {
+            var count = it.read(buffer)
+            while (count != -1) {
+                total += count
+                count = it.read(buffer)
+            }
+        }
+        return total
+    }
+}
@@ -0,0 +1,113 @@
+package org.moire.ultrasonic.api.subsonic
+
+import okhttp3.Call
+
+/**
+ * Group of HTTP calls made on behalf of one operation, like loading the content of a screen,
+ * which can be cancelled together when the result isn't needed anymore.
+ *
+ * A call belongs to the scope which is active on the thread executing it, see [activate].
+ * Cancelling a scope cancels its calls in flight, including the reading of their responses,
+ * and the calls started in it later fail immediately. Cancelling a scope also cancels the
+ * calls of its child scopes.
+ *
+ * This makes the blocking MusicService calls of the background tasks cancellable, a task runs
+ * its calls in a child of the scope of its activity, which is cancelled when the activity is
+ * destroyed. There is no asynchronous or suspending variant of the MusicService API.
+ */
+class CallScope @JvmOverloads constructor(private val parent: CallScope? = null) {
+    private val calls = HashSet<Call>()
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    /**
+     * Keeps a scope active on a thread, until it is closed.
+     */
+    class Activation internal constructor(
+        internal val scope: CallScope,
+        private val previous: Activation?
+    ) {
+        internal val calls = ArrayList<Call>()
+
+        /**
+         * Deactivates the scope, the calls made while it was active are forgotten.
+         * Must be called on the thread which activated the scope.
+         */
+        fun close() {
+            calls.forEach { scope.unregister(it) }
+            current.set(previous)
+        }
+    }
+
+    /**
+     * Makes this scope the one of the calls executed on the current thread, until the returned
+     * activation is closed.
+     */
+    fun activate(): Activation {
+        val activation = Activation(this, current.get())
+        current.set(activation)
+        return activation
+    }
+
+    /**
+     * Runs [block] with this scope active on the current thread.
+     */
+    inline fun <T> runIn(block: () -> T): T {
+        val activation = activate()
+        try {
+            return block()
+        } finally {
+            activation.close()
+        }
+    }
+
+    fun cancel() {
+        val cancelled = synchronized(calls) {
+            isCancelled = true
+            calls.toList().also { calls.clear() }
+        }
+        cancelled.forEach { it.cancel() }
+    }
+
+    /**
+     * Adds [call] to this scope and its parents.
+     * Returns false, without keeping the call, if one of them has been cancelled already.
+     */
+    private fun register(call: Call): Boolean {
+        synchronized(calls) {
+            if (isCancelled) return false
+            calls.add(call)
+        }
+
+        if (parent?.register(call) == false) {
+            synchronized(calls) { calls.remove(call) }
+            return false
+        }
+        return true
+    }
+
+    private fun unregister(call: Call) {
+        synchronized(calls) { calls.remove(call) }
+        parent?.unregister(call)
+    }
+
+    companion object {
+        private val current = ThreadLocal<Activation?>()
+
+        /**
+         * Attributes [call] to the scope active on the current thread, if any.
+         * The call is cancelled right away if the scope has been cancelled already.
+         */
+        internal fun onCallStarted(call: Call) {
+            val activation = current.get() ?: return
+
+            if (activation.scope.register(call)) {
+                activation.calls.add(call)
+            } else {
+                call.cancel()
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import javax.net.ssl.X509TrustManager
 import okhttp3.OkHttpClient
 import okhttp3.ResponseBody
 import okhttp3.logging.HttpLoggingInterceptor
+import org.moire.ultrasonic.api.subsonic.interceptors.CallScopeInterceptor
 import org.moire.ultrasonic.api.subsonic.interceptors.PasswordHexInterceptor
 import org.moire.ultrasonic.api.subsonic.interceptors.PasswordMD5Interceptor
 import org.moire.ultrasonic.api.subsonic.interceptors.ProxyPasswordInterceptor
@@ -62,6 +63,7 @@ class SubsonicAPIClient(
     private val okHttpClient = baseOkClient.newBuilder()
         .readTimeout(READ_TIMEOUT, MILLISECONDS)
         .apply { if (config.allowSelfSignedCertificate) allowSelfSignedCertificates() }
+        .addInterceptor(CallScopeInterceptor())
         .addInterceptor { chain ->
             // Adds default request params
             val originalRequest = chain.request()
@@ -14,6 +14,10 @@ import retrofit2.converter.jackson.JacksonConverterFactory
 /**
  * Retrofit Converter Factory which uses Jackson for conversion and maintains the
  * version of the Subsonic API.
+ *
+ * Responses are parsed from their bytes, but always completely: a call returns once the whole
+ * model of the response has been built, also for the large lists. The lists are not delivered
+ * incrementally.
  * @param notifier: callback function to call when the Subsonic API version changes
  */
 class VersionAwareJacksonConverterFactory(
@@ -72,7 +76,11 @@ class VersionAwareJacksonConverterFactory(
                 // The response stream contains the version of the API for parsing the stream
                 // to an object. Currently the parsing is independent from the version as new
                 // versions only contain extra optional fields.
-                val response: T = adapter.readValue(value.charStream())
+                // The streaming parser reads the raw bytes: it detects the encoding and skips
+                // the BOM itself, and parses UTF-8 faster than from a decoding Reader.
+                val response: T = adapter.factory.createParser(value.byteStream()).use {
+                    adapter.readValue(it)
+                }
                 if (response is SubsonicResponse) {
                     try {
                         notifier(response.version)
@@ -0,0 +1,19 @@
+package org.moire.ultrasonic.api.subsonic.interceptors
+
+import okhttp3.Interceptor
+import okhttp3.Interceptor.Chain
+import okhttp3.Response
+import org.moire.ultrasonic.api.subsonic.CallScope
+
+/**
+ * Attributes the calls to the [CallScope] active on the thread executing them, so they can be
+ * cancelled with it.
+ *
+ * Only works for synchronously executed calls, which run the interceptors on the calling thread.
+ */
+internal class CallScopeInterceptor : Interceptor {
+    override fun intercept(chain: Chain): Response {
+        CallScope.onCallStarted(chain.call())
+        return chain.proceed(chain.request())
+    }
+}
@@ -0,0 +1,90 @@
+package org.moire.ultrasonic.api.subsonic.interceptors
+
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import okhttp3.Call
+import okhttp3.Interceptor.Chain
+import org.junit.Test
+import org.moire.ultrasonic.api.subsonic.CallScope
+
+/**
+ * Unit test for [CallScopeInterceptor] and [CallScope].
+ */
+class CallScopeInterceptorTest {
+    private val mockCall = mock<Call>()
+    private val mockChain = mock<Chain>().also { whenever(it.call()).thenReturn(mockCall) }
+
+    private val interceptor = CallScopeInterceptor()
+
+    @Test
+    fun `Should cancel calls in flight when the scope is cancelled`() {
+        val scope = CallScope()
+
+        scope.runIn {
+            interceptor.intercept(mockChain)
+            scope.cancel()
+        }
+
+        verify(mockCall).cancel()
+    }
+
+    @Test
+    fun `Should cancel calls started in a cancelled scope`() {
+        val scope = CallScope()
+        scope.cancel()
+
+        scope.runIn { interceptor.intercept(mockChain) }
+
+        verify(mockCall).cancel()
+    }
+
+    @Test
+    fun `Should not keep calls started in a cancelled parent scope`() {
+        val parent = CallScope()
+        val child = CallScope(parent)
+        parent.cancel()
+
+        child.runIn {
+            interceptor.intercept(mockChain)
+            child.cancel()
+        }
+
+        verify(mockCall, times(1)).cancel()
+    }
+
+    @Test
+    fun `Should cancel calls of child scopes with the parent`() {
+        val parent = CallScope()
+        val child = CallScope(parent)
+
+        child.runIn {
+            interceptor.intercept(mockChain)
+            parent.cancel()
+        }
+
+        verify(mockCall).cancel()
+    }
+
+    @Test
+    fun `Should not cancel finished calls`() {
+        val scope = CallScope()
+
+        scope.runIn { interceptor.intercept(mockChain) }
+        scope.cancel()
+
+        verify(mockCall, never()).cancel()
+    }
+
+    @Test
+    fun `Should not cancel calls made outside of the scope`() {
+        val scope = CallScope()
+
+        interceptor.intercept(mockChain)
+        scope.cancel()
+
+        verify(mockCall, never()).cancel()
+    }
+}
@@ -64,10 +64,12 @@ import org.moire.ultrasonic.domain.PlayerState;
 import org.moire.ultrasonic.domain.RepeatMode;
 import org.moire.ultrasonic.featureflags.Feature;
 import org.moire.ultrasonic.featureflags.FeatureStorage;
+import org.moire.ultrasonic.service.ActionQueue;
 import org.moire.ultrasonic.service.DownloadFile;
 import org.moire.ultrasonic.service.MediaPlayerController;
 import org.moire.ultrasonic.service.MusicService;
 import org.moire.ultrasonic.service.MusicServiceFactory;
+import org.moire.ultrasonic.service.PlaybackStateNotifier;
 import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.SilentBackgroundTask;
 import org.moire.ultrasonic.util.Util;
@@ -82,9 +84,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 
 import static org.moire.ultrasonic.domain.PlayerState.COMPLETED;
 import static org.moire.ultrasonic.domain.PlayerState.IDLE;
@@ -95,6 +95,7 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 {
 	private static final int DIALOG_SAVE_PLAYLIST = 100;
 	private static final int PERCENTAGE_OF_SCREEN_FOR_SWIPE = 5;
+	private static final long POSITION_UPDATE_INTERVAL = 1000L;
 
 	private ViewFlipper playlistFlipper;
 	private TextView emptyTextView;
@@ -112,7 +113,8 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 	private View stopButton;
 	private View startButton;
 	private ImageView repeatButton;
-	private ScheduledExecutorService executorService;
+	private final Handler positionHandler = new Handler();
+	private PlaybackStateNotifier playbackStateNotifier;
 	private DownloadFile currentPlaying;
 	private Entry currentSong;
 	private long currentRevision;
@@ -594,25 +596,9 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 			playlistFlipper.setDisplayedChild(1);
 		}
 
-		final Handler handler = new Handler();
-		final Runnable runnable = new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				handler.post(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						update();
-					}
-				});
-			}
-		};
-
-		executorService = Executors.newSingleThreadScheduledExecutor();
-		executorService.scheduleWithFixedDelay(runnable, 0L, 250L, TimeUnit.MILLISECONDS);
+		playbackStateNotifier = KoinJavaComponent.get(PlaybackStateNotifier.class);
+		playbackStateNotifier.addListener(playbackStateListener);
+		update();
 
 		if (mediaPlayerController != null && mediaPlayerController.getKeepScreenOn())
 		{
@@ -670,7 +656,8 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 	protected void onPause()
 	{
 		super.onPause();
-		executorService.shutdown();
+		playbackStateNotifier.removeListener(playbackStateListener);
+		positionHandler.removeCallbacks(positionUpdater);
 
 		if (visualizerView != null)
 		{
@@ -1066,30 +1053,18 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 					currentSong.setStarred(true);
 				}
 
-				new Thread(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						final MusicService musicService = MusicServiceFactory.getMusicService(DownloadActivity.this);
+				getMediaPlayerController().songChanged(currentSong);
 
-						try
-						{
-							if (isStarred)
-							{
-								musicService.unstar(id, null, null, DownloadActivity.this, null);
-							}
-							else
-							{
-								musicService.star(id, null, null, DownloadActivity.this, null);
-							}
-						}
-						catch (Exception e)
-						{
-							Timber.e(e);
-						}
-					}
-				}).start();
+				ActionQueue actionQueue = KoinJavaComponent.get(ActionQueue.class);
+
+				if (isStarred)
+				{
+					actionQueue.unstar(id, ActionQueue.Target.ID);
+				}
+				else
+				{
+					actionQueue.star(id, ActionQueue.Target.ID);
+				}
 
 				return true;
 			case R.id.menu_item_bookmark_set:
@@ -1210,8 +1185,50 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 
 		onSliderProgressChanged();
 		invalidateOptionsMenu();
+
+		// Only the position of a playing song moves without a notification
+		positionHandler.removeCallbacks(positionUpdater);
+		if (mediaPlayerController.getPlayerState() == PlayerState.STARTED)
+		{
+			positionHandler.postDelayed(positionUpdater, POSITION_UPDATE_INTERVAL);
+		}
 	}
 
+	private final PlaybackStateNotifier.Listener playbackStateListener = new PlaybackStateNotifier.Listener()
+	{
+		@Override
+		public void onDownloadStateChanged(Set<String> songIds)
+		{
+			// The progress bar and the subtitle show the download of the current song
+			if (currentSong != null && songIds.contains(currentSong.getId()))
+			{
+				onSliderProgressChanged();
+			}
+		}
+
+		@Override
+		public void onPlaylistChanged()
+		{
+			update();
+		}
+
+		@Override
+		public void onPlayerStateChanged()
+		{
+			update();
+		}
+	};
+
+	private final Runnable positionUpdater = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			onSliderProgressChanged();
+			positionHandler.postDelayed(this, POSITION_UPDATE_INTERVAL);
+		}
+	};
+
 	private void savePlaylistInBackground(final String playlistName)
 	{
 		Util.toast(DownloadActivity.this, getResources().getString(R.string.download_playlist_saving, playlistName));
@@ -1312,10 +1329,8 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 			{
 				if (from != to)
 				{
-					DownloadFile item = adapter.getItem(from);
-					adapter.remove(item);
-					adapter.notifyDataSetChanged();
-					adapter.insert(item, to);
+					// Moved through the controller, so the change of the playlist is stored
+					mediaPlayerController.move(from, to);
 					adapter.notifyDataSetChanged();
 				}
 			}
@@ -1344,8 +1359,8 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 					getMediaPlayerController().next();
 				}
 
-				adapter.remove(item);
-				adapter.notifyDataSetChanged();
+				// Removed through the controller, so the Downloader and the other views learn about it
+				mediaPlayerController.remove(item);
 
 				String songRemoved = String.format(getResources().getString(R.string.download_song_removed), item.getSong().getTitle());
 
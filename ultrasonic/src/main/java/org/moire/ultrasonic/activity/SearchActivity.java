@@ -373,6 +373,12 @@ public class SearchActivity extends SubsonicTabActivity
 			{
 				SearchCriteria criteria = new SearchCriteria(query, maxArtists, maxAlbums, maxSongs);
 				MusicService service = MusicServiceFactory.getMusicService(SearchActivity.this);
+
+				if (!ActiveServerProvider.Companion.isOffline(SearchActivity.this))
+				{
+					showLocalResult(MusicServiceFactory.getSearchIndex().search(criteria));
+				}
+
 				licenseValid = service.isLicenseValid(SearchActivity.this, this);
 				return service.search(criteria, SearchActivity.this, this);
 			}
@@ -390,6 +396,22 @@ public class SearchActivity extends SubsonicTabActivity
 				}
 
 			}
+
+			// The items known locally are shown while the server is searched, its result replaces them
+			private void showLocalResult(final SearchResult result)
+			{
+				if (result.getArtists().isEmpty() && result.getAlbums().isEmpty() && result.getSongs().isEmpty()) return;
+
+				getHandler().post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						searchResult = result;
+						populateList();
+					}
+				});
+			}
 		};
 		task.execute();
 	}
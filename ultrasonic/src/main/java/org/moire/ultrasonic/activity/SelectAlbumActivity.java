@@ -45,6 +45,7 @@ import org.moire.ultrasonic.service.MusicServiceFactory;
 import org.moire.ultrasonic.util.AlbumHeader;
 import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.EntryByDiscAndTrackComparator;
+import org.moire.ultrasonic.util.ListPrefetcher;
 import org.moire.ultrasonic.util.Pair;
 import org.moire.ultrasonic.util.TabActivityBackgroundTask;
 import org.moire.ultrasonic.util.Util;
@@ -83,6 +84,7 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 	private MenuItem shareButton;
 	private boolean showHeader = true;
 	private Random random = new java.security.SecureRandom();
+	private ListPrefetcher prefetcher;
 
 	/**
 	 * Called when the activity is first created.
@@ -243,6 +245,44 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 		registerForContextMenu(albumListView);
 
+		// Warms the caches for the albums the user is likely to open next
+		prefetcher = new ListPrefetcher(this, getImageLoader(), new ListPrefetcher.Source()
+		{
+			@Override
+			public MusicDirectory.Entry getCoverArtEntry(Object item)
+			{
+				return isAlbum(item) ? (MusicDirectory.Entry) item : null;
+			}
+
+			@Override
+			public boolean hasData(Object item)
+			{
+				return isAlbum(item) && !ActiveServerProvider.Companion.isOffline(SelectAlbumActivity.this);
+			}
+
+			@Override
+			public void prefetchData(Object item) throws Exception
+			{
+				MusicDirectory.Entry entry = (MusicDirectory.Entry) item;
+				MusicService musicService = MusicServiceFactory.getMusicService(SelectAlbumActivity.this);
+
+				if (Util.getShouldUseId3Tags(SelectAlbumActivity.this))
+				{
+					musicService.getAlbum(entry.getId(), entry.getTitle(), false, SelectAlbumActivity.this, null);
+				}
+				else
+				{
+					musicService.getMusicDirectory(entry.getId(), entry.getTitle(), false, SelectAlbumActivity.this, null);
+				}
+			}
+
+			private boolean isAlbum(Object item)
+			{
+				return item instanceof MusicDirectory.Entry && ((MusicDirectory.Entry) item).isDirectory();
+			}
+		});
+		albumListView.setOnScrollListener(prefetcher);
+
 		enableButtons();
 
 		String id = getIntent().getStringExtra(Constants.INTENT_EXTRA_NAME_ID);
@@ -424,6 +464,20 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		startActivityForResultWithoutTransition(this, intent);
 	}
 
+	@Override
+	protected void onPause()
+	{
+		super.onPause();
+		prefetcher.cancel();
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+		prefetcher.shutdown();
+	}
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View view, ContextMenu.ContextMenuInfo menuInfo)
 	{
@@ -1224,6 +1278,7 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 			}
 
 			albumListView.setAdapter(new EntryAdapter(SelectAlbumActivity.this, getImageLoader(), entries, true));
+			prefetcher.reset();
 			licenseValid = result.getSecond();
 
 			boolean playAll = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_AUTOPLAY, false);
@@ -39,11 +39,13 @@ import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.data.ServerSetting;
 import org.moire.ultrasonic.domain.Artist;
 import org.moire.ultrasonic.domain.Indexes;
+import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.domain.MusicFolder;
 import org.moire.ultrasonic.service.MusicService;
 import org.moire.ultrasonic.service.MusicServiceFactory;
 import org.moire.ultrasonic.util.BackgroundTask;
 import org.moire.ultrasonic.util.Constants;
+import org.moire.ultrasonic.util.ListPrefetcher;
 import org.moire.ultrasonic.util.TabActivityBackgroundTask;
 import org.moire.ultrasonic.util.Util;
 import org.moire.ultrasonic.view.ArtistAdapter;
@@ -68,6 +70,7 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 	private View folderButton;
 	private TextView folderName;
 	private List<MusicFolder> musicFolders;
+	private ListPrefetcher prefetcher;
 
 	/**
 	 * Called when the activity is first created.
@@ -106,6 +109,39 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 
 		registerForContextMenu(artistListView);
 
+		// Warms the caches for the artists the user is likely to open next
+		prefetcher = new ListPrefetcher(this, getImageLoader(), new ListPrefetcher.Source()
+		{
+			@Override
+			public MusicDirectory.Entry getCoverArtEntry(Object item)
+			{
+				return null;
+			}
+
+			@Override
+			public boolean hasData(Object item)
+			{
+				return item instanceof Artist && !ActiveServerProvider.Companion.isOffline(SelectArtistActivity.this);
+			}
+
+			@Override
+			public void prefetchData(Object item) throws Exception
+			{
+				Artist artist = (Artist) item;
+				MusicService musicService = MusicServiceFactory.getMusicService(SelectArtistActivity.this);
+
+				if (Util.getShouldUseId3Tags(SelectArtistActivity.this))
+				{
+					musicService.getArtist(artist.getId(), artist.getName(), false, SelectArtistActivity.this, null);
+				}
+				else
+				{
+					musicService.getMusicDirectory(artist.getId(), artist.getName(), false, SelectArtistActivity.this, null);
+				}
+			}
+		});
+		artistListView.setOnScrollListener(prefetcher);
+
 		String title = getIntent().getStringExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_TITLE);
 		if (title == null)
 		{
@@ -177,6 +213,7 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 					artists.addAll(result.getShortcuts());
 					artists.addAll(result.getArtists());
 					artistListView.setAdapter(new ArtistAdapter(SelectArtistActivity.this, artists));
+					prefetcher.reset();
 				}
 
 				// Display selected music folder
@@ -234,6 +271,20 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 		}
 	}
 
+	@Override
+	protected void onPause()
+	{
+		super.onPause();
+		prefetcher.cancel();
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+		prefetcher.shutdown();
+	}
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View view, ContextMenu.ContextMenuInfo menuInfo)
 	{
@@ -41,6 +41,7 @@ import static org.koin.java.KoinJavaComponent.inject;
 
 import org.koin.java.KoinJavaComponent;
 import org.moire.ultrasonic.R;
+import org.moire.ultrasonic.api.subsonic.CallScope;
 import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.domain.MusicDirectory.Entry;
@@ -71,6 +72,8 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 	private static SubsonicTabActivity instance;
 
 	private boolean destroyed;
+	// The HTTP calls of the tasks of the activity are cancelled when it is destroyed
+	private final CallScope callScope = new CallScope();
 
 	private static final String STATE_MENUDRAWER = "org.moire.ultrasonic.menuDrawer";
 	private static final String STATE_ACTIVE_VIEW_ID = "org.moire.ultrasonic.activeViewId";
@@ -199,6 +202,7 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		Util.unregisterMediaButtonEventReceiver(this, false);
 		super.onDestroy();
 		destroyed = true;
+		callScope.cancel();
 		nowPlayingView = null;
 		clearImageLoader();
 	}
@@ -342,7 +346,7 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 					@Override
 					public void run()
 					{
-						getImageLoader().loadImage(nowPlayingAlbumArtImage, song, false, Util.getNotificationImageSize(context), false, true);
+						getImageLoader().loadImage(nowPlayingAlbumArtImage, song, false, Util.getNotificationImageSize(context), false, true, ImageLoader.Priority.NOW_PLAYING);
 					}
 				});
 
@@ -732,6 +736,11 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		return destroyed;
 	}
 
+	public CallScope getCallScope()
+	{
+		return callScope;
+	}
+
 	public void setProgressVisible(boolean visible)
 	{
 		View view = findViewById(R.id.tab_progress);
@@ -21,7 +21,12 @@ package org.moire.ultrasonic.service;
 import android.content.Context;
 import android.graphics.Bitmap;
 
+import com.twitter.serial.serializer.Serializer;
+
+import org.moire.ultrasonic.cache.KeyedFileStorage;
+import org.moire.ultrasonic.cache.SearchIndex;
 import org.moire.ultrasonic.data.ActiveServerProvider;
+import org.moire.ultrasonic.domain.Artist;
 import org.moire.ultrasonic.domain.Bookmark;
 import org.moire.ultrasonic.domain.ChatMessage;
 import org.moire.ultrasonic.domain.Genre;
@@ -36,23 +41,32 @@ import org.moire.ultrasonic.domain.SearchCriteria;
 import org.moire.ultrasonic.domain.SearchResult;
 import org.moire.ultrasonic.domain.Share;
 import org.moire.ultrasonic.domain.UserInfo;
+import org.moire.ultrasonic.util.BoundedCache;
 import org.moire.ultrasonic.util.CancellableTask;
 import org.moire.ultrasonic.util.Constants;
-import org.moire.ultrasonic.util.LRUCache;
 import org.moire.ultrasonic.util.ProgressListener;
 import org.moire.ultrasonic.util.TimeLimitedCache;
 import org.moire.ultrasonic.util.Util;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import kotlin.Lazy;
 import kotlin.Pair;
+import timber.log.Timber;
 
 import static org.koin.java.KoinJavaComponent.inject;
+import static org.moire.ultrasonic.cache.serializers.DomainSerializers.getGenreListSerializer;
+import static org.moire.ultrasonic.cache.serializers.DomainSerializers.getMusicDirectorySerializer;
+import static org.moire.ultrasonic.cache.serializers.DomainSerializers.getPlaylistListSerializer;
 
 /**
  * @author Sindre Mehus
@@ -63,11 +77,21 @@ public class CachedMusicService implements MusicService
 
 	private static final int MUSIC_DIR_CACHE_SIZE = 100;
 
+	// The persistent storage is shared, the keys of this cache start with this prefix so they can be removed on their own
+	private static final String PERSISTENT_KEY_PREFIX = "browse:";
+	private static final int PERSISTENT_CACHE_VERSION = 1;
+	private static final long PLAYLISTS_CACHE_TIME = TimeUnit.HOURS.toMillis(1);
+	private static final long GENRES_CACHE_TIME = TimeUnit.HOURS.toMillis(10);
+	// Directories are kept much longer than in memory, they are shown at once after a restart and revalidated in the background
+	private static final long DIRECTORY_PERSISTENT_TIME = TimeUnit.DAYS.toMillis(30);
+
 	private final MusicService musicService;
-	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedMusicDirectories;
-	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedArtist;
-	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedAlbum;
-	private final LRUCache<String, TimeLimitedCache<UserInfo>> cachedUserInfo;
+	private final KeyedFileStorage persistentStorage;
+	private final SearchIndex searchIndex;
+	private final BoundedCache<String, MusicDirectory> cachedMusicDirectories;
+	private final BoundedCache<String, MusicDirectory> cachedArtist;
+	private final BoundedCache<String, MusicDirectory> cachedAlbum;
+	private final BoundedCache<String, UserInfo> cachedUserInfo;
 	private final TimeLimitedCache<Boolean> cachedLicenseValid = new TimeLimitedCache<Boolean>(120, TimeUnit.SECONDS);
 	private final TimeLimitedCache<Indexes> cachedIndexes = new TimeLimitedCache<Indexes>(60 * 60, TimeUnit.SECONDS);
 	private final TimeLimitedCache<Indexes> cachedArtists = new TimeLimitedCache<Indexes>(60 * 60, TimeUnit.SECONDS);
@@ -76,15 +100,20 @@ public class CachedMusicService implements MusicService
 	private final TimeLimitedCache<List<MusicFolder>> cachedMusicFolders = new TimeLimitedCache<List<MusicFolder>>(10 * 3600, TimeUnit.SECONDS);
 	private final TimeLimitedCache<List<Genre>> cachedGenres = new TimeLimitedCache<List<Genre>>(10 * 3600, TimeUnit.SECONDS);
 
+	private final ExecutorService revalidationExecutor = Executors.newSingleThreadExecutor();
+	private final Set<String> revalidating = Collections.synchronizedSet(new HashSet<String>());
+
 	private String restUrl;
 
-	public CachedMusicService(MusicService musicService)
+	public CachedMusicService(MusicService musicService, KeyedFileStorage persistentStorage, SearchIndex searchIndex)
 	{
 		this.musicService = musicService;
-		cachedMusicDirectories = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedArtist = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedAlbum = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedUserInfo = new LRUCache<String, TimeLimitedCache<UserInfo>>(MUSIC_DIR_CACHE_SIZE);
+		this.persistentStorage = persistentStorage;
+		this.searchIndex = searchIndex;
+		cachedMusicDirectories = new BoundedCache<String, MusicDirectory>(MUSIC_DIR_CACHE_SIZE);
+		cachedArtist = new BoundedCache<String, MusicDirectory>(MUSIC_DIR_CACHE_SIZE);
+		cachedAlbum = new BoundedCache<String, MusicDirectory>(MUSIC_DIR_CACHE_SIZE);
+		cachedUserInfo = new BoundedCache<String, UserInfo>(MUSIC_DIR_CACHE_SIZE);
 	}
 
 	@Override
@@ -133,12 +162,14 @@ public class CachedMusicService implements MusicService
 			cachedIndexes.clear();
 			cachedMusicFolders.clear();
 			cachedMusicDirectories.clear();
+			persistentStorage.removeAll(PERSISTENT_KEY_PREFIX);
 		}
 		Indexes result = cachedIndexes.get();
 		if (result == null)
 		{
 			result = musicService.getIndexes(musicFolderId, refresh, context, progressListener);
 			cachedIndexes.set(result);
+			addToSearchIndex(result);
 		}
 		return result;
 	}
@@ -156,64 +187,62 @@ public class CachedMusicService implements MusicService
 		{
 			result = musicService.getArtists(refresh, context, progressListener);
 			cachedArtists.set(result);
+			addToSearchIndex(result);
 		}
 		return result;
 	}
 
 	@Override
-	public MusicDirectory getMusicDirectory(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getMusicDirectory(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedMusicDirectories.get(id);
-
-		MusicDirectory dir = cache == null ? null : cache.get();
-
-		if (dir == null)
+		return getDirectory(cachedMusicDirectories, "musicDirectory:" + id, id, refresh, context, progressListener, new DirectoryLoader()
 		{
-			dir = musicService.getMusicDirectory(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedMusicDirectories.put(id, cache);
-		}
-		return dir;
+			@Override
+			public MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getMusicDirectory(id, name, refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
-	public MusicDirectory getArtist(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getArtist(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedArtist.get(id);
-		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+		return getDirectory(cachedArtist, "artist:" + id, id, refresh, context, progressListener, new DirectoryLoader()
 		{
-			dir = musicService.getArtist(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedArtist.put(id, cache);
-		}
-		return dir;
+			@Override
+			public MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getArtist(id, name, refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
-	public MusicDirectory getAlbum(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getAlbum(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedAlbum.get(id);
-		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+		return getDirectory(cachedAlbum, "album:" + id, id, refresh, context, progressListener, new DirectoryLoader()
 		{
-			dir = musicService.getAlbum(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedAlbum.put(id, cache);
-		}
-		return dir;
+			@Override
+			public MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getAlbum(id, name, refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
 	public SearchResult search(SearchCriteria criteria, Context context, ProgressListener progressListener) throws Exception
 	{
-		return musicService.search(criteria, context, progressListener);
+		SearchResult result = musicService.search(criteria, context, progressListener);
+
+		List<MusicDirectory.Entry> entries = new ArrayList<MusicDirectory.Entry>(result.getAlbums());
+		entries.addAll(result.getSongs());
+		addToSearchIndex(result.getArtists(), entries);
+		return result;
 	}
 
 	@Override
@@ -245,10 +274,16 @@ public class CachedMusicService implements MusicService
 	{
 		checkSettingsChanged(context);
 		List<Playlist> result = refresh ? null : cachedPlaylists.get();
+		if (result == null && !refresh)
+		{
+			result = loadPersisted("playlists", getPlaylistListSerializer());
+			if (result != null) cachedPlaylists.set(result);
+		}
 		if (result == null)
 		{
 			result = musicService.getPlaylists(refresh, context, progressListener);
 			cachedPlaylists.set(result);
+			persist("playlists", result, getPlaylistListSerializer(), PLAYLISTS_CACHE_TIME);
 		}
 		return result;
 	}
@@ -257,6 +292,7 @@ public class CachedMusicService implements MusicService
 	public void createPlaylist(String id, String name, List<MusicDirectory.Entry> entries, Context context, ProgressListener progressListener) throws Exception
 	{
 		cachedPlaylists.clear();
+		persistentStorage.remove(PERSISTENT_KEY_PREFIX + "playlists");
 		musicService.createPlaylist(id, name, entries, context, progressListener);
 	}
 
@@ -279,9 +315,9 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public void scrobble(String id, boolean submission, Context context, ProgressListener progressListener) throws Exception
+	public void scrobble(String id, Long time, boolean submission, Context context, ProgressListener progressListener) throws Exception
 	{
-		musicService.scrobble(id, submission, context, progressListener);
+		musicService.scrobble(id, time, submission, context, progressListener);
 	}
 
 	@Override
@@ -368,6 +404,134 @@ public class CachedMusicService implements MusicService
 		return musicService.setJukeboxGain(gain, context, progressListener);
 	}
 
+	/**
+	 * Returns the directory from the memory cache, or from the persistent storage which survives restarts
+	 * of the application, or else loads it from the server.
+	 * A directory from the persistent storage which is older than the directory cache time is returned
+	 * at once, and loaded again in the background so the next request gets the current one.
+	 */
+	private MusicDirectory getDirectory(final BoundedCache<String, MusicDirectory> cache, final String key, final String id,
+			boolean refresh, Context context, ProgressListener progressListener, final DirectoryLoader loader) throws Exception
+	{
+		MusicDirectory dir = refresh ? null : cache.get(id);
+
+		if (dir == null && !refresh)
+		{
+			dir = loadPersisted(key, getMusicDirectorySerializer());
+
+			if (dir != null)
+			{
+				cache.put(id, dir, Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+				if (isPersistedDirectoryStale(key, context)) revalidateDirectory(cache, key, id, context, loader);
+			}
+		}
+
+		if (dir == null)
+		{
+			dir = loader.load(refresh, context, progressListener);
+			putDirectory(cache, key, id, dir, context);
+			addToSearchIndex(dir.getChildren());
+		}
+
+		return dir;
+	}
+
+	private void putDirectory(BoundedCache<String, MusicDirectory> cache, String key, String id, MusicDirectory dir, Context context)
+	{
+		cache.put(id, dir, Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+		persist(key, dir, getMusicDirectorySerializer(), DIRECTORY_PERSISTENT_TIME);
+	}
+
+	// The age is derived from the expiry time, as all directories are stored for the same time
+	private boolean isPersistedDirectoryStale(String key, Context context)
+	{
+		long storeTime = persistentStorage.getExpiryTime(PERSISTENT_KEY_PREFIX + key) - DIRECTORY_PERSISTENT_TIME;
+		return System.currentTimeMillis() - storeTime > TimeUnit.SECONDS.toMillis(Util.getDirectoryCacheTime(context));
+	}
+
+	private void revalidateDirectory(final BoundedCache<String, MusicDirectory> cache, final String key, final String id,
+			Context context, final DirectoryLoader loader)
+	{
+		if (!revalidating.add(key)) return;
+
+		// The directory may be revalidated after the activity which asked for it is gone
+		final Context applicationContext = context.getApplicationContext();
+
+		revalidationExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					MusicDirectory dir = loader.load(false, applicationContext, null);
+					putDirectory(cache, key, id, dir, applicationContext);
+					addToSearchIndex(dir.getChildren());
+				}
+				catch (Exception x)
+				{
+					Timber.i(x, "Failed to revalidate %s", key);
+				}
+				finally
+				{
+					revalidating.remove(key);
+				}
+			}
+		});
+	}
+
+	private void addToSearchIndex(Indexes indexes)
+	{
+		List<Artist> artists = new ArrayList<Artist>(indexes.getShortcuts());
+		artists.addAll(indexes.getArtists());
+		addToSearchIndex(artists, Collections.<MusicDirectory.Entry>emptyList());
+	}
+
+	private void addToSearchIndex(List<MusicDirectory.Entry> entries)
+	{
+		addToSearchIndex(Collections.<Artist>emptyList(), entries);
+	}
+
+	// Everything the server sends is indexed, so it can be searched for without the server later
+	private void addToSearchIndex(List<Artist> artists, List<MusicDirectory.Entry> entries)
+	{
+		try
+		{
+			searchIndex.addArtists(artists);
+			searchIndex.addEntries(entries);
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to update the search index");
+		}
+	}
+
+	// The persistent storage is only a cache, failing to use it must not fail the request
+	private <T> T loadPersisted(String key, Serializer<T> serializer)
+	{
+		try
+		{
+			return persistentStorage.load(PERSISTENT_KEY_PREFIX + key, serializer, PERSISTENT_CACHE_VERSION);
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to load %s from persistent storage", key);
+			return null;
+		}
+	}
+
+	private <T> void persist(String key, T value, Serializer<T> serializer, long ttlMillis)
+	{
+		try
+		{
+			persistentStorage.store(PERSISTENT_KEY_PREFIX + key, value, serializer, PERSISTENT_CACHE_VERSION, ttlMillis);
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to store %s in persistent storage", key);
+		}
+	}
+
 	private void checkSettingsChanged(Context context)
 	{
 		String newUrl = activeServerProvider.getValue().getRestUrl(null);
@@ -414,10 +578,17 @@ public class CachedMusicService implements MusicService
 		}
 		List<Genre> result = cachedGenres.get();
 
+		if (result == null && !refresh)
+		{
+			result = loadPersisted("genres", getGenreListSerializer());
+			if (result != null) cachedGenres.set(result);
+		}
+
 		if (result == null)
 		{
 			result = musicService.getGenres(refresh, context, progressListener);
 			cachedGenres.set(result);
+			persist("genres", result, getGenreListSerializer(), GENRES_CACHE_TIME);
 		}
 
 		Collections.sort(result, new Comparator<Genre>()
@@ -478,16 +649,12 @@ public class CachedMusicService implements MusicService
 	public MusicDirectory getVideos(boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedMusicDirectories.get(Constants.INTENT_EXTRA_NAME_VIDEOS);
-
-		MusicDirectory dir = cache == null ? null : cache.get();
+		MusicDirectory dir = refresh ? null : getDirectory(cachedMusicDirectories, "videos", Constants.INTENT_EXTRA_NAME_VIDEOS, context);
 
 		if (dir == null)
 		{
 			dir = musicService.getVideos(refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedMusicDirectories.put(Constants.INTENT_EXTRA_NAME_VIDEOS, cache);
+			putDirectory(cachedMusicDirectories, "videos", Constants.INTENT_EXTRA_NAME_VIDEOS, dir, context);
 		}
 
 		return dir;
@@ -498,16 +665,12 @@ public class CachedMusicService implements MusicService
 	{
 		checkSettingsChanged(context);
 
-		TimeLimitedCache<UserInfo> cache = cachedUserInfo.get(username);
-
-		UserInfo userInfo = cache == null ? null : cache.get();
+		UserInfo userInfo = cachedUserInfo.get(username);
 
 		if (userInfo == null)
 		{
 			userInfo = musicService.getUser(username, context, progressListener);
-			cache = new TimeLimitedCache<UserInfo>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(userInfo);
-			cachedUserInfo.put(username, cache);
+			cachedUserInfo.put(username, userInfo, Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
 		}
 
 		return userInfo;
@@ -537,4 +700,11 @@ public class CachedMusicService implements MusicService
 		return musicService.getAvatar(context, username, size, saveToFile, highQuality, progressListener);
 	}
 
+	/**
+	 * Loads a directory from the wrapped service.
+	 */
+	private interface DirectoryLoader
+	{
+		MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception;
+	}
 }
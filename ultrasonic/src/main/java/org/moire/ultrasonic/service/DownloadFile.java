@@ -25,10 +25,13 @@ import android.text.TextUtils;
 import timber.log.Timber;
 
 import org.jetbrains.annotations.NotNull;
+import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.util.CacheCleaner;
+import org.moire.ultrasonic.util.CacheIndex;
 import org.moire.ultrasonic.util.CancellableTask;
 import org.moire.ultrasonic.util.FileUtil;
+import org.moire.ultrasonic.util.ThroughputEstimator;
 import org.moire.ultrasonic.util.Util;
 
 import java.io.File;
@@ -37,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kotlin.Lazy;
 import kotlin.Pair;
@@ -52,6 +56,9 @@ import static org.koin.java.KoinJavaComponent.inject;
  */
 public class DownloadFile
 {
+	// Bumped whenever a cache file of any song is created, renamed or deleted
+	private static final AtomicInteger fileStateGeneration = new AtomicInteger();
+
 	private final Context context;
 	private final MusicDirectory.Entry song;
 	private final File partialFile;
@@ -61,13 +68,23 @@ public class DownloadFile
 	private final MediaStoreService mediaStoreService;
 	private CancellableTask downloadTask;
 	private final boolean save;
-	private boolean failed;
+	private volatile boolean failed;
 	private int bitRate;
 	private volatile boolean isPlaying;
 	private volatile boolean saveWhenDone;
 	private volatile boolean completeWhenDone;
+	private final Object progressMonitor = new Object();
+
+	// Whether the files of the song exist, as of the file state generation they were checked in
+	private int fileStateCheckedAt = -1;
+	private boolean saveFileExists;
+	private boolean completeFileExists;
+	private boolean partialFileExists;
 
 	private Lazy<Downloader> downloader = inject(Downloader.class);
+	private Lazy<ThroughputEstimator> throughputEstimator = inject(ThroughputEstimator.class);
+	private Lazy<CacheIndex> cacheIndex = inject(CacheIndex.class);
+	private Lazy<PlaybackStateNotifier> playbackStateNotifier = inject(PlaybackStateNotifier.class);
 
 	public DownloadFile(Context context, MusicDirectory.Entry song, boolean save)
 	{
@@ -118,6 +135,7 @@ public class DownloadFile
 
 		downloadTask = new DownloadTask();
 		downloadTask.start();
+		playbackStateNotifier.getValue().notifyDownloadStateChanged(this);
 	}
 
 	public synchronized void cancelDownload()
@@ -128,14 +146,16 @@ public class DownloadFile
 		}
 	}
 
-	public File getCompleteFile()
+	public synchronized File getCompleteFile()
 	{
-		if (saveFile.exists())
+		refreshFileState();
+
+		if (saveFileExists)
 		{
 			return saveFile;
 		}
 
-		if (completeFile.exists())
+		if (completeFileExists)
 		{
 			return completeFile;
 		}
@@ -148,19 +168,50 @@ public class DownloadFile
 		return partialFile;
 	}
 
-	public boolean isSaved()
+	public synchronized boolean isSaved()
 	{
-		return saveFile.exists();
+		refreshFileState();
+		return saveFileExists;
 	}
 
 	public synchronized boolean isCompleteFileAvailable()
 	{
-		return saveFile.exists() || completeFile.exists();
+		refreshFileState();
+		return saveFileExists || completeFileExists;
+	}
+
+	public synchronized boolean isPartialFileAvailable()
+	{
+		refreshFileState();
+		return partialFileExists;
 	}
 
 	public synchronized boolean isWorkDone()
 	{
-		return saveFile.exists() || (completeFile.exists() && !save) || saveWhenDone || completeWhenDone;
+		refreshFileState();
+		return saveFileExists || (completeFileExists && !save) || saveWhenDone || completeWhenDone;
+	}
+
+	/**
+	 * Forgets the cached state of the files of all songs, so it is checked on the file system again.
+	 * Must be called after cache files were created, renamed or deleted other than by a DownloadFile.
+	 */
+	public static void invalidateFileStates()
+	{
+		fileStateGeneration.incrementAndGet();
+	}
+
+	// The list views ask for the state of every visible song on every update, don't hit the file system each time
+	private synchronized void refreshFileState()
+	{
+		int generation = fileStateGeneration.get();
+		if (generation == fileStateCheckedAt) return;
+
+		// A change while checking bumps the generation again, so it won't be missed
+		fileStateCheckedAt = generation;
+		saveFileExists = saveFile.exists();
+		completeFileExists = completeFile.exists();
+		partialFileExists = partialFile.exists();
 	}
 
 	public synchronized boolean isDownloading()
@@ -183,6 +234,52 @@ public class DownloadFile
 		return failed;
 	}
 
+	/**
+	 * Blocks until the partial file has grown to at least the given length, the download has
+	 * completed, failed or was cancelled, or the timeout has elapsed. Waiting threads are woken up
+	 * whenever the download task writes data, and when it ends.
+	 * The download doesn't need to be running when this method is called, if it has failed or was
+	 * cancelled before this method returns at once.
+	 *
+	 * @return true if the requested length is available or the download has completed
+	 */
+	public boolean waitForProgress(long length, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		synchronized (progressMonitor)
+		{
+			while (!isWorkDone() && partialFile.length() < length)
+			{
+				if (failed || isDownloadCancelled()) return false;
+
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				progressMonitor.wait(remaining);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Blocks until the download has completed or the timeout has elapsed.
+	 *
+	 * @return true if the download has completed
+	 */
+	public boolean waitForCompletion(long timeoutMillis) throws InterruptedException
+	{
+		return waitForProgress(Long.MAX_VALUE, timeoutMillis);
+	}
+
+	private void notifyProgress()
+	{
+		synchronized (progressMonitor)
+		{
+			progressMonitor.notifyAll();
+		}
+	}
+
 	public void delete()
 	{
 		cancelDownload();
@@ -190,6 +287,7 @@ public class DownloadFile
 		Util.delete(completeFile);
 		Util.delete(saveFile);
 		mediaStoreService.deleteFromMediaStore(this);
+		updateCacheIndex();
 	}
 
 	public void unpin()
@@ -197,6 +295,7 @@ public class DownloadFile
 		if (saveFile.exists())
 		{
 			saveFile.renameTo(completeFile);
+			updateCacheIndex();
 		}
 	}
 
@@ -214,6 +313,7 @@ public class DownloadFile
 			ok &= Util.delete(completeFile);
 		}
 
+		updateCacheIndex();
 		return ok;
 	}
 
@@ -223,6 +323,34 @@ public class DownloadFile
 		updateModificationDate(saveFile);
 		updateModificationDate(partialFile);
 		updateModificationDate(completeFile);
+		updateCacheIndex(true);
+	}
+
+	private void updateCacheIndex()
+	{
+		updateCacheIndex(false);
+	}
+
+	/**
+	 * Brings the entries of the cache files of the song up to date with the file system.
+	 * Must be called whenever one of them is written, renamed, deleted or touched.
+	 * The play count moves along when the partial file is renamed to the complete file.
+	 */
+	private void updateCacheIndex(boolean played)
+	{
+		invalidateFileStates();
+
+		CacheIndex index = cacheIndex.getValue();
+		int accessCount = Math.max(index.getAccessCount(partialFile), index.getAccessCount(completeFile));
+		if (played) accessCount++;
+
+		index.update(partialFile, save, accessCount);
+		index.update(completeFile, false, accessCount);
+
+		// Touching the files doesn't change what is available offline
+		if (!played) MusicServiceFactory.getOfflineMusicService().updateCatalog(context, completeFile, saveFile);
+
+		playbackStateNotifier.getValue().notifyDownloadStateChanged(this);
 	}
 
 	private static void updateModificationDate(File file)
@@ -281,6 +409,10 @@ public class DownloadFile
 		{
 			Timber.w("Failed to rename file %s to %s", completeFile, saveFile);
 		}
+		finally
+		{
+			updateCacheIndex();
+		}
 
 		this.isPlaying = isPlaying;
 	}
@@ -376,6 +508,7 @@ public class DownloadFile
 					}
 
 					out = new FileOutputStream(partialFile, response.getSecond());
+					invalidateFileStates();
 					long n = copy(response.getFirst(), out);
 					Timber.i("Downloaded %d bytes to %s", n, partialFile);
 					out.flush();
@@ -443,6 +576,10 @@ public class DownloadFile
 					wifiLock.release();
 				}
 
+				// The waiting threads check the file state, it must be up to date when they wake up
+				updateCacheIndex();
+				notifyProgress();
+
 				new CacheCleaner(context).cleanSpace();
 
 				downloader.getValue().checkDownloads();
@@ -502,11 +639,16 @@ public class DownloadFile
 			long count = 0;
 			int n;
 			long lastLog = System.currentTimeMillis();
+			ThroughputEstimator.Meter meter = throughputEstimator.getValue()
+					.createMeter(ActiveServerProvider.Companion.getActiveServerId(context));
 
 			while (!isCancelled() && (n = in.read(buffer)) != -1)
 			{
 				out.write(buffer, 0, n);
 				count += n;
+				meter.onBytesReceived(n);
+				notifyProgress();
+				playbackStateNotifier.getValue().notifyDownloadProgress(DownloadFile.this);
 
 				long now = System.currentTimeMillis();
 				if (now - lastLog > 3000L)
@@ -4,51 +4,146 @@ import android.content.Context;
 import android.os.AsyncTask;
 import timber.log.Timber;
 
+import com.twitter.serial.serializer.SerializationContext;
+import com.twitter.serial.stream.Serial;
+import com.twitter.serial.stream.bytebuffer.ByteBufferSerial;
+
+import org.moire.ultrasonic.cache.serializers.DomainSerializers;
+import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.FileUtil;
+import org.moire.ultrasonic.util.Util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 /**
  * This class is responsible for the serialization / deserialization
  * of the DownloadQueue (playlist) to the filesystem.
  * It also serializes the player state e.g. current playing number and play position.
+ *
+ * The queue is stored in two files. The queue file starts with a fixed size header holding the
+ * player state, which is overwritten in place, followed by a log of queue operations (add, truncate, update)
+ * which only reference the songs by id and the offset of their metadata. The metadata file holds the
+ * songs themselves, written when they are first added and again when their metadata changes.
+ * The Downloader tracks which part of the playlist changed, only that part is copied and appended to the log.
+ * Both files are compacted when the log or the metadata has grown much larger than the queue.
+ * The metadata is then written to a new file, numbered by the generation stored in the header of the queue,
+ * so the files in use stay intact until the new queue file replaces the old one.
  */
 public class DownloadQueueSerializer
 {
-    public final Lock lock = new ReentrantLock();
+    private static final int FORMAT_VERSION = 3;
+    // Version 2 kept the metadata in a single file without a generation, which was replaced in place
+    private static final int SINGLE_METADATA_FILE_VERSION = 2;
+    // Version 1 guarded the state with an xor of its values, and logged removals instead of truncations
+    private static final int XOR_CHECKSUM_VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int SINGLE_METADATA_FILE_HEADER_SIZE = 16;
+    private static final int STATE_OFFSET = 8;
+    // The metadata file of the versions before generations were stored
+    private static final int NO_GENERATION = 0;
+
+    private static final byte OP_ADD = 1;
+    // Only read, version 1 wrote them
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_TRUNCATE = 4;
+    private static final byte OP_UPDATE = 5;
+
+    // Stands in for the id of songs without one, their metadata is never shared
+    private static final String NO_ID = "";
+
+    // Compact when the files hold this many more records than needed, plus a constant to avoid compacting small queues constantly
+    private static final int COMPACTION_FACTOR = 2;
+    private static final int COMPACTION_SLACK = 64;
+
     public final AtomicBoolean setup = new AtomicBoolean(false);
-    private Context context;
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicReference<Snapshot> pending = new AtomicReference<Snapshot>();
+    private final Serial serial = new ByteBufferSerial(new SerializationContext()
+    {
+        @Override
+        public boolean isDebug()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isRelease()
+        {
+            return true;
+        }
+    });
+
+    // The queue as it is stored in the files, only accessed while holding the lock of this object.
+    // The metadata offsets are kept by id, as a song is stored once however often it is on the queue.
+    private final List<String> storedIds = new ArrayList<String>();
+    private final Map<String, Long> metadataOffsets = new HashMap<String, Long>();
+    private int generation = NO_GENERATION;
+    private int storedIndex = -1;
+    private int storedPosition;
+    private int logRecords;
+    private int metadataRecords;
+    private boolean filesValid;
+
+    private final Runnable writer = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Thread.currentThread().setName("SerializeTask");
+            Snapshot snapshot = pending.getAndSet(null);
+            if (snapshot != null) write(snapshot);
+        }
+    };
 
     public DownloadQueueSerializer(Context context)
     {
         this.context = context;
     }
 
-    public void serializeDownloadQueue(Iterable<DownloadFile> songs, int currentPlayingIndex, int currentPlayingPosition)
+    /**
+     * Stores the playlist of the downloader in the background. Updates are coalesced, when several are requested
+     * while the previous one is being written, only the latest player state is stored, along with all changes
+     * of the playlist.
+     */
+    public void serializeDownloadQueue(Downloader downloader, int currentPlayingIndex, int currentPlayingPosition)
     {
         if (!setup.get())
         {
             return;
         }
 
-        new SerializeTask().execute(songs, currentPlayingIndex, currentPlayingPosition);
-    }
-
-    public void serializeDownloadQueueNow(Iterable<DownloadFile> songs, int currentPlayingIndex, int currentPlayingPosition)
-    {
-        State state = new State();
-        for (DownloadFile downloadFile : songs)
+        Snapshot snapshot = new Snapshot(downloader, currentPlayingIndex, currentPlayingPosition);
+        if (pending.getAndSet(snapshot) == null)
         {
-            state.songs.add(downloadFile.getSong());
+            executor.execute(writer);
         }
-        state.currentPlayingIndex = currentPlayingIndex;
-        state.currentPlayingPosition = currentPlayingPosition;
+    }
 
-        Timber.i("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", state.currentPlayingIndex, state.currentPlayingPosition);
-        FileUtil.serialize(context, state, Constants.FILENAME_DOWNLOADS_SER);
+    public void serializeDownloadQueueNow(Downloader downloader, int currentPlayingIndex, int currentPlayingPosition)
+    {
+        pending.set(null);
+        write(new Snapshot(downloader, currentPlayingIndex, currentPlayingPosition));
     }
 
     public void deserializeDownloadQueue(Consumer<State> afterDeserialized)
@@ -56,33 +151,570 @@ public class DownloadQueueSerializer
         new DeserializeTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, afterDeserialized);
     }
 
-    public void deserializeDownloadQueueNow(Consumer<State> afterDeserialized)
+    public synchronized void deserializeDownloadQueueNow(Consumer<State> afterDeserialized)
     {
-        State state = FileUtil.deserialize(context, Constants.FILENAME_DOWNLOADS_SER);
+        State state = read();
+
+        if (state == null)
+        {
+            state = migrate();
+        }
+
         if (state == null) return;
-        Timber.i("Deserialized currentPlayingIndex: " + state.currentPlayingIndex + ", currentPlayingPosition: " + state.currentPlayingPosition);
+        Timber.i("Deserialized currentPlayingIndex: %d, currentPlayingPosition: %d", state.currentPlayingIndex, state.currentPlayingPosition);
         afterDeserialized.accept(state);
     }
 
-    private class SerializeTask extends AsyncTask<Object, Void, Void>
+    private synchronized void write(Snapshot snapshot)
     {
-        @Override
-        protected Void doInBackground(Object... params)
+        try
+        {
+            // The changes are taken by the writer, so the caller doesn't copy the playlist
+            Changes changes = snapshot.downloader.takePlaylistChanges(!filesValid);
+
+            if (!filesValid)
+            {
+                compact(changes.songs);
+            }
+            else if (!appendChanges(changes))
+            {
+                compact(snapshot.downloader.takePlaylistChanges(true).songs);
+            }
+
+            writeState(snapshot.currentPlayingIndex, snapshot.currentPlayingPosition);
+            Timber.i("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", snapshot.currentPlayingIndex, snapshot.currentPlayingPosition);
+        }
+        catch (IOException x)
+        {
+            Timber.w(x, "Failed to serialize download queue");
+            filesValid = false;
+        }
+    }
+
+    /**
+     * Appends the operations transforming the stored queue to the changed one to the log.
+     * Takes time proportional to the changed part of the queue.
+     * @return false if the files have grown too large and should be rewritten instead
+     */
+    private boolean appendChanges(Changes changes) throws IOException
+    {
+        int stored = storedIds.size();
+        if (changes.from > stored) return false;
+
+        // The changed part may start with the songs which are stored already, as when the playlist is restored
+        int unchanged = 0;
+        while (changes.from + unchanged < stored && unchanged < changes.songs.size() &&
+                isStored(changes.from + unchanged, changes.songs.get(unchanged))) unchanged++;
+
+        int keep = changes.from + unchanged;
+        int size = changes.from + changes.songs.size();
+        List<MusicDirectory.Entry> updated = new ArrayList<MusicDirectory.Entry>();
+
+        for (MusicDirectory.Entry song : changes.updatedSongs)
+        {
+            if (metadataOffsets.containsKey(song.getId())) updated.add(song);
+        }
+
+        int records = updated.size() + (keep < stored ? 1 : 0) + changes.songs.size() - unchanged;
+        if (records == 0) return true;
+
+        if (logRecords + records > COMPACTION_FACTOR * size + COMPACTION_SLACK ||
+                metadataRecords + updated.size() > COMPACTION_FACTOR * size + COMPACTION_SLACK)
+        {
+            return false;
+        }
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(log);
+
+        // Changed metadata is written as a new record, which the songs stored with the id refer to from then on
+        for (MusicDirectory.Entry song : updated)
+        {
+            long offset = appendMetadata(song);
+            out.writeByte(OP_UPDATE);
+            out.writeUTF(song.getId());
+            out.writeLong(offset);
+            metadataOffsets.put(song.getId(), offset);
+            logRecords++;
+        }
+
+        if (keep < stored)
+        {
+            out.writeByte(OP_TRUNCATE);
+            out.writeInt(keep);
+            storedIds.subList(keep, stored).clear();
+            logRecords++;
+        }
+
+        for (int i = unchanged; i < changes.songs.size(); i++)
+        {
+            MusicDirectory.Entry song = changes.songs.get(i);
+            out.writeByte(OP_ADD);
+            out.writeUTF(getKey(song));
+            out.writeLong(getMetadataOffset(song));
+            storedIds.add(getKey(song));
+            logRecords++;
+        }
+
+        appendToFile(getQueueFile(), log.toByteArray());
+        return true;
+    }
+
+    private long getMetadataOffset(MusicDirectory.Entry song) throws IOException
+    {
+        Long offset = song.getId() == null ? null : metadataOffsets.get(song.getId());
+        if (offset != null) return offset;
+
+        long position = appendMetadata(song);
+        if (song.getId() != null) metadataOffsets.put(song.getId(), position);
+        return position;
+    }
+
+    private long appendMetadata(MusicDirectory.Entry song) throws IOException
+    {
+        File file = getMetadataFile(generation);
+        long position = file.length();
+        appendToFile(file, toRecord(song));
+        metadataRecords++;
+        return position;
+    }
+
+    private boolean isStored(int position, MusicDirectory.Entry song)
+    {
+        return song.getId() != null && song.getId().equals(storedIds.get(position));
+    }
+
+    private static String getKey(MusicDirectory.Entry song)
+    {
+        return song.getId() == null ? NO_ID : song.getId();
+    }
+
+    /**
+     * Rewrites both files with only the records needed for the given queue. The metadata goes to the file of
+     * the next generation, and the queue file referencing it replaces the old one with a single rename.
+     * A crash before the rename leaves the old files in use, the metadata of the old generation is only
+     * deleted after it.
+     */
+    private void compact(List<MusicDirectory.Entry> songs) throws IOException
+    {
+        File queueFile = getQueueFile();
+        File queueTmp = new File(queueFile.getPath() + ".tmp");
+
+        // A file of the next generation may be left by an interrupted compaction, it isn't referenced
+        int nextGeneration = generation + 1;
+        while (getMetadataFile(nextGeneration).exists()) nextGeneration++;
+        File metadataFile = getMetadataFile(nextGeneration);
+
+        ByteArrayOutputStream queue = new ByteArrayOutputStream(HEADER_SIZE + songs.size() * 32);
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream(songs.size() * 256);
+        DataOutputStream queueOut = new DataOutputStream(queue);
+        Map<String, Long> offsets = new HashMap<String, Long>();
+
+        queueOut.writeInt(FORMAT_VERSION);
+        queueOut.writeInt(nextGeneration);
+        writeStateRecord(queueOut, storedIndex, storedPosition);
+
+        int records = 0;
+
+        for (MusicDirectory.Entry song : songs)
+        {
+            Long offset = song.getId() == null ? null : offsets.get(song.getId());
+            if (offset == null)
+            {
+                offset = (long) metadata.size();
+                metadata.write(toRecord(song));
+                if (song.getId() != null) offsets.put(song.getId(), offset);
+                records++;
+            }
+
+            queueOut.writeByte(OP_ADD);
+            queueOut.writeUTF(getKey(song));
+            queueOut.writeLong(offset);
+        }
+
+        writeFile(metadataFile, metadata.toByteArray());
+        writeFile(queueTmp, queue.toByteArray());
+
+        if (!queueTmp.renameTo(queueFile))
+        {
+            Util.delete(metadataFile);
+            Util.delete(queueTmp);
+            throw new IOException("Failed to replace download queue file");
+        }
+
+        generation = nextGeneration;
+        deleteStaleMetadata();
+
+        storedIds.clear();
+        for (MusicDirectory.Entry song : songs) storedIds.add(getKey(song));
+        metadataOffsets.clear();
+        metadataOffsets.putAll(offsets);
+        logRecords = songs.size();
+        metadataRecords = records;
+        filesValid = true;
+
+        Timber.i("Compacted download queue files, %d songs", songs.size());
+    }
+
+    /**
+     * Deletes the metadata files of other generations than the current one, left by compactions.
+     */
+    private void deleteStaleMetadata()
+    {
+        String current = getMetadataFile(generation).getName();
+        File[] files = context.getCacheDir().listFiles();
+        if (files == null) return;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.startsWith(Constants.FILENAME_DOWNLOADS_METADATA) && !name.equals(current)) Util.delete(file);
+        }
+    }
+
+    /**
+     * Overwrites the player state in the header of the queue file, always the same 12 bytes.
+     */
+    private void writeState(int currentPlayingIndex, int currentPlayingPosition) throws IOException
+    {
+        if (storedIndex == currentPlayingIndex && storedPosition == currentPlayingPosition) return;
+
+        ByteArrayOutputStream state = new ByteArrayOutputStream(HEADER_SIZE - STATE_OFFSET);
+        writeStateRecord(new DataOutputStream(state), currentPlayingIndex, currentPlayingPosition);
+
+        RandomAccessFile file = new RandomAccessFile(getQueueFile(), "rw");
+        try
+        {
+            file.seek(STATE_OFFSET);
+            file.write(state.toByteArray());
+        }
+        finally
+        {
+            Util.close(file);
+        }
+
+        storedIndex = currentPlayingIndex;
+        storedPosition = currentPlayingPosition;
+    }
+
+    // The checksum guards against a torn write of the state
+    private static void writeStateRecord(DataOutputStream out, int currentPlayingIndex, int currentPlayingPosition) throws IOException
+    {
+        out.writeInt(currentPlayingIndex);
+        out.writeInt(currentPlayingPosition);
+        out.writeInt(getStateChecksum(FORMAT_VERSION, currentPlayingIndex, currentPlayingPosition));
+    }
+
+    private static int getStateChecksum(int version, int currentPlayingIndex, int currentPlayingPosition)
+    {
+        if (version == XOR_CHECKSUM_VERSION) return currentPlayingIndex ^ currentPlayingPosition ^ version;
+
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(12).putInt(version).putInt(currentPlayingIndex).putInt(currentPlayingPosition).array());
+        return (int) crc.getValue();
+    }
+
+    private State read()
+    {
+        File queueFile = getQueueFile();
+        if (!queueFile.isFile()) return null;
+
+        RandomAccessFile metadata = null;
+        List<String> ids = new ArrayList<String>();
+        List<Long> offsets = new ArrayList<Long>();
+        // Songs with the same id share a metadata record, and every song is added with the latest record of its id.
+        // So an update applies to all positions of the id, it is enough to keep the latest offset of each id.
+        Map<String, Long> latestOffsets = new HashMap<String, Long>();
+        State state = new State();
+        int records = 0;
+
+        try
         {
-            if (lock.tryLock())
+            // The log only holds ids and offsets, it is small enough to be read at once
+            ByteArrayInputStream data = new ByteArrayInputStream(readFile(queueFile));
+            DataInputStream in = new DataInputStream(data);
+            int version = in.readInt();
+            if (version != FORMAT_VERSION && version != SINGLE_METADATA_FILE_VERSION && version != XOR_CHECKSUM_VERSION) return null;
+
+            int fileGeneration = version == FORMAT_VERSION ? in.readInt() : NO_GENERATION;
+
+            int index = in.readInt();
+            int position = in.readInt();
+            if (in.readInt() != getStateChecksum(version, index, position))
             {
-                try
+                index = -1;
+                position = 0;
+            }
+
+            state.currentPlayingIndex = index;
+            state.currentPlayingPosition = position;
+
+            // Replay the log. A record cut short by a crash ends it, the rest of the file is discarded.
+            long validLength = version == FORMAT_VERSION ? HEADER_SIZE : SINGLE_METADATA_FILE_HEADER_SIZE;
+            try
+            {
+                while (data.available() > 0)
                 {
-                    Thread.currentThread().setName("SerializeTask");
-                    serializeDownloadQueueNow((Iterable<DownloadFile>)params[0], (int)params[1], (int)params[2]);
+                    byte op = in.readByte();
+
+                    if (op == OP_ADD)
+                    {
+                        String id = in.readUTF();
+                        long offset = in.readLong();
+                        ids.add(id);
+                        offsets.add(offset);
+                        if (!NO_ID.equals(id)) latestOffsets.put(id, offset);
+                    }
+                    else if (op == OP_REMOVE)
+                    {
+                        int removed = in.readInt();
+                        ids.remove(removed);
+                        offsets.remove(removed);
+                    }
+                    else if (op == OP_CLEAR)
+                    {
+                        ids.clear();
+                        offsets.clear();
+                    }
+                    else if (op == OP_TRUNCATE)
+                    {
+                        int size = in.readInt();
+                        ids.subList(size, ids.size()).clear();
+                        offsets.subList(size, offsets.size()).clear();
+                    }
+                    else if (op == OP_UPDATE)
+                    {
+                        latestOffsets.put(in.readUTF(), in.readLong());
+                    }
+                    else
+                    {
+                        break;
+                    }
+
+                    validLength = queueFile.length() - data.available();
+                    records++;
                 }
-                finally
+            }
+            catch (EOFException x)
+            {
+                Timber.w("Download queue log ends with an incomplete record");
+            }
+
+            if (validLength < queueFile.length()) truncate(queueFile, validLength);
+
+            for (int i = 0; i < ids.size(); i++)
+            {
+                if (!NO_ID.equals(ids.get(i))) offsets.set(i, latestOffsets.get(ids.get(i)));
+            }
+
+            // Only the metadata of the songs which are still in the queue is read
+            generation = fileGeneration;
+            metadata = new RandomAccessFile(getMetadataFile(generation), "r");
+            Map<Long, MusicDirectory.Entry> songs = new HashMap<Long, MusicDirectory.Entry>();
+            long liveMetadataLength = 0;
+
+            for (Long offset : offsets)
+            {
+                MusicDirectory.Entry song = songs.get(offset);
+                if (song == null)
                 {
-                    lock.unlock();
+                    song = readRecord(metadata, offset);
+                    songs.put(offset, song);
+                    liveMetadataLength += metadata.getFilePointer() - offset;
                 }
+
+                state.songs.add(song);
+            }
+
+            storedIds.clear();
+            storedIds.addAll(ids);
+            metadataOffsets.clear();
+            for (int i = 0; i < ids.size(); i++)
+            {
+                if (!NO_ID.equals(ids.get(i))) metadataOffsets.put(ids.get(i), offsets.get(i));
             }
+            storedIndex = state.currentPlayingIndex;
+            storedPosition = state.currentPlayingPosition;
+            logRecords = records;
+            metadataRecords = songs.size();
+            filesValid = true;
+
+            // Records of songs which were removed in earlier sessions aren't counted, check the size of the file instead.
+            // Files of the previous version are rewritten, as the state is written with the current checksum.
+            if (version != FORMAT_VERSION || metadata.length() > COMPACTION_FACTOR * liveMetadataLength + COMPACTION_SLACK * 1024L)
+            {
+                Util.close(metadata);
+                metadata = null;
+                compact(state.songs);
+            }
+            else
+            {
+                deleteStaleMetadata();
+            }
+
+            return state;
+        }
+        catch (Exception x)
+        {
+            Timber.w(x, "Failed to deserialize download queue from %s", queueFile);
+            filesValid = false;
             return null;
         }
+        finally
+        {
+            Util.close(metadata);
+        }
+    }
+
+    /**
+     * Reads the queue stored by the previous versions with Java serialization, and removes it.
+     */
+    private State migrate()
+    {
+        State state = FileUtil.deserialize(context, Constants.FILENAME_DOWNLOADS_SER);
+        if (state == null) return null;
+
+        Util.delete(new File(context.getCacheDir(), Constants.FILENAME_DOWNLOADS_SER));
+        storedIndex = -1;
+        storedPosition = 0;
+
+        try
+        {
+            compact(state.songs);
+            writeState(state.currentPlayingIndex, state.currentPlayingPosition);
+        }
+        catch (IOException x)
+        {
+            Timber.w(x, "Failed to migrate download queue");
+            filesValid = false;
+        }
+
+        return state;
+    }
+
+    private byte[] toRecord(MusicDirectory.Entry song) throws IOException
+    {
+        byte[] data = serial.toByteArray(song, DomainSerializers.getMusicDirectoryEntrySerializer());
+        ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + 4);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(data.length);
+        out.write(data);
+        return record.toByteArray();
+    }
+
+    private MusicDirectory.Entry readRecord(RandomAccessFile file, long offset) throws Exception
+    {
+        file.seek(offset);
+        byte[] data = new byte[file.readInt()];
+        file.readFully(data);
+        MusicDirectory.Entry song = serial.fromByteArray(data, DomainSerializers.getMusicDirectoryEntrySerializer());
+        if (song == null) throw new IOException(String.format("Invalid metadata record at %d", offset));
+        return song;
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+        finally
+        {
+            Util.close(in);
+        }
+    }
+
+    private static void appendToFile(File file, byte[] data) throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try
+        {
+            out.seek(out.length());
+            out.write(data);
+        }
+        finally
+        {
+            Util.close(out);
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try
+        {
+            out.setLength(0);
+            out.write(data);
+            out.getFD().sync();
+        }
+        finally
+        {
+            Util.close(out);
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try
+        {
+            out.setLength(length);
+        }
+        finally
+        {
+            Util.close(out);
+        }
+    }
+
+    private File getQueueFile()
+    {
+        return new File(context.getCacheDir(), Constants.FILENAME_DOWNLOADS_QUEUE);
+    }
+
+    private File getMetadataFile(int generation)
+    {
+        String name = Constants.FILENAME_DOWNLOADS_METADATA;
+        if (generation != NO_GENERATION) name += "." + generation;
+        return new File(context.getCacheDir(), name);
+    }
+
+    /**
+     * The player state when an update was requested. The changes of the playlist are taken from the
+     * downloader when the update is written.
+     */
+    private static class Snapshot
+    {
+        final Downloader downloader;
+        final int currentPlayingIndex;
+        final int currentPlayingPosition;
+
+        Snapshot(Downloader downloader, int currentPlayingIndex, int currentPlayingPosition)
+        {
+            this.downloader = downloader;
+            this.currentPlayingIndex = currentPlayingIndex;
+            this.currentPlayingPosition = currentPlayingPosition;
+        }
+    }
+
+    /**
+     * The changes of the playlist since they were last stored: the songs from the first changed position
+     * to the end of the playlist, and the songs whose metadata changed.
+     */
+    static class Changes
+    {
+        final int from;
+        final List<MusicDirectory.Entry> songs;
+        final Collection<MusicDirectory.Entry> updatedSongs;
+
+        Changes(int from, List<MusicDirectory.Entry> songs, Collection<MusicDirectory.Entry> updatedSongs)
+        {
+            this.from = from;
+            this.songs = songs;
+            this.updatedSongs = updatedSongs;
+        }
     }
 
     private class DeserializeTask extends AsyncTask<Object, Void, Void>
@@ -90,17 +722,9 @@ public class DownloadQueueSerializer
         @Override
         protected Void doInBackground(Object... params)
         {
-            try
-            {
-                Thread.currentThread().setName("DeserializeTask");
-                lock.lock();
-                deserializeDownloadQueueNow((Consumer<State>)params[0]);
-                setup.set(true);
-            }
-            finally
-            {
-                lock.unlock();
-            }
+            Thread.currentThread().setName("DeserializeTask");
+            deserializeDownloadQueueNow((Consumer<State>)params[0]);
+            setup.set(true);
 
             return null;
         }
@@ -1,20 +1,29 @@
 package org.moire.ultrasonic.service;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import timber.log.Timber;
 
 import org.moire.ultrasonic.domain.MusicDirectory;
-import org.moire.ultrasonic.util.LRUCache;
+import org.moire.ultrasonic.util.BoundedCache;
 import org.moire.ultrasonic.util.ShufflePlayBuffer;
 import org.moire.ultrasonic.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import kotlin.Lazy;
 
@@ -28,52 +37,64 @@ import static org.moire.ultrasonic.domain.PlayerState.STARTED;
  */
 public class Downloader
 {
+    private static final long FALLBACK_CHECK_DELAY_SECONDS = 30;
+
     public final List<DownloadFile> downloadList = new ArrayList<>();
     public final List<DownloadFile> backgroundDownloadList = new ArrayList<>();
-    public DownloadFile currentDownloading;
 
     private final ShufflePlayBuffer shufflePlayBuffer;
     private final ExternalStorageMonitor externalStorageMonitor;
     private final LocalMediaPlayer localMediaPlayer;
+    private final PlaybackStateNotifier playbackStateNotifier;
     private final Context context;
 
     // TODO: This is a circular reference, try to remove
     private Lazy<JukeboxMediaPlayer> jukeboxMediaPlayer = inject(JukeboxMediaPlayer.class);
 
     private final List<DownloadFile> cleanupCandidates = new ArrayList<>();
-    private final LRUCache<MusicDirectory.Entry, DownloadFile> downloadFileCache = new LRUCache<>(100);
-    private ScheduledExecutorService executorService;
+    private final List<DownloadFile> activelyDownloading = new ArrayList<>();
+    private final BoundedCache<String, DownloadFile> downloadFileCache = new BoundedCache<>(100);
+
+    // The files on the playlist and the background downloads by song id, rebuilt when the lists have changed.
+    // Every change of the lists must go through listChanged(), and of the playlist through playlistChanged().
+    private final Map<String, DownloadFile> downloadListIndex = new HashMap<>();
+    private final Map<String, DownloadFile> backgroundDownloadListIndex = new HashMap<>();
+    private long indexRevision = -1;
+    private final AtomicBoolean checkPending = new AtomicBoolean();
+    private volatile ScheduledExecutorService executorService;
+    private ScheduledFuture<?> fallbackCheck;
+    private BroadcastReceiver networkReceiver;
     private long revision;
+    // The part of the playlist the serializer has to store again: the positions from changedFrom on,
+    // and the songs whose metadata changed
+    private int changedFrom;
+    private final Map<String, MusicDirectory.Entry> changedSongs = new HashMap<>();
 
     public Downloader(Context context, ShufflePlayBuffer shufflePlayBuffer, ExternalStorageMonitor externalStorageMonitor,
-                      LocalMediaPlayer localMediaPlayer)
+                      LocalMediaPlayer localMediaPlayer, PlaybackStateNotifier playbackStateNotifier)
     {
         this.context = context;
         this.shufflePlayBuffer = shufflePlayBuffer;
         this.externalStorageMonitor = externalStorageMonitor;
         this.localMediaPlayer = localMediaPlayer;
+        this.playbackStateNotifier = playbackStateNotifier;
     }
 
     public void onCreate()
     {
-        Runnable downloadChecker = new Runnable()
+        executorService = Executors.newSingleThreadScheduledExecutor();
+
+        networkReceiver = new BroadcastReceiver()
         {
             @Override
-            public void run()
+            public void onReceive(Context context, Intent intent)
             {
-                try
-                {
-                    checkDownloads();
-                }
-                catch (Throwable x)
-                {
-                    Timber.e(x,"checkDownloads() failed.");
-                }
+                checkDownloads();
             }
         };
+        context.registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
 
-        executorService = Executors.newSingleThreadScheduledExecutor();
-        executorService.scheduleWithFixedDelay(downloadChecker, 5, 5, TimeUnit.SECONDS);
+        checkDownloads();
         Timber.i("Downloader created");
     }
 
@@ -87,68 +108,196 @@ public class Downloader
 
     public void stop()
     {
-        if (executorService != null) executorService.shutdown();
+        if (networkReceiver != null)
+        {
+            context.unregisterReceiver(networkReceiver);
+            networkReceiver = null;
+        }
+
+        if (executorService != null) executorService.shutdownNow();
         Timber.i("Downloader stopped");
     }
 
-    public synchronized void checkDownloads()
+    /**
+     * Requests the download queue to be checked as soon as possible.
+     * Requests arriving before the check has started are coalesced into a single check.
+     * Must be called whenever something changes which may affect what should be downloading:
+     * the playlist, the current playing file, the network state or the result of a download.
+     */
+    public void checkDownloads()
     {
-        if (!Util.isExternalStoragePresent() || !externalStorageMonitor.isExternalStorageAvailable())
+        ScheduledExecutorService executor = executorService;
+        if (executor == null || executor.isShutdown()) return;
+
+        if (checkPending.compareAndSet(false, true))
+        {
+            try
+            {
+                executor.execute(downloadChecker);
+            }
+            catch (RejectedExecutionException x)
+            {
+                checkPending.set(false);
+            }
+        }
+    }
+
+    private final Runnable downloadChecker = new Runnable()
+    {
+        @Override
+        public void run()
         {
+            checkPending.set(false);
+            runCheck(false);
+        }
+    };
+
+    private final Runnable fallbackChecker = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            runCheck(true);
+        }
+    };
+
+    private void runCheck(boolean retryFailed)
+    {
+        boolean retryLater;
+
+        try
+        {
+            retryLater = checkDownloadsNow(retryFailed);
+        }
+        catch (Throwable x)
+        {
+            Timber.e(x,"checkDownloads() failed.");
+            retryLater = true;
+        }
+
+        scheduleFallbackCheck(retryLater);
+    }
+
+    // Polling is only needed for the cases where no event will signal the change, e.g. retrying a failed download
+    private synchronized void scheduleFallbackCheck(boolean needed)
+    {
+        if (!needed)
+        {
+            if (fallbackCheck != null) fallbackCheck.cancel(false);
+            fallbackCheck = null;
             return;
         }
 
+        if (fallbackCheck != null && !fallbackCheck.isDone()) return;
+        if (executorService == null || executorService.isShutdown()) return;
+
+        fallbackCheck = executorService.schedule(fallbackChecker, FALLBACK_CHECK_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts and cancels downloads according to the current state of the playlist.
+     * @param retryFailed true if the downloads which have failed earlier should be started again
+     * @return true if there is work left which no event will trigger, so the queue should be checked again later
+     */
+    private synchronized boolean checkDownloadsNow(boolean retryFailed)
+    {
+        if (!Util.isExternalStoragePresent() || !externalStorageMonitor.isExternalStorageAvailable())
+        {
+            return !downloadList.isEmpty() || !backgroundDownloadList.isEmpty();
+        }
+
         if (shufflePlayBuffer.isEnabled)
         {
             checkShufflePlay(context);
         }
 
+        // The shuffle buffer is filled asynchronously, so check again until the list is complete
+        boolean retryLater = shufflePlayBuffer.isEnabled && downloadList.size() < Util.getMaxSongs(context);
+
         if (jukeboxMediaPlayer.getValue().isEnabled() || !Util.isNetworkConnected(context))
         {
-            return;
+            return retryLater;
+        }
+
+        // Forget the downloads which have finished, failed or were cancelled
+        Iterator<DownloadFile> iterator = activelyDownloading.iterator();
+        while (iterator.hasNext())
+        {
+            if (!iterator.next().isDownloading()) iterator.remove();
         }
 
         if (downloadList.isEmpty() && backgroundDownloadList.isEmpty())
         {
-            return;
+            return retryLater;
         }
 
-        // Need to download current playing?
-        if (localMediaPlayer.currentPlaying != null && localMediaPlayer.currentPlaying != currentDownloading && !localMediaPlayer.currentPlaying.isWorkDone())
+        List<DownloadFile> wanted = getDownloadsByPriority(Util.getParallelDownloads(context), retryFailed);
+
+        // Cancel the downloads which were outranked, they will resume from their partial file later
+        for (DownloadFile downloadFile : activelyDownloading)
         {
-            // Cancel current download, if necessary.
-            if (currentDownloading != null)
+            if (!wanted.contains(downloadFile) && !downloadFile.isWorkDone() && !downloadFile.isFailed())
             {
-                currentDownloading.cancelDownload();
+                downloadFile.cancelDownload();
             }
+        }
 
-            currentDownloading = localMediaPlayer.currentPlaying;
-            currentDownloading.download();
-            cleanupCandidates.add(currentDownloading);
+        int currentIndex = localMediaPlayer.currentPlaying == null ? -1 : getCurrentPlayingIndex();
+        List<DownloadFile> downloading = new ArrayList<>(wanted.size());
 
-            // Delete obsolete .partial and .complete files.
-            cleanup();
-            return;
+        for (DownloadFile downloadFile : wanted)
+        {
+            if (!activelyDownloading.contains(downloadFile))
+            {
+                // A cancelled download may still be winding down, it will be picked up again when it has stopped
+                if (downloadFile.isDownloading()) continue;
+
+                downloadFile.download();
+                cleanupCandidates.add(downloadFile);
+
+                int index = downloadList.indexOf(downloadFile);
+                if (index != -1 && index == currentIndex + 1)
+                {
+                    // The next file on the playlist is currently downloading
+                    localMediaPlayer.setNextPlayerState(DOWNLOADING);
+                }
+            }
+
+            downloading.add(downloadFile);
         }
 
-        // Find a suitable target for download.
-        if (currentDownloading != null &&
-                !currentDownloading.isWorkDone() &&
-                (!currentDownloading.isFailed() || (downloadList.isEmpty() && backgroundDownloadList.isEmpty())))
+        activelyDownloading.clear();
+        activelyDownloading.addAll(downloading);
+
+        // Delete obsolete .partial and .complete files.
+        cleanup();
+        return retryLater || hasFailedDownloads();
+    }
+
+    /**
+     * Collects at most maxCount files which should be downloading now, highest priority first:
+     * the current playing file, then the files following it on the playlist up to the preload count
+     * (files which should be saved are not limited by it), then the background downloads.
+     * Files which have failed to download are only included when includeFailed is set, the current playing one as well:
+     * a download which ends calls checkDownloads(), so retrying it at once would hammer a failing server.
+     */
+    private List<DownloadFile> getDownloadsByPriority(int maxCount, boolean includeFailed)
+    {
+        List<DownloadFile> result = new ArrayList<>(maxCount);
+        DownloadFile currentPlaying = localMediaPlayer.currentPlaying;
+
+        if (currentPlaying != null && !currentPlaying.isWorkDone() && (includeFailed || !currentPlaying.isFailed()))
         {
-            cleanup();
-            return;
+            result.add(currentPlaying);
         }
 
-        // There is a target to download
-        currentDownloading = null;
         int n = downloadList.size();
-
+        int preloadCount = Util.getPreloadCount(context);
         int preloaded = 0;
 
         if (n != 0)
         {
-            int start = localMediaPlayer.currentPlaying == null ? 0 : getCurrentPlayingIndex();
+            int start = currentPlaying == null ? 0 : getCurrentPlayingIndex();
             if (start == -1) start = 0;
 
             int i = start;
@@ -156,60 +305,69 @@ public class Downloader
             do
             {
                 DownloadFile downloadFile = downloadList.get(i);
-                if (!downloadFile.isWorkDone())
+                if (downloadFile != currentPlaying)
                 {
-                    if (downloadFile.shouldSave() || preloaded < Util.getPreloadCount(context))
+                    if (!downloadFile.isWorkDone())
                     {
-                        currentDownloading = downloadFile;
-                        currentDownloading.download();
-                        cleanupCandidates.add(currentDownloading);
-                        if (i == (start + 1))
+                        if (downloadFile.shouldSave() || preloaded < preloadCount)
                         {
-                            // The next file on the playlist is currently downloading
-                            localMediaPlayer.setNextPlayerState(DOWNLOADING);
+                            if (result.size() < maxCount && (includeFailed || !downloadFile.isFailed()))
+                            {
+                                result.add(downloadFile);
+                            }
+                            preloaded++;
                         }
-                        break;
                     }
-                }
-                else if (localMediaPlayer.currentPlaying != downloadFile)
-                {
-                    preloaded++;
+                    else
+                    {
+                        preloaded++;
+                    }
                 }
 
                 i = (i + 1) % n;
-            } while (i != start);
+            } while (i != start && result.size() < maxCount);
         }
 
-        // If the downloadList contains no work, check the backgroundDownloadList
-        if ((preloaded + 1 == n || preloaded >= Util.getPreloadCount(context) || downloadList.isEmpty()) && !backgroundDownloadList.isEmpty())
+        for (int i = 0; i < backgroundDownloadList.size() && result.size() < maxCount; i++)
         {
-            for (int i = 0; i < backgroundDownloadList.size(); i++)
+            DownloadFile downloadFile = backgroundDownloadList.get(i);
+            if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
             {
-                DownloadFile downloadFile = backgroundDownloadList.get(i);
-                if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
+                if (Util.getShouldScanMedia(context))
                 {
-                    if (Util.getShouldScanMedia(context))
-                    {
-                        Util.scanMedia(context, downloadFile.getCompleteFile());
-                    }
-
-                    // Don't need to keep list like active song list
-                    backgroundDownloadList.remove(i);
-                    revision++;
-                    i--;
-                }
-                else
-                {
-                    currentDownloading = downloadFile;
-                    currentDownloading.download();
-                    cleanupCandidates.add(currentDownloading);
-                    break;
+                    Util.scanMedia(context, downloadFile.getCompleteFile());
                 }
+
+                // Don't need to keep list like active song list
+                backgroundDownloadList.remove(i);
+                listChanged();
+                i--;
+            }
+            else if (!result.contains(downloadFile) && (includeFailed || !downloadFile.isFailed()))
+            {
+                result.add(downloadFile);
             }
         }
 
-        // Delete obsolete .partial and .complete files.
-        cleanup();
+        return result;
+    }
+
+    private boolean hasFailedDownloads()
+    {
+        DownloadFile currentPlaying = localMediaPlayer.currentPlaying;
+        if (currentPlaying != null && currentPlaying.isFailed()) return true;
+
+        for (DownloadFile downloadFile : downloadList)
+        {
+            if (downloadFile.isFailed()) return true;
+        }
+
+        for (DownloadFile downloadFile : backgroundDownloadList)
+        {
+            if (downloadFile.isFailed()) return true;
+        }
+
+        return false;
     }
 
     public synchronized int getCurrentPlayingIndex()
@@ -250,43 +408,155 @@ public class Downloader
         return temp;
     }
 
+    /**
+     * Returns the download with the highest priority which is in progress, or null if there is none
+     */
+    public synchronized DownloadFile getCurrentDownloading()
+    {
+        return activelyDownloading.isEmpty() ? null : activelyDownloading.get(0);
+    }
+
+    public synchronized void cancelActiveDownloads()
+    {
+        for (DownloadFile downloadFile : activelyDownloading)
+        {
+            downloadFile.cancelDownload();
+        }
+
+        activelyDownloading.clear();
+    }
+
     public long getDownloadListUpdateRevision()
     {
         return revision;
     }
 
+    // Must be called whenever the playlist or the background downloads have changed
+    private void listChanged()
+    {
+        revision++;
+        playbackStateNotifier.notifyPlaylistChanged();
+    }
+
+    // Must be called whenever the playlist has changed, from is the first position which may differ
+    private void playlistChanged(int from)
+    {
+        changedFrom = Math.min(changedFrom, from);
+        listChanged();
+    }
+
+    /**
+     * Returns the changes of the playlist since they were last taken: the songs from the first changed
+     * position to the end, and the songs whose metadata changed. All songs are returned if requested.
+     */
+    synchronized DownloadQueueSerializer.Changes takePlaylistChanges(boolean all)
+    {
+        int from = all ? 0 : Math.min(changedFrom, downloadList.size());
+        List<MusicDirectory.Entry> songs = new ArrayList<>(downloadList.size() - from);
+
+        for (int i = from; i < downloadList.size(); i++)
+        {
+            songs.add(downloadList.get(i).getSong());
+        }
+
+        List<MusicDirectory.Entry> updatedSongs = new ArrayList<>(changedSongs.values());
+        changedFrom = Integer.MAX_VALUE;
+        changedSongs.clear();
+
+        return new DownloadQueueSerializer.Changes(from, songs, updatedSongs);
+    }
+
+    /**
+     * Records that the metadata of a song on the playlist, like its rating, has changed.
+     */
+    public synchronized void songChanged(MusicDirectory.Entry song)
+    {
+        updateIndex();
+        String id = song.getId();
+        if (id != null && downloadListIndex.containsKey(id)) changedSongs.put(id, song);
+    }
+
     public synchronized void clear()
     {
+        cancelActiveDownloads(downloadList);
         downloadList.clear();
-        revision++;
-        if (currentDownloading != null)
+        playlistChanged(0);
+        checkDownloads();
+    }
+
+    private synchronized void clearBackground()
+    {
+        cancelActiveDownloads(backgroundDownloadList);
+        backgroundDownloadList.clear();
+        listChanged();
+    }
+
+    /**
+     * Removes the files from the playlist which are not completely downloaded.
+     */
+    public synchronized void clearIncomplete()
+    {
+        Iterator<DownloadFile> iterator = downloadList.iterator();
+        int index = 0;
+        int firstRemoved = downloadList.size();
+
+        while (iterator.hasNext())
         {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+            DownloadFile downloadFile = iterator.next();
+            if (!downloadFile.isCompleteFileAvailable())
+            {
+                iterator.remove();
+                firstRemoved = Math.min(firstRemoved, index);
+            }
+            index++;
         }
+
+        playlistChanged(firstRemoved);
+        checkDownloads();
     }
 
-    private void clearBackground()
+    private void cancelActiveDownloads(List<DownloadFile> list)
     {
-        if (currentDownloading != null && backgroundDownloadList.contains(currentDownloading))
+        Iterator<DownloadFile> iterator = activelyDownloading.iterator();
+        while (iterator.hasNext())
         {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+            DownloadFile downloadFile = iterator.next();
+            if (list.contains(downloadFile))
+            {
+                downloadFile.cancelDownload();
+                iterator.remove();
+            }
         }
-        backgroundDownloadList.clear();
     }
 
     public synchronized void removeDownloadFile(DownloadFile downloadFile)
     {
-        if (downloadFile == currentDownloading)
+        if (activelyDownloading.remove(downloadFile))
         {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+            downloadFile.cancelDownload();
+        }
+
+        int index = downloadList.indexOf(downloadFile);
+        if (index != -1)
+        {
+            downloadList.remove(index);
+            playlistChanged(index);
         }
 
-        downloadList.remove(downloadFile);
         backgroundDownloadList.remove(downloadFile);
-        revision++;
+        listChanged();
+        checkDownloads();
+    }
+
+    /**
+     * Moves the file at the position from of the playlist to the position to.
+     */
+    public synchronized void moveDownloadFile(int from, int to)
+    {
+        if (from == to) return;
+
+        downloadList.add(to, downloadList.remove(from));
+        playlistChanged(Math.min(from, to));
     }
 
     public synchronized void download(List<MusicDirectory.Entry> songs, boolean save, boolean autoPlay, boolean playNext, boolean newPlaylist)
@@ -304,6 +574,8 @@ public class Downloader
             downloadList.clear();
         }
 
+        int changedFrom = newPlaylist ? 0 : downloadList.size();
+
         if (playNext)
         {
             if (autoPlay && getCurrentPlayingIndex() >= 0)
@@ -311,6 +583,8 @@ public class Downloader
                 offset = 0;
             }
 
+            changedFrom = Math.min(changedFrom, getCurrentPlayingIndex() + offset);
+
             for (MusicDirectory.Entry song : songs)
             {
                 DownloadFile downloadFile = new DownloadFile(context, song, save);
@@ -326,7 +600,8 @@ public class Downloader
                 downloadList.add(downloadFile);
             }
         }
-        revision++;
+        playlistChanged(changedFrom);
+        checkDownloads();
     }
 
     public synchronized void downloadBackground(List<MusicDirectory.Entry> songs, boolean save)
@@ -337,7 +612,7 @@ public class Downloader
             backgroundDownloadList.add(downloadFile);
         }
 
-        revision++;
+        listChanged();
 
         checkDownloads();
     }
@@ -350,42 +625,69 @@ public class Downloader
             downloadList.remove(getCurrentPlayingIndex());
             downloadList.add(0, localMediaPlayer.currentPlaying);
         }
-        revision++;
+        playlistChanged(0);
+        checkDownloads();
     }
 
+    /**
+     * Returns the DownloadFile of the song: the one on the playlist if it is downloading or downloaded,
+     * the background download of the song, or a cached one which is not on any list.
+     * Songs are matched by their id.
+     */
     public synchronized DownloadFile getDownloadFileForSong(MusicDirectory.Entry song)
     {
-        for (DownloadFile downloadFile : downloadList)
+        updateIndex();
+        String id = song.getId();
+
+        DownloadFile downloadFile = downloadListIndex.get(id);
+        if (downloadFile != null && ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.isPartialFileAvailable()) || downloadFile.isWorkDone()))
         {
-            if (downloadFile.getSong().equals(song) && ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists()) || downloadFile.isWorkDone()))
-            {
-                return downloadFile;
-            }
+            return downloadFile;
         }
-        for (DownloadFile downloadFile : backgroundDownloadList)
+
+        downloadFile = backgroundDownloadListIndex.get(id);
+        if (downloadFile != null)
         {
-            if (downloadFile.getSong().equals(song))
-            {
-                return downloadFile;
-            }
+            return downloadFile;
         }
 
-        DownloadFile downloadFile = downloadFileCache.get(song);
+        downloadFile = downloadFileCache.get(id);
         if (downloadFile == null)
         {
             downloadFile = new DownloadFile(context, song, false);
-            downloadFileCache.put(song, downloadFile);
+            downloadFileCache.put(id, downloadFile);
         }
         return downloadFile;
     }
 
+    private void updateIndex()
+    {
+        if (indexRevision == revision) return;
+
+        buildIndex(downloadList, downloadListIndex);
+        buildIndex(backgroundDownloadList, backgroundDownloadListIndex);
+        indexRevision = revision;
+    }
+
+    // A song may be on a list more than once, the first occurrence wins like in a linear search
+    private static void buildIndex(List<DownloadFile> list, Map<String, DownloadFile> index)
+    {
+        index.clear();
+
+        for (int i = list.size() - 1; i >= 0; i--)
+        {
+            DownloadFile downloadFile = list.get(i);
+            index.put(downloadFile.getSong().getId(), downloadFile);
+        }
+    }
+
     private synchronized void cleanup()
     {
         Iterator<DownloadFile> iterator = cleanupCandidates.iterator();
         while (iterator.hasNext())
         {
             DownloadFile downloadFile = iterator.next();
-            if (downloadFile != localMediaPlayer.currentPlaying && downloadFile != currentDownloading)
+            if (downloadFile != localMediaPlayer.currentPlaying && !activelyDownloading.contains(downloadFile))
             {
                 if (downloadFile.cleanup())
                 {
@@ -411,7 +713,7 @@ public class Downloader
             {
                 DownloadFile downloadFile = new DownloadFile(context, song, false);
                 downloadList.add(downloadFile);
-                revision++;
+                playlistChanged(downloadList.size() - 1);
             }
         }
 
@@ -426,7 +728,7 @@ public class Downloader
                 downloadList.add(new DownloadFile(context, song, false));
                 downloadList.get(0).cancelDownload();
                 downloadList.remove(0);
-                revision++;
+                playlistChanged(0);
             }
         }
 
@@ -30,6 +30,7 @@ import org.moire.ultrasonic.util.CancellableTask;
 import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.FileUtil;
 import org.moire.ultrasonic.util.StreamProxy;
+import org.moire.ultrasonic.util.ThroughputEstimator;
 import org.moire.ultrasonic.util.Util;
 
 import java.io.File;
@@ -49,6 +50,10 @@ import static org.moire.ultrasonic.domain.PlayerState.STARTED;
  */
 public class LocalMediaPlayer
 {
+    private static final long MIN_BUFFER_BYTES = 100000L;
+    private static final long MIN_BUFFER_SECONDS = 2L;
+    private static final double THROUGHPUT_SAFETY_FACTOR = 0.8;
+
     public Consumer<DownloadFile> onCurrentPlayingChanged;
     public Consumer<DownloadFile> onSongCompleted;
     public BiConsumer<PlayerState, DownloadFile> onPlayerStateChanged;
@@ -56,6 +61,7 @@ public class LocalMediaPlayer
     public Runnable onNextSongRequested;
 
     public PlayerState playerState = IDLE;
+    private final Object playerStateMonitor = new Object();
     public DownloadFile currentPlaying;
     public DownloadFile nextPlaying;
 
@@ -79,11 +85,16 @@ public class LocalMediaPlayer
     private int secondaryProgress = -1;
 
     private final AudioFocusHandler audioFocusHandler;
+    private final ThroughputEstimator throughputEstimator;
+    private final PlaybackStateNotifier playbackStateNotifier;
     private final Context context;
 
-    public LocalMediaPlayer(AudioFocusHandler audioFocusHandler, Context context)
+    public LocalMediaPlayer(AudioFocusHandler audioFocusHandler, ThroughputEstimator throughputEstimator,
+                            PlaybackStateNotifier playbackStateNotifier, Context context)
     {
         this.audioFocusHandler = audioFocusHandler;
+        this.throughputEstimator = throughputEstimator;
+        this.playbackStateNotifier = playbackStateNotifier;
         this.context = context;
     }
 
@@ -202,7 +213,11 @@ public class LocalMediaPlayer
     {
         Timber.i("%s -> %s (%s)", this.playerState.name(), playerState.name(), currentPlaying);
 
-        this.playerState = playerState;
+        synchronized (playerStateMonitor)
+        {
+            this.playerState = playerState;
+            playerStateMonitor.notifyAll();
+        }
 
         if (playerState == PlayerState.STARTED)
         {
@@ -226,6 +241,8 @@ public class LocalMediaPlayer
             mainHandler.post(myRunnable);
         }
 
+        playbackStateNotifier.notifyPlayerStateChanged();
+
         if (playerState == STARTED && positionCache == null)
         {
             positionCache = new PositionCache();
@@ -256,6 +273,34 @@ public class LocalMediaPlayer
             };
             mainHandler.post(myRunnable);
         }
+
+        playbackStateNotifier.notifyPlayerStateChanged();
+    }
+
+    private boolean isPlaybackStarted()
+    {
+        synchronized (playerStateMonitor)
+        {
+            return playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED;
+        }
+    }
+
+    /**
+     * Blocks until the player is started or paused, or the timeout has elapsed
+     */
+    private void waitForPlayback(long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        synchronized (playerStateMonitor)
+        {
+            while (!isPlaybackStarted())
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return;
+                playerStateMonitor.wait(remaining);
+            }
+        }
     }
 
     public synchronized void setNextPlaying(DownloadFile nextToPlay)
@@ -408,6 +453,9 @@ public class LocalMediaPlayer
 
             Bitmap lockScreenBitmap = FileUtil.getAlbumArtBitmap(context, currentSong, Util.getMinDisplayMetric(context), true);
 
+            // The remote control client recycles its artwork, it can't have the bitmap shared with the image cache
+            if (lockScreenBitmap != null) lockScreenBitmap = lockScreenBitmap.copy(lockScreenBitmap.getConfig(), false);
+
             String artist = currentSong.getArtist();
             String album = currentSong.getAlbum();
             String title = currentSong.getTitle();
@@ -865,20 +913,52 @@ public class LocalMediaPlayer
             partialFile = downloadFile.getPartialFile();
 
             long bufferLength = Util.getBufferLength(context);
+            int bitRate = downloadFile.getBitRate();
+            long byteCount;
 
             if (bufferLength == 0)
             {
                 // Set to seconds in a day, basically infinity
-                bufferLength = 86400L;
+                byteCount = bitRate * 1024L / 8L * 86400L;
+            }
+            else
+            {
+                byteCount = getAdaptiveByteCount(bitRate, bufferLength);
             }
-
-            // Calculate roughly how many bytes BUFFER_LENGTH_SECONDS corresponds to.
-            int bitRate = downloadFile.getBitRate();
-            long byteCount = Math.max(100000, bitRate * 1024L / 8L * bufferLength);
 
             // Find out how large the file should grow before resuming playback.
             Timber.i("Buffering from position %d and bitrate %d", position, bitRate);
-            expectedFileSize = (position * bitRate / 8) + byteCount;
+            expectedFileSize = (position * bitRate / 8) + Math.max(MIN_BUFFER_BYTES, byteCount);
+        }
+
+        /**
+         * Calculates how many bytes must be buffered so the download stays ahead of the playback until it is finished,
+         * based on the throughput measured on the active server. Falls back to the configured buffer length
+         * when the throughput or the length of the song is unknown.
+         */
+        private long getAdaptiveByteCount(int bitRate, long bufferLength)
+        {
+            long playbackRate = bitRate * 1024L / 8L;
+            long staticByteCount = playbackRate * bufferLength;
+            long throughput = throughputEstimator.getBytesPerSecond(ActiveServerProvider.Companion.getActiveServerId(context));
+            Integer duration = downloadFile.getSong().getDuration();
+
+            if (throughput <= 0 || playbackRate <= 0 || duration == null || duration <= 0)
+            {
+                return staticByteCount;
+            }
+
+            // Don't count on the whole measured throughput, the link may degrade during the song
+            double safeThroughput = throughput * THROUGHPUT_SAFETY_FACTOR;
+            long remainingBytes = Math.max(0, duration * playbackRate - (position / 1000L) * playbackRate);
+
+            // If the download is slower than the playback, the difference must be buffered up front
+            long deficit = safeThroughput >= playbackRate ? 0 : (long) (remainingBytes * (1 - safeThroughput / playbackRate));
+            long byteCount = deficit + playbackRate * MIN_BUFFER_SECONDS;
+
+            Timber.i("Throughput %d B/s, playback %d B/s, adaptive buffer %d bytes (static %d)",
+                    throughput, playbackRate, byteCount, staticByteCount);
+            return byteCount;
         }
 
         @Override
@@ -888,7 +968,21 @@ public class LocalMediaPlayer
 
             while (!bufferComplete() && !ActiveServerProvider.Companion.isOffline(context))
             {
-                Util.sleepQuietly(1000L);
+                try
+                {
+                    // Woken up by the download as soon as it has written new data
+                    if (!downloadFile.waitForProgress(expectedFileSize, 1000L) && (downloadFile.isFailed() || downloadFile.isDownloadCancelled()))
+                    {
+                        // The downloader starts it again later, don't spin until then
+                        Timber.i("Download of %s has stopped, waiting for it to be restarted", downloadFile);
+                        Thread.sleep(1000L);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
                 if (isCancelled())
                 {
                     return;
@@ -939,12 +1033,20 @@ public class LocalMediaPlayer
                 return;
             }
 
-            // Do an initial sleep so this prepare can't compete with main prepare
-            Util.sleepQuietly(5000L);
-
+            // Wait for the download, and for the current song to have started playing
+            // so this prepare can't compete with main prepare
             while (!bufferComplete())
             {
-                Util.sleepQuietly(5000L);
+                try
+                {
+                    if (downloadFile.isWorkDone()) waitForPlayback(5000L);
+                    // A stopped download is started again later, don't spin until then
+                    else if (!downloadFile.waitForCompletion(5000L) && (downloadFile.isFailed() || downloadFile.isDownloadCancelled())) Thread.sleep(5000L);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
 
                 if (isCancelled())
                 {
@@ -967,7 +1069,7 @@ public class LocalMediaPlayer
         {
             boolean completeFileAvailable = downloadFile.isWorkDone();
             Timber.i("Buffering next %s (%d)", partialFile, partialFile.length());
-            return completeFileAvailable && (playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED);
+            return completeFileAvailable && isPlaybackStarted();
         }
 
         @NotNull
@@ -63,6 +63,8 @@ public interface MediaPlayerController
 
 	void remove(DownloadFile downloadFile);
 
+	void move(int from, int to);
+
 	void play(int index);
 
 	void seekTo(int position);
@@ -113,6 +115,8 @@ public interface MediaPlayerController
 
 	void setSongRating(final int rating);
 
+	void songChanged(Entry song);
+
 	DownloadFile getCurrentPlaying();
 
 	int getPlaylistSize();
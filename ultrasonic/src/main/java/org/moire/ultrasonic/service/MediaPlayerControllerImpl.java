@@ -36,7 +36,6 @@ import org.moire.ultrasonic.featureflags.FeatureStorage;
 import org.moire.ultrasonic.util.ShufflePlayBuffer;
 import org.moire.ultrasonic.util.Util;
 
-import java.util.Iterator;
 import java.util.List;
 
 import kotlin.Lazy;
@@ -144,13 +143,13 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 	public synchronized void preload()
 	{
-		MediaPlayerService.getInstance(context);
+		MediaPlayerService.start(context);
 	}
 
 	@Override
 	public synchronized void play(final int index)
 	{
-		MediaPlayerService.executeOnStartedMediaPlayerService(context,new Consumer<MediaPlayerService>() {
+		MediaPlayerService.executeOnStartedMediaPlayerService(context, "playIndex", new Consumer<MediaPlayerService>() {
 			@Override
 			public void accept(MediaPlayerService mediaPlayerService) {
 				mediaPlayerService.play(index, true);
@@ -160,7 +159,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 	public synchronized void play()
 	{
-		MediaPlayerService.executeOnStartedMediaPlayerService(context, new Consumer<MediaPlayerService>() {
+		MediaPlayerService.executeOnStartedMediaPlayerService(context, "play", new Consumer<MediaPlayerService>() {
 			@Override
 			public void accept(MediaPlayerService mediaPlayerService) {
 				mediaPlayerService.play();
@@ -170,7 +169,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 	public synchronized void resumeOrPlay()
 	{
-		MediaPlayerService.executeOnStartedMediaPlayerService(context, new Consumer<MediaPlayerService>() {
+		MediaPlayerService.executeOnStartedMediaPlayerService(context, "resumeOrPlay", new Consumer<MediaPlayerService>() {
 			@Override
 			public void accept(MediaPlayerService mediaPlayerService) {
 				mediaPlayerService.resumeOrPlay();
@@ -193,7 +192,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	@Override
 	public synchronized void start()
 	{
-		MediaPlayerService.executeOnStartedMediaPlayerService(context, new Consumer<MediaPlayerService>() {
+		MediaPlayerService.executeOnStartedMediaPlayerService(context, "start", new Consumer<MediaPlayerService>() {
 			@Override
 			public void accept(MediaPlayerService mediaPlayerService) {
 				mediaPlayerService.start();
@@ -204,22 +203,34 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	@Override
 	public synchronized void seekTo(final int position)
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) mediaPlayerService.seekTo(position);
+		MediaPlayerService.executeOnRunningMediaPlayerService("seekTo", new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				mediaPlayerService.seekTo(position);
+			}
+		});
 	}
 
 	@Override
 	public synchronized void pause()
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) mediaPlayerService.pause();
+		MediaPlayerService.executeOnRunningMediaPlayerService("pause", new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				mediaPlayerService.pause();
+			}
+		});
 	}
 
 	@Override
 	public synchronized void stop()
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) mediaPlayerService.stop();
+		MediaPlayerService.executeOnRunningMediaPlayerService("stop", new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				mediaPlayerService.stop();
+			}
+		});
 	}
 
 	@Override
@@ -232,8 +243,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 		if (!playNext && !autoPlay && (downloader.downloadList.size() - 1) == downloader.getCurrentPlayingIndex())
 		{
-			MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-			if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
+			setNextPlaying();
 		}
 
 		if (autoPlay)
@@ -251,32 +261,55 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 			downloader.checkDownloads();
 		}
 
-		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+		downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
 	}
 
 	@Override
 	public synchronized void downloadBackground(List<MusicDirectory.Entry> songs, boolean save)
 	{
 		downloader.downloadBackground(songs, save);
-		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+		downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
 	}
 
-	public synchronized void setCurrentPlaying(DownloadFile currentPlaying)
+	public synchronized void setCurrentPlaying(final DownloadFile currentPlaying)
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) localMediaPlayer.setCurrentPlaying(currentPlaying);
+		MediaPlayerService.executeOnRunningMediaPlayerService(null, new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				localMediaPlayer.setCurrentPlaying(currentPlaying);
+			}
+		});
 	}
 
-	public synchronized void setCurrentPlaying(int index)
+	public synchronized void setCurrentPlaying(final int index)
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) mediaPlayerService.setCurrentPlaying(index);
+		MediaPlayerService.executeOnRunningMediaPlayerService(null, new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				mediaPlayerService.setCurrentPlaying(index);
+			}
+		});
 	}
 
-	public synchronized void setPlayerState(PlayerState state)
+	public synchronized void setPlayerState(final PlayerState state)
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) localMediaPlayer.setPlayerState(state);
+		MediaPlayerService.executeOnRunningMediaPlayerService(null, new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				localMediaPlayer.setPlayerState(state);
+			}
+		});
+	}
+
+	// Runs after the commands issued before, so the next song is set up for the playlist they leave behind
+	private void setNextPlaying()
+	{
+		MediaPlayerService.executeOnRunningMediaPlayerService("setNextPlaying", new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				mediaPlayerService.setNextPlaying();
+			}
+		});
 	}
 
 	@Override
@@ -305,13 +338,17 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	@Override
 	public synchronized void shuffle()
 	{
-		downloader.shuffle();
+		changePlaylist(new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				downloader.shuffle();
 
-		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
-		jukeboxMediaPlayer.getValue().updatePlaylist();
+				downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+				jukeboxMediaPlayer.getValue().updatePlaylist();
 
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
+				if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
+			}
+		});
 	}
 
 	@Override
@@ -324,8 +361,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	public synchronized void setRepeatMode(RepeatMode repeatMode)
 	{
 		Util.setRepeatMode(context, repeatMode);
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
+		setNextPlaying();
 	}
 
 	@Override
@@ -358,61 +394,92 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 		clear(true);
 	}
 
-	public synchronized void clear(boolean serialize)
+	public synchronized void clear(final boolean serialize)
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) {
-			mediaPlayerService.clear(serialize);
-		} else {
+		boolean queued = MediaPlayerService.executeOnRunningMediaPlayerService(null, new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				mediaPlayerService.clear(serialize);
+				jukeboxMediaPlayer.getValue().updatePlaylist();
+			}
+		});
+
+		if (!queued) {
 			// If no MediaPlayerService is available, just empty the playlist
 			downloader.clear();
 			if (serialize) {
-				downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList,
+				downloadQueueSerializer.serializeDownloadQueue(downloader,
 					downloader.getCurrentPlayingIndex(), getPlayerPosition());
 			}
-		}
 
-		jukeboxMediaPlayer.getValue().updatePlaylist();
+			jukeboxMediaPlayer.getValue().updatePlaylist();
+		}
 	}
 
 	@Override
 	public synchronized void clearIncomplete()
 	{
-		reset();
-		Iterator<DownloadFile> iterator = downloader.downloadList.iterator();
+		changePlaylist(new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				if (mediaPlayerService != null) localMediaPlayer.reset();
+				downloader.clearIncomplete();
 
-		while (iterator.hasNext())
-		{
-			DownloadFile downloadFile = iterator.next();
-			if (!downloadFile.isCompleteFileAvailable())
-			{
-				iterator.remove();
+				downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+				jukeboxMediaPlayer.getValue().updatePlaylist();
 			}
-		}
+		});
+	}
 
-		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
-		jukeboxMediaPlayer.getValue().updatePlaylist();
+	@Override
+	public synchronized void remove(final DownloadFile downloadFile)
+	{
+		changePlaylist(new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				// Checked when the command runs, as the commands queued before may change what is playing
+				if (mediaPlayerService != null && downloadFile == localMediaPlayer.currentPlaying)
+				{
+					localMediaPlayer.reset();
+					localMediaPlayer.setCurrentPlaying(null);
+				}
+
+				boolean wasNextPlaying = downloadFile == localMediaPlayer.nextPlaying;
+				downloader.removeDownloadFile(downloadFile);
+
+				downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+				jukeboxMediaPlayer.getValue().updatePlaylist();
+
+				if (mediaPlayerService != null && wasNextPlaying) mediaPlayerService.setNextPlaying();
+			}
+		});
 	}
 
 	@Override
-	public synchronized void remove(DownloadFile downloadFile)
+	public synchronized void move(final int from, final int to)
 	{
-		if (downloadFile == localMediaPlayer.currentPlaying)
-		{
-			reset();
-			setCurrentPlaying(null);
-		}
+		changePlaylist(new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				downloader.moveDownloadFile(from, to);
 
-		downloader.removeDownloadFile(downloadFile);
+				downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+				jukeboxMediaPlayer.getValue().updatePlaylist();
 
-		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
-		jukeboxMediaPlayer.getValue().updatePlaylist();
+				if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
+			}
+		});
+	}
 
-		if (downloadFile == localMediaPlayer.nextPlaying)
-		{
-			MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-			if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
-		}
+	/**
+	 * Runs a change of the playlist in order with the playback commands queued before it, so it applies to
+	 * the state they leave behind. The change, and the checks it depends on, must be made entirely in it.
+	 * If the service isn't running the change is made at once, and gets no service.
+	 */
+	private void changePlaylist(final Consumer<MediaPlayerService> change)
+	{
+		boolean queued = MediaPlayerService.executeOnRunningMediaPlayerService(null, change);
+		if (!queued) change.accept(null);
 	}
 
 	@Override
@@ -466,8 +533,12 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	@Override
 	public synchronized void reset()
 	{
-		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
-		if (mediaPlayerService != null) localMediaPlayer.reset();
+		MediaPlayerService.executeOnRunningMediaPlayerService("reset", new Consumer<MediaPlayerService>() {
+			@Override
+			public void accept(MediaPlayerService mediaPlayerService) {
+				localMediaPlayer.reset();
+			}
+		});
 	}
 
 	@Override
@@ -545,15 +616,13 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 			reset();
 
-			// Cancel current download, if necessary.
-			if (downloader.currentDownloading != null)
-			{
-				downloader.currentDownloading.cancelDownload();
-			}
+			// Cancel current downloads, if necessary.
+			downloader.cancelActiveDownloads();
 		}
 		else
 		{
 			jukeboxMediaPlayer.getValue().stopJukeboxService();
+			downloader.checkDownloads();
 		}
 	}
 
@@ -587,26 +656,23 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 		final Entry song = localMediaPlayer.currentPlaying.getSong();
 		song.setUserRating(rating);
+		songChanged(song);
 
-		new Thread(new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					MusicServiceFactory.getMusicService(context).setRating(song.getId(), rating, context, null);
-				}
-				catch (Exception e)
-				{
-					Timber.e(e);
-				}
-			}
-		}).start();
+		KoinJavaComponent.get(ActionQueue.class).setRating(song.getId(), rating);
 
 		updateNotification();
 	}
 
+	/**
+	 * Stores the metadata of a song on the playlist again, after it was changed e.g. by starring the song.
+	 */
+	@Override
+	public void songChanged(Entry song)
+	{
+		downloader.songChanged(song);
+		downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+	}
+
 	@Override
 	public DownloadFile getCurrentPlaying() {
 		return localMediaPlayer.currentPlaying;
@@ -624,7 +690,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 	@Override
 	public DownloadFile getCurrentDownloading() {
-		return downloader.currentDownloading;
+		return downloader.getCurrentDownloading();
 	}
 
 	@Override
@@ -88,7 +88,7 @@ public class MediaPlayerLifecycleSupport
 				mediaPlayerController.restore(state.songs, state.currentPlayingIndex, state.currentPlayingPosition, autoPlay, false);
 
 				// Work-around: Serialize again, as the restore() method creates a serialization without current playing info.
-				MediaPlayerLifecycleSupport.this.downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList,
+				MediaPlayerLifecycleSupport.this.downloadQueueSerializer.serializeDownloadQueue(downloader,
 						downloader.getCurrentPlayingIndex(), mediaPlayerController.getPlayerPosition());
 
 				if (afterCreated != null) afterCreated.run();
@@ -103,7 +103,7 @@ public class MediaPlayerLifecycleSupport
 	public void onDestroy()
 	{
 		if (!created) return;
-		downloadQueueSerializer.serializeDownloadQueueNow(downloader.downloadList,
+		downloadQueueSerializer.serializeDownloadQueueNow(downloader,
 				downloader.getCurrentPlayingIndex(), mediaPlayerController.getPlayerPosition());
 		mediaPlayerController.clear(false);
 		context.unregisterReceiver(headsetEventReceiver);
@@ -36,6 +36,13 @@ import org.moire.ultrasonic.util.ShufflePlayBuffer;
 import org.moire.ultrasonic.util.SimpleServiceBinder;
 import org.moire.ultrasonic.util.Util;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import kotlin.Lazy;
 
 import static org.koin.java.KoinJavaComponent.inject;
@@ -57,9 +64,21 @@ public class MediaPlayerService extends Service
     private static final String NOTIFICATION_CHANNEL_NAME = "Ultrasonic background service";
     private static final int NOTIFICATION_ID = 3033;
 
+    // A requested start which hasn't created the service after this time is requested again, a few times at most
+    private static final long START_TIMEOUT_SECONDS = 10;
+    private static final int MAX_START_ATTEMPTS = 3;
+
     private static MediaPlayerService instance = null;
     private static final Object instanceLock = new Object();
 
+    // Commands run one by one on this thread, in the order they were issued
+    private static final ScheduledExecutorService commandExecutor = Executors.newSingleThreadScheduledExecutor();
+    private static final Deque<Command> pendingCommands = new ArrayDeque<>();
+    private static boolean commandsScheduled;
+    private static boolean startRequested;
+    private static int startAttempts;
+    private static ScheduledFuture<?> startTimeout;
+
     private final IBinder binder = new SimpleServiceBinder<>(this);
     private final Scrobbler scrobbler = new Scrobbler();
 
@@ -78,22 +97,14 @@ public class MediaPlayerService extends Service
 
     public RepeatMode getRepeatMode() { return Util.getRepeatMode(this); }
 
-    public static MediaPlayerService getInstance(Context context)
+    /**
+     * Starts the service if it isn't running yet, without waiting for it.
+     */
+    public static void start(Context context)
     {
-        synchronized (instanceLock) {
-            for (int i = 0; i < 20; i++) {
-                if (instance != null) return instance;
-
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    context.startForegroundService(new Intent(context, MediaPlayerService.class));
-                } else {
-                    context.startService(new Intent(context, MediaPlayerService.class));
-                }
-
-                Util.sleepQuietly(50L);
-            }
-
-            return instance;
+        synchronized (instanceLock)
+        {
+            if (instance == null) requestStart(context);
         }
     }
 
@@ -107,21 +118,169 @@ public class MediaPlayerService extends Service
 
     public static void executeOnStartedMediaPlayerService(final Context context, final Consumer<MediaPlayerService> taskToExecute)
     {
-        Thread t = new Thread()
+        executeOnStartedMediaPlayerService(context, null, taskToExecute);
+    }
+
+    /**
+     * Runs taskToExecute on the command thread after the commands issued before it, starting the service first if needed.
+     * Commands issued while the service is starting are kept until it is created, they are dropped if it doesn't start
+     * after a few attempts.
+     * A command with a key replaces the last pending command if that has the same key, as only the latest one matters,
+     * e.g. when the next button is pressed repeatedly.
+     */
+    public static void executeOnStartedMediaPlayerService(final Context context, final String key, final Consumer<MediaPlayerService> taskToExecute)
+    {
+        synchronized (instanceLock)
+        {
+            addCommand(key, taskToExecute);
+
+            if (instance == null) requestStart(context);
+            else scheduleCommands();
+        }
+    }
+
+    /**
+     * Runs taskToExecute on the command thread after the commands issued before it, but only if the service is running
+     * or starting, as e.g. pausing a service which isn't running has no effect. Keys are handled as above.
+     * @return true if the command was queued, false if the service isn't running
+     */
+    public static boolean executeOnRunningMediaPlayerService(final String key, final Consumer<MediaPlayerService> taskToExecute)
+    {
+        synchronized (instanceLock)
         {
+            if (instance == null && !startRequested) return false;
+
+            addCommand(key, taskToExecute);
+            if (instance != null) scheduleCommands();
+            return true;
+        }
+    }
+
+    // Must be called while holding instanceLock
+    private static void addCommand(String key, Consumer<MediaPlayerService> task)
+    {
+        Command last = pendingCommands.peekLast();
+        if (key != null && last != null && key.equals(last.key)) pendingCommands.pollLast();
+        pendingCommands.addLast(new Command(key, task));
+    }
+
+    // Must be called while holding instanceLock
+    private static void requestStart(Context context)
+    {
+        if (startRequested) return;
+        startRequested = true;
+        startAttempts++;
+
+        final Context applicationContext = context.getApplicationContext();
+
+        try
+        {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                applicationContext.startForegroundService(new Intent(applicationContext, MediaPlayerService.class));
+            } else {
+                applicationContext.startService(new Intent(applicationContext, MediaPlayerService.class));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // E.g. the app isn't allowed to start a service while it is in the background
+            Timber.w(e, "Failed to start MediaPlayerService");
+            startRequested = false;
+        }
+
+        if (startTimeout != null) startTimeout.cancel(false);
+        startTimeout = commandExecutor.schedule(new Runnable()
+        {
+            @Override
             public void run()
             {
-                MediaPlayerService instance = getInstance(context);
-                if (instance == null)
+                onStartTimeout(applicationContext);
+            }
+        }, START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void onStartTimeout(Context context)
+    {
+        synchronized (instanceLock)
+        {
+            if (instance != null) return;
+
+            startRequested = false;
+            if (pendingCommands.isEmpty())
+            {
+                startAttempts = 0;
+                return;
+            }
+
+            if (startAttempts >= MAX_START_ATTEMPTS)
+            {
+                // The commands would wait forever, the next one requests the start again
+                Timber.w("MediaPlayerService didn't start, dropped %d commands", pendingCommands.size());
+                pendingCommands.clear();
+                startAttempts = 0;
+                return;
+            }
+
+            Timber.i("MediaPlayerService didn't start yet, requesting it again");
+            requestStart(context);
+        }
+    }
+
+    // Must be called while holding instanceLock
+    private static void scheduleCommands()
+    {
+        if (commandsScheduled || pendingCommands.isEmpty()) return;
+        commandsScheduled = true;
+
+        commandExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runPendingCommands();
+            }
+        });
+    }
+
+    private static void runPendingCommands()
+    {
+        while (true)
+        {
+            MediaPlayerService service;
+            Command command;
+
+            synchronized (instanceLock)
+            {
+                service = instance;
+                if (service == null || pendingCommands.isEmpty())
                 {
-                    Timber.e("ExecuteOnStartedMediaPlayerService failed to get a MediaPlayerService instance!");
+                    commandsScheduled = false;
                     return;
                 }
+                command = pendingCommands.pollFirst();
+            }
 
-                taskToExecute.accept(instance);
+            try
+            {
+                command.task.accept(service);
             }
-        };
-        t.start();
+            catch (Exception e)
+            {
+                Timber.e(e, "MediaPlayerService command failed");
+            }
+        }
+    }
+
+    private static class Command
+    {
+        final String key;
+        final Consumer<MediaPlayerService> task;
+
+        Command(String key, Consumer<MediaPlayerService> task)
+        {
+            this.key = key;
+            this.task = task;
+        }
     }
 
     @Nullable
@@ -151,7 +310,7 @@ public class MediaPlayerService extends Service
         localMediaPlayer.onPrepared = new Runnable() {
             @Override
             public void run() {
-                downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList,
+                downloadQueueSerializer.serializeDownloadQueue(downloader,
                         downloader.getCurrentPlayingIndex(), getPlayerPosition());
             }
         };
@@ -176,7 +335,16 @@ public class MediaPlayerService extends Service
         notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
         // Update notification early. It is better to show an empty one temporarily than waiting too long and letting Android kill the app
         updateNotification(IDLE, null);
-        instance = this;
+
+        synchronized (instanceLock)
+        {
+            instance = this;
+            startRequested = false;
+            startAttempts = 0;
+            if (startTimeout != null) startTimeout.cancel(false);
+            startTimeout = null;
+            scheduleCommands();
+        }
 
         Timber.i("MediaPlayerService created");
     }
@@ -193,7 +361,15 @@ public class MediaPlayerService extends Service
     {
         super.onDestroy();
 
-        instance = null;
+        synchronized (instanceLock)
+        {
+            instance = null;
+            startRequested = false;
+
+            // The commands were meant for this instance of the service
+            if (!pendingCommands.isEmpty()) Timber.i("Dropped %d MediaPlayerService commands", pendingCommands.size());
+            pendingCommands.clear();
+        }
 
         try {
             localMediaPlayer.onDestroy();
@@ -210,6 +386,8 @@ public class MediaPlayerService extends Service
         synchronized (instanceLock)
         {
             // currentPlaying could be changed from another thread in the meantime, so check again before stopping for good
+            // Pending commands may start playing again
+            if (!pendingCommands.isEmpty()) return;
             if (localMediaPlayer.currentPlaying == null || localMediaPlayer.playerState == STOPPED) stopSelf();
         }
     }
@@ -259,6 +437,9 @@ public class MediaPlayerService extends Service
         localMediaPlayer.onCurrentPlayingChanged = new Consumer<DownloadFile>() {
             @Override
             public void accept(DownloadFile currentPlaying) {
+                // The current playing file has the highest download priority
+                downloader.checkDownloads();
+
                 if (currentPlaying != null)
                 {
                     Util.broadcastNewTrackInfo(MediaPlayerService.this, currentPlaying.getSong());
@@ -426,7 +607,7 @@ public class MediaPlayerService extends Service
     {
         localMediaPlayer.reset();
         localMediaPlayer.setCurrentPlaying(null);
-        downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList,
+        downloadQueueSerializer.serializeDownloadQueue(downloader,
                 downloader.getCurrentPlayingIndex(), getPlayerPosition());
     }
 
@@ -482,7 +663,7 @@ public class MediaPlayerService extends Service
             public void accept(PlayerState playerState, DownloadFile currentPlaying) {
                 if (playerState == PAUSED)
                 {
-                    downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+                    downloadQueueSerializer.serializeDownloadQueue(downloader, downloader.getCurrentPlayingIndex(), getPlayerPosition());
                 }
 
                 boolean showWhenPaused = (playerState != PlayerState.STOPPED && Util.isNotificationAlwaysEnabled(MediaPlayerService.this));
@@ -604,7 +785,7 @@ public class MediaPlayerService extends Service
         setNextPlaying();
 
         if (serialize) {
-            downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList,
+            downloadQueueSerializer.serializeDownloadQueue(downloader,
                     downloader.getCurrentPlayingIndex(), getPlayerPosition());
         }
     }
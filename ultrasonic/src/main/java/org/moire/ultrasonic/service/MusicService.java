@@ -89,7 +89,7 @@ public interface MusicService
 
 	Lyrics getLyrics(String artist, String title, Context context, ProgressListener progressListener) throws Exception;
 
-	void scrobble(String id, boolean submission, Context context, ProgressListener progressListener) throws Exception;
+	void scrobble(String id, Long time, boolean submission, Context context, ProgressListener progressListener) throws Exception;
 
 	MusicDirectory getAlbumList(String type, int size, int offset, Context context, ProgressListener progressListener) throws Exception;
 
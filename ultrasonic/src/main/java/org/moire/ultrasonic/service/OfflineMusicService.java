@@ -25,6 +25,8 @@ import android.media.MediaMetadataRetriever;
 import kotlin.Pair;
 import timber.log.Timber;
 
+import org.moire.ultrasonic.cache.OfflineCatalog;
+import org.moire.ultrasonic.cache.SearchIndex;
 import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.Artist;
 import org.moire.ultrasonic.domain.Bookmark;
@@ -58,12 +60,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import kotlin.Lazy;
@@ -76,22 +85,39 @@ import static org.koin.java.KoinJavaComponent.inject;
 public class OfflineMusicService implements MusicService
 {
 	private static final Pattern COMPILE = Pattern.compile(" ");
+	// Updating the catalog reads the tags of the files, the callers must not wait for it
+	private static final ThreadPoolExecutor CATALOG_EXECUTOR = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	static
+	{
+		CATALOG_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
 	private Lazy<ActiveServerProvider> activeServerProvider = inject(ActiveServerProvider.class);
+	private final OfflineCatalog catalog;
+	private final Random random = new Random();
+	// Built from the catalog by the first search after the music directory is cataloged, and persisted
+	private final SearchIndex searchIndex;
+	private final AtomicBoolean cataloging = new AtomicBoolean();
+	// Set once the whole music directory was checked for changes since this service was created
+	private volatile boolean catalogVerified;
+
+	public OfflineMusicService(OfflineCatalog catalog, SearchIndex searchIndex)
+	{
+		this.catalog = catalog;
+		this.searchIndex = searchIndex;
+	}
 
 	@Override
 	public Indexes getIndexes(String musicFolderId, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		List<Artist> artists = new ArrayList<Artist>();
 		File root = FileUtil.getMusicDirectory(context);
-		for (File file : FileUtil.listFiles(root))
+		for (MusicDirectory.Entry entry : getCatalogedChildren(context, root, refresh))
 		{
-			if (file.isDirectory())
+			if (entry.isDirectory())
 			{
-				Artist artist = new Artist();
-				artist.setId(file.getPath());
-				artist.setIndex(file.getName().substring(0, 1));
-				artist.setName(file.getName());
-				artists.add(artist);
+				artists.add(createArtist(entry));
 			}
 		}
 
@@ -150,19 +176,101 @@ public class OfflineMusicService implements MusicService
 		MusicDirectory result = new MusicDirectory();
 		result.setName(dir.getName());
 
+		for (MusicDirectory.Entry entry : getCatalogedChildren(context, dir, refresh))
+		{
+			result.addChild(entry);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the entries of the directory from the catalog, the directory is only read if it isn't cataloged,
+	 * it was modified since it was cataloged or a refresh is requested.
+	 */
+	private List<MusicDirectory.Entry> getCatalogedChildren(Context context, File dir, boolean refresh)
+	{
+		List<MusicDirectory.Entry> children = refresh ? null : catalog.getChildren(dir.getPath());
+
+		if (children != null && !isCatalogedListingCurrent(dir))
+		{
+			Timber.d("%s was modified since it was cataloged", dir);
+			children = null;
+		}
+
+		if (children == null)
+		{
+			children = catalogDirectory(context, dir);
+		}
+
+		return children;
+	}
+
+	// Files added, renamed or deleted outside of the app change the modification time of their directory
+	private boolean isCatalogedListingCurrent(File dir)
+	{
+		Long modified = catalog.getModified(dir.getPath());
+		return modified != null && modified == dir.lastModified();
+	}
+
+	// Only the tags of the files which are new or have changed are read
+	private List<MusicDirectory.Entry> catalogDirectory(Context context, File dir)
+	{
+		// Taken before the listing, so changes made while the directory is read are found the next time
+		long modified = dir.lastModified();
+		Map<String, MusicDirectory.Entry> known = new HashMap<String, MusicDirectory.Entry>();
+		List<MusicDirectory.Entry> cataloged = catalog.getChildren(dir.getPath());
+
+		if (cataloged != null)
+		{
+			for (MusicDirectory.Entry entry : cataloged)
+			{
+				known.put(entry.getId(), entry);
+			}
+		}
+
+		List<MusicDirectory.Entry> children = new ArrayList<MusicDirectory.Entry>();
 		Collection<String> names = new HashSet<String>();
 
 		for (File file : FileUtil.listMediaFiles(dir))
 		{
 			String name = getName(file);
-			if (name != null & !names.contains(name))
+			if (name == null || !names.add(name)) continue;
+
+			MusicDirectory.Entry entry = known.remove(file.getPath());
+			if (entry == null || !isUpToDate(entry, file))
 			{
-				names.add(name);
-				result.addChild(createEntry(context, file, name));
+				entry = createEntry(context, file, name);
 			}
+
+			children.add(entry);
 		}
 
-		return result;
+		try
+		{
+			catalog.setChildren(dir.getPath(), children, modified);
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to catalog %s", dir);
+		}
+
+		if (!searchIndex.isEmpty())
+		{
+			for (String id : known.keySet())
+			{
+				searchIndex.remove(id);
+			}
+
+			addToSearchIndex(context, children);
+		}
+
+		return children;
+	}
+
+	private static boolean isUpToDate(MusicDirectory.Entry entry, File file)
+	{
+		return !file.isDirectory() && entry.getSize() != null && entry.getSize() == file.length();
 	}
 
 	private static String getName(File file)
@@ -362,148 +470,343 @@ public class OfflineMusicService implements MusicService
 		}
 	}
 
+	/**
+	 * Searches the catalog. Until the whole music directory is cataloged in the background, the names found in
+	 * the paths of the files are searched instead, and only the tags of the matching files are read.
+	 * Files which have been deleted in the meantime are dropped from the results and the catalog.
+	 */
 	@Override
 	public SearchResult search(SearchCriteria criteria, Context context, ProgressListener progressListener)
 	{
+		File root = FileUtil.getMusicDirectory(context);
+
+		if (searchIndex.isEmpty())
+		{
+			List<MusicDirectory.Entry> entries = getCatalogedDescendants(context, root);
+
+			if (entries == null)
+			{
+				return searchPathNames(context, root, criteria);
+			}
+
+			addToSearchIndex(context, entries);
+		}
+
+		SearchResult result = searchIndex.search(criteria);
 		List<Artist> artists = new ArrayList<Artist>();
 		List<MusicDirectory.Entry> albums = new ArrayList<MusicDirectory.Entry>();
 		List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
-		File root = FileUtil.getMusicDirectory(context);
-		int closeness;
 
-		for (File artistFile : FileUtil.listFiles(root))
+		for (Artist artist : result.getArtists())
 		{
-			String artistName = artistFile.getName();
-			if (artistFile.isDirectory())
-			{
-				if ((closeness = matchCriteria(criteria, artistName)) > 0)
-				{
-					Artist artist = new Artist();
-					artist.setId(artistFile.getPath());
-					artist.setIndex(artistFile.getName().substring(0, 1));
-					artist.setName(artistName);
-					artist.setCloseness(closeness);
-					artists.add(artist);
-				}
+			if (isCatalogedFilePresent(artist.getId(), root.getPath())) artists.add(artist);
+		}
 
-				recursiveAlbumSearch(artistName, artistFile, criteria, context, albums, songs);
-			}
+		for (MusicDirectory.Entry album : result.getAlbums())
+		{
+			if (isCatalogedFilePresent(album.getId(), album.getParent())) albums.add(album);
 		}
 
-		Collections.sort(artists, new Comparator<Artist>()
+		for (MusicDirectory.Entry song : result.getSongs())
+		{
+			if (isCatalogedFilePresent(song.getId(), song.getParent())) songs.add(song);
+		}
+
+		return new SearchResult(artists, albums, songs);
+	}
+
+	/**
+	 * Brings the catalog up to date with the files of a song, which were written, renamed or deleted.
+	 * The catalog is updated in the background.
+	 */
+	public void updateCatalog(final Context context, final File... files)
+	{
+		CATALOG_EXECUTOR.execute(new Runnable()
 		{
 			@Override
-			public int compare(Artist lhs, Artist rhs)
+			public void run()
 			{
-				if (lhs.getCloseness() == rhs.getCloseness())
+				try
 				{
-					return 0;
+					for (File file : files)
+					{
+						updateCatalog(context, file);
+					}
+				}
+				catch (Exception x)
+				{
+					Timber.w(x, "Failed to update the offline catalog");
 				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
 			}
 		});
-		Collections.sort(albums, new Comparator<MusicDirectory.Entry>()
+	}
+
+	private void updateCatalog(Context context, File file)
+	{
+		File root = FileUtil.getMusicDirectory(context);
+		LinkedList<File> ancestors = new LinkedList<File>();
+		File parent = file.getParentFile();
+
+		while (parent != null && !parent.equals(root))
 		{
-			@Override
-			public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
+			ancestors.addFirst(parent);
+			parent = parent.getParentFile();
+		}
+
+		// Not a file in the music directory
+		if (parent == null) return;
+
+		if (!file.exists())
+		{
+			// The directories emptied by the cache cleaner are gone as well
+			File removed = file;
+
+			while (!removed.getParentFile().equals(root) && !removed.getParentFile().exists())
 			{
-				if (lhs.getCloseness() == rhs.getCloseness())
-				{
-					return 0;
-				}
+				removed = removed.getParentFile();
+			}
+
+			removeFromCatalog(removed.getPath(), removed.getParent());
+			return;
+		}
+
+		String name = getName(file);
+		if (name == null) return;
 
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
+		// The parents are cataloged first, so the new directories are listed before their children are added
+		for (File dir : ancestors)
+		{
+			if (catalog.get(dir.getPath(), dir.getParent()) == null)
+			{
+				putIntoCatalog(context, createEntry(context, dir, dir.getName()));
 			}
-		});
-		Collections.sort(songs, new Comparator<MusicDirectory.Entry>()
+		}
+
+		MusicDirectory.Entry entry = catalog.get(file.getPath(), file.getParent());
+
+		if (entry == null || !isUpToDate(entry, file))
+		{
+			putIntoCatalog(context, createEntry(context, file, name));
+		}
+	}
+
+	private void putIntoCatalog(Context context, MusicDirectory.Entry entry)
+	{
+		catalog.put(entry);
+
+		if (!searchIndex.isEmpty())
+		{
+			addToSearchIndex(context, Collections.singletonList(entry));
+		}
+	}
+
+	private void removeFromCatalog(String id, String parentId)
+	{
+		catalog.remove(id, parentId);
+		searchIndex.remove(id);
+	}
+
+	/**
+	 * Returns all cataloged entries below the directory, or null while the tree is not completely cataloged yet.
+	 */
+	private List<MusicDirectory.Entry> getCatalogedDescendants(Context context, File root)
+	{
+		startCataloging(context, root);
+		return catalog.getDescendants(root.getPath());
+	}
+
+	/**
+	 * Catalogs the missing and modified parts of the tree in the background, as reading the tags of a large
+	 * library takes minutes. The tree is checked for changes made outside of the app once per service.
+	 */
+	private void startCataloging(Context context, final File root)
+	{
+		if (catalogVerified && catalog.isComplete(root.getPath())) return;
+		if (!cataloging.compareAndSet(false, true)) return;
+
+		final Context appContext = context.getApplicationContext();
+		CATALOG_EXECUTOR.execute(new Runnable()
 		{
 			@Override
-			public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
+			public void run()
 			{
-				if (lhs.getCloseness() == rhs.getCloseness())
+				try
 				{
-					return 0;
+					Timber.i("Cataloging %s", root);
+					catalogTree(appContext, root);
+					catalog.setComplete(root.getPath());
+					catalogVerified = true;
+
+					// The persisted index may miss the changes made after its last snapshot
+					List<MusicDirectory.Entry> entries = catalog.getDescendants(root.getPath());
+					if (entries != null && !searchIndex.isEmpty()) addToSearchIndex(appContext, entries);
+					Timber.i("Cataloged %s", root);
+				}
+				catch (Exception x)
+				{
+					Timber.w(x, "Failed to catalog %s", root);
+				}
+				finally
+				{
+					cataloging.set(false);
 				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
 			}
 		});
+	}
 
-		return new SearchResult(artists, albums, songs);
+	private void catalogTree(Context context, File dir)
+	{
+		for (MusicDirectory.Entry entry : getCatalogedChildren(context, dir, false))
+		{
+			if (entry.isDirectory())
+			{
+				catalogTree(context, new File(entry.getId()));
+			}
+		}
+	}
+
+	// The directories directly in the music directory are the artists
+	private void addToSearchIndex(Context context, Collection<MusicDirectory.Entry> entries)
+	{
+		String root = FileUtil.getMusicDirectory(context).getPath();
+		List<Artist> artists = new ArrayList<Artist>();
+		List<MusicDirectory.Entry> albumsAndSongs = new ArrayList<MusicDirectory.Entry>();
+
+		for (MusicDirectory.Entry entry : entries)
+		{
+			if (entry.isDirectory() && root.equals(entry.getParent()))
+			{
+				artists.add(createArtist(entry));
+			}
+			else
+			{
+				albumsAndSongs.add(entry);
+			}
+		}
+
+		searchIndex.addArtists(artists);
+		searchIndex.addEntries(albumsAndSongs);
+	}
+
+	private static Artist createArtist(MusicDirectory.Entry entry)
+	{
+		Artist artist = new Artist();
+		artist.setId(entry.getId());
+		artist.setIndex(entry.getTitle().substring(0, 1));
+		artist.setName(entry.getTitle());
+		return artist;
 	}
 
-	private static void recursiveAlbumSearch(String artistName, File file, SearchCriteria criteria, Context context, List<MusicDirectory.Entry> albums, List<MusicDirectory.Entry> songs)
+	private boolean isCatalogedFilePresent(String id, String parentId)
 	{
-		int closeness;
+		if (id == null) return false;
+		if (new File(id).exists()) return true;
 
+		if (parentId != null) removeFromCatalog(id, parentId);
+		return false;
+	}
+
+	// The index only lives for one search, the catalog replaces it once it is complete
+	private static SearchResult searchPathNames(Context context, File root, SearchCriteria criteria)
+	{
+		List<Artist> artists = new ArrayList<Artist>();
+		List<MusicDirectory.Entry> entries = new ArrayList<MusicDirectory.Entry>();
+
+		for (File artistFile : FileUtil.listFiles(root))
+		{
+			if (artistFile.isDirectory())
+			{
+				artists.add(createPathArtist(artistFile));
+				collectPathEntries(artistFile.getName(), artistFile, entries);
+			}
+		}
+
+		SearchIndex pathIndex = new SearchIndex(null);
+		pathIndex.addArtists(artists);
+		pathIndex.addEntries(entries);
+		SearchResult result = pathIndex.search(criteria);
+
+		List<MusicDirectory.Entry> albums = new ArrayList<MusicDirectory.Entry>();
+		List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
+
+		for (MusicDirectory.Entry album : result.getAlbums())
+		{
+			albums.add(createEntry(context, album));
+		}
+
+		for (MusicDirectory.Entry song : result.getSongs())
+		{
+			songs.add(createEntry(context, song));
+		}
+
+		return new SearchResult(result.getArtists(), albums, songs);
+	}
+
+	private static void collectPathEntries(String artistName, File file, List<MusicDirectory.Entry> entries)
+	{
 		for (File albumFile : FileUtil.listMediaFiles(file))
 		{
 			if (albumFile.isDirectory())
 			{
+				addPathEntry(artistName, null, albumFile, entries);
 				String albumName = getName(albumFile);
-				if ((closeness = matchCriteria(criteria, albumName)) > 0)
-				{
-					MusicDirectory.Entry album = createEntry(context, albumFile, albumName);
-					album.setArtist(artistName);
-					album.setCloseness(closeness);
-					albums.add(album);
-				}
 
 				for (File songFile : FileUtil.listMediaFiles(albumFile))
 				{
-					String songName = getName(songFile);
-
 					if (songFile.isDirectory())
 					{
-						recursiveAlbumSearch(artistName, songFile, criteria, context, albums, songs);
+						collectPathEntries(artistName, songFile, entries);
 					}
-					else if ((closeness = matchCriteria(criteria, songName)) > 0)
+					else
 					{
-						MusicDirectory.Entry song = createEntry(context, albumFile, songName);
-						song.setArtist(artistName);
-						song.setAlbum(albumName);
-						song.setCloseness(closeness);
-						songs.add(song);
+						addPathEntry(artistName, albumName, songFile, entries);
 					}
 				}
 			}
 			else
 			{
-				String songName = getName(albumFile);
-
-				if ((closeness = matchCriteria(criteria, songName)) > 0)
-				{
-					MusicDirectory.Entry song = createEntry(context, albumFile, songName);
-					song.setArtist(artistName);
-					song.setAlbum(songName);
-					song.setCloseness(closeness);
-					songs.add(song);
-				}
+				addPathEntry(artistName, null, albumFile, entries);
 			}
 		}
 	}
 
-	private static int matchCriteria(SearchCriteria criteria, String name)
+	private static Artist createPathArtist(File artistFile)
 	{
-		String query = criteria.getQuery().toLowerCase();
-		String[] queryParts = COMPILE.split(query);
-		String[] nameParts = COMPILE.split(name.toLowerCase());
+		Artist artist = new Artist();
+		artist.setId(artistFile.getPath());
+		artist.setIndex(artistFile.getName().substring(0, 1));
+		artist.setName(artistFile.getName());
+		return artist;
+	}
+
+	// These entries only hold the names found in the paths, reading the tags of every file would take too long
+	private static void addPathEntry(String artistName, String albumName, File file, List<MusicDirectory.Entry> entries)
+	{
+		String name = getName(file);
+		if (name == null) return;
+
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setId(file.getPath());
+		entry.setDirectory(file.isDirectory());
+		entry.setTitle(name);
+		entry.setArtist(artistName);
+		// Songs directly in the artist directory are their own album
+		entry.setAlbum(albumName != null ? albumName : name);
+		entries.add(entry);
+	}
 
-		int closeness = 0;
+	private static MusicDirectory.Entry createEntry(Context context, MusicDirectory.Entry pathEntry)
+	{
+		MusicDirectory.Entry entry = createEntry(context, new File(pathEntry.getId()), pathEntry.getTitle());
+		entry.setArtist(pathEntry.getArtist());
+		entry.setCloseness(pathEntry.getCloseness());
 
-		for (String queryPart : queryParts)
+		if (!pathEntry.isDirectory())
 		{
-			for (String namePart : nameParts)
-			{
-				if (namePart.equals(queryPart))
-				{
-					closeness++;
-				}
-			}
+			entry.setAlbum(pathEntry.getAlbum());
 		}
 
-		return closeness;
+		return entry;
 	}
 
 	@Override
@@ -592,7 +895,8 @@ public class OfflineMusicService implements MusicService
 
 				if (entryFile.exists() && entryName != null)
 				{
-					playlist.addChild(createEntry(context, entryFile, entryName));
+					MusicDirectory.Entry entry = catalog.get(entryFile.getPath(), entryFile.getParent());
+					playlist.addChild(entry != null ? entry : createEntry(context, entryFile, entryName));
 				}
 			}
 
@@ -640,38 +944,79 @@ public class OfflineMusicService implements MusicService
 
 	@Override
 	public MusicDirectory getRandomSongs(int size, Context context, ProgressListener progressListener)
+	{
+		return getRandomSongs(size, Collections.<String>emptySet(), context);
+	}
+
+	/**
+	 * Returns random songs from the catalog, the songs with the excluded ids are only returned if there are not
+	 * enough others. Once the music directory is cataloged, this takes time proportional to the number of songs
+	 * returned. Until then, the songs are picked from the files found in the music directory.
+	 */
+	public MusicDirectory getRandomSongs(int size, Set<String> excludedIds, Context context)
 	{
 		File root = FileUtil.getMusicDirectory(context);
-		List<File> children = new LinkedList<File>();
-		listFilesRecursively(root, children);
+		startCataloging(context, root);
+
 		MusicDirectory result = new MusicDirectory();
+		List<MusicDirectory.Entry> songs = catalog.getRandomSongs(root.getPath(), size, random, excludedIds);
 
-		if (children.isEmpty())
+		if (songs == null)
 		{
-			return result;
+			return getRandomFiles(context, root, size, excludedIds);
 		}
 
-		Random random = new java.security.SecureRandom();
-		for (int i = 0; i < size; i++)
+		for (MusicDirectory.Entry song : songs)
+		{
+			if (isCatalogedFilePresent(song.getId(), song.getParent())) result.addChild(song);
+		}
+
+		return result;
+	}
+
+	// Only the tags of the picked files are read
+	private MusicDirectory getRandomFiles(Context context, File root, int size, Set<String> excludedIds)
+	{
+		List<File> files = new ArrayList<File>();
+		List<File> excludedFiles = new ArrayList<File>();
+		listFilesRecursively(root, files);
+
+		for (Iterator<File> iterator = files.iterator(); iterator.hasNext(); )
+		{
+			File file = iterator.next();
+
+			if (excludedIds.contains(file.getPath()))
+			{
+				iterator.remove();
+				excludedFiles.add(file);
+			}
+		}
+
+		Collections.shuffle(files, random);
+		Collections.shuffle(excludedFiles, random);
+		files.addAll(excludedFiles);
+
+		MusicDirectory result = new MusicDirectory();
+
+		for (File file : files.subList(0, Math.min(size, files.size())))
 		{
-			File file = children.get(random.nextInt(children.size()));
 			result.addChild(createEntry(context, file, getName(file)));
 		}
 
 		return result;
 	}
 
-	private static void listFilesRecursively(File parent, List<File> children)
+	private static void listFilesRecursively(File parent, List<File> files)
 	{
 		for (File file : FileUtil.listMediaFiles(parent))
 		{
-			if (file.isFile())
+			if (file.isDirectory())
 			{
-				children.add(file);
+				listFilesRecursively(file, files);
 			}
-			else
+			else if (getName(file) != null)
 			{
-				listFilesRecursively(file, children);
+				files.add(file);
 			}
 		}
 	}
@@ -695,7 +1040,7 @@ public class OfflineMusicService implements MusicService
 	}
 
 	@Override
-	public void scrobble(String id, boolean submission, Context context, ProgressListener progressListener) throws Exception
+	public void scrobble(String id, Long time, boolean submission, Context context, ProgressListener progressListener) throws Exception
 	{
 		throw new OfflineException("Scrobbling not available in offline mode");
 	}
@@ -0,0 +1,162 @@
+package org.moire.ultrasonic.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import timber.log.Timber;
+
+import org.moire.ultrasonic.util.Util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tells the user interface when the playback or download state has changed, so the views don't have to poll it.
+ *
+ * Changes may be reported from any thread. They are collected and delivered to the listeners on the main thread:
+ * changes of the playlist, the player state and the download state of a song as soon as possible,
+ * download progress at most once per view refresh interval.
+ */
+public class PlaybackStateNotifier
+{
+    public interface Listener
+    {
+        /**
+         * Called with the ids of the songs whose download has started, progressed, completed, failed or was
+         * cancelled, or whose files were saved, unpinned or deleted.
+         */
+        void onDownloadStateChanged(Set<String> songIds);
+
+        /**
+         * Called when the playlist or its revision has changed.
+         */
+        void onPlaylistChanged();
+
+        /**
+         * Called when the player state or the current playing file has changed.
+         */
+        void onPlayerStateChanged();
+    }
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private Set<String> changedSongs = new HashSet<>();
+    private boolean playlistChanged;
+    private boolean playerStateChanged;
+    private boolean dispatchPending;
+    private long dispatchAt;
+    private long lastDispatch;
+
+    public PlaybackStateNotifier(Context context)
+    {
+        this.context = context;
+    }
+
+    public void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reports that more of the song was downloaded. Progress is throttled to the view refresh interval.
+     */
+    public synchronized void notifyDownloadProgress(DownloadFile downloadFile)
+    {
+        changedSongs.add(downloadFile.getSong().getId());
+        schedule(false);
+    }
+
+    public synchronized void notifyDownloadStateChanged(DownloadFile downloadFile)
+    {
+        changedSongs.add(downloadFile.getSong().getId());
+        schedule(true);
+    }
+
+    public synchronized void notifyPlaylistChanged()
+    {
+        playlistChanged = true;
+        schedule(true);
+    }
+
+    public synchronized void notifyPlayerStateChanged()
+    {
+        playerStateChanged = true;
+        schedule(true);
+    }
+
+    private void schedule(boolean urgent)
+    {
+        if (listeners.isEmpty())
+        {
+            // Nobody is watching, the views read the current state when they are shown
+            changedSongs.clear();
+            playlistChanged = false;
+            playerStateChanged = false;
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long at = urgent ? now : Math.max(now, lastDispatch + Util.getViewRefreshInterval(context));
+
+        if (dispatchPending)
+        {
+            if (dispatchAt <= at) return;
+            handler.removeCallbacks(dispatcher);
+        }
+
+        dispatchPending = true;
+        dispatchAt = at;
+        handler.postAtTime(dispatcher, at);
+    }
+
+    private final Runnable dispatcher = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Set<String> songs;
+            boolean playlist;
+            boolean playerState;
+
+            synchronized (PlaybackStateNotifier.this)
+            {
+                songs = changedSongs;
+                playlist = playlistChanged;
+                playerState = playerStateChanged;
+
+                changedSongs = new HashSet<>();
+                playlistChanged = false;
+                playerStateChanged = false;
+                dispatchPending = false;
+                lastDispatch = SystemClock.uptimeMillis();
+            }
+
+            songs = Collections.unmodifiableSet(songs);
+
+            for (Listener listener : listeners)
+            {
+                try
+                {
+                    if (playlist) listener.onPlaylistChanged();
+                    if (playerState) listener.onPlayerStateChanged();
+                    if (!songs.isEmpty()) listener.onDownloadStateChanged(songs);
+                }
+                catch (Throwable x)
+                {
+                    Timber.w(x, "Error when notifying about playback state changes.");
+                }
+            }
+        }
+    };
+}
@@ -1,10 +1,12 @@
 package org.moire.ultrasonic.service;
 
 import android.content.Context;
-import timber.log.Timber;
 
 import org.moire.ultrasonic.data.ActiveServerProvider;
-import org.moire.ultrasonic.util.Util;
+
+import kotlin.Lazy;
+
+import static org.koin.java.KoinJavaComponent.inject;
 
 /**
  * Scrobbles played songs to Last.fm.
@@ -14,6 +16,7 @@ import org.moire.ultrasonic.util.Util;
  */
 public class Scrobbler
 {
+	private final Lazy<ActionQueue> actionQueue = inject(ActionQueue.class);
 	private String lastSubmission;
 	private String lastNowPlaying;
 
@@ -46,22 +49,6 @@ public class Scrobbler
 			lastNowPlaying = id;
 		}
 
-		new Thread(String.format("Scrobble %s", song))
-		{
-			@Override
-			public void run()
-			{
-				MusicService service = MusicServiceFactory.getMusicService(context);
-				try
-				{
-					service.scrobble(id, submission, context, null);
-					Timber.i("Scrobbled '%s' for %s", submission ? "submission" : "now playing", song);
-				}
-				catch (Exception x)
-				{
-					Timber.i(x, "Failed to scrobble'%s' for %s", submission ? "submission" : "now playing", song);
-				}
-			}
-		}.start();
+		actionQueue.getValue().scrobble(id, submission);
 	}
 }
@@ -24,6 +24,7 @@ import timber.log.Timber;
 import com.fasterxml.jackson.core.JsonParseException;
 import org.moire.ultrasonic.R;
 import org.moire.ultrasonic.api.subsonic.ApiNotSupportedException;
+import org.moire.ultrasonic.api.subsonic.CallScope;
 import org.moire.ultrasonic.service.SubsonicRESTException;
 import org.moire.ultrasonic.subsonic.RestErrorMapper;
 
@@ -40,11 +41,21 @@ public abstract class BackgroundTask<T> implements ProgressListener
 {
 	private final Activity activity;
 	private final Handler handler;
+	private final CallScope callScope;
 
 	public BackgroundTask(Activity activity)
+	{
+		this(activity, null);
+	}
+
+	/**
+	 * The HTTP calls of the task are cancelled along with the parent scope, normally the one of the activity.
+	 */
+	public BackgroundTask(Activity activity, CallScope parentScope)
 	{
 		this.activity = activity;
 		handler = new Handler();
+		callScope = new CallScope(parentScope);
 	}
 
 	protected Activity getActivity()
@@ -61,6 +72,31 @@ public abstract class BackgroundTask<T> implements ProgressListener
 
 	protected abstract T doInBackground() throws Throwable;
 
+	/**
+	 * Runs doInBackground on the calling thread, with the HTTP calls it makes belonging to the task.
+	 */
+	protected T runInBackground() throws Throwable
+	{
+		CallScope.Activation activation = callScope.activate();
+
+		try
+		{
+			return doInBackground();
+		}
+		finally
+		{
+			activation.close();
+		}
+	}
+
+	/**
+	 * Cancels the HTTP calls of the task, which makes it fail as soon as possible.
+	 */
+	public void cancelCalls()
+	{
+		callScope.cancel();
+	}
+
 	protected abstract void done(T result);
 
 	protected void error(Throwable error)
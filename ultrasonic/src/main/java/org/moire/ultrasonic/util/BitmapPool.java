@@ -0,0 +1,126 @@
+package org.moire.ultrasonic.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import timber.log.Timber;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Bitmaps which are not used anymore, kept to decode new images into with BitmapFactory.Options.inBitmap,
+ * so decoding cover art doesn't allocate a new bitmap every time.
+ *
+ * Only bitmaps which are certainly not referenced anywhere else may be put into the pool, like the intermediate
+ * results of decoding and scaling. Bitmaps which were shown in a view or handed out by the image cache must never be.
+ * The pool is bounded by the summed size of its bitmaps, the oldest ones are dropped first.
+ */
+public class BitmapPool
+{
+	private final long maxBytes;
+	private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+	private long bytes;
+
+	public BitmapPool(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the number of bytes used by the pixels of the bitmap.
+	 */
+	public static long getByteCount(Bitmap bitmap)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return bitmap.getAllocationByteCount();
+		return bitmap.getByteCount();
+	}
+
+	public synchronized void put(Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+
+		long size = getByteCount(bitmap);
+		if (size > maxBytes) return;
+
+		bitmaps.addLast(bitmap);
+		bytes += size;
+
+		while (bytes > maxBytes)
+		{
+			bytes -= getByteCount(bitmaps.removeFirst());
+		}
+	}
+
+	/**
+	 * Returns a bitmap which the image can be decoded into, or null if there is none.
+	 * Before KitKat the bitmap must have exactly the dimensions of the decoded image, since then it must be large enough.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		boolean exact = Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT;
+		long required = (long) width * height * getBytesPerPixel(config);
+		Iterator<Bitmap> iterator = bitmaps.iterator();
+
+		while (iterator.hasNext())
+		{
+			Bitmap bitmap = iterator.next();
+			boolean fits = exact
+					? bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config
+					: getByteCount(bitmap) >= required;
+
+			if (fits)
+			{
+				iterator.remove();
+				bytes -= getByteCount(bitmap);
+				return bitmap;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Decodes the file with the options, into a pooled bitmap if there is a suitable one.
+	 * The options must hold the dimensions of the image from a decode with inJustDecodeBounds.
+	 * The result is mutable, so it can be put into the pool again when it is not needed anymore.
+	 */
+	public Bitmap decodeFile(String path, BitmapFactory.Options options)
+	{
+		int sampleSize = Math.max(options.inSampleSize, 1);
+		// JPEG decoders round the sampled dimensions up
+		int width = (options.outWidth + sampleSize - 1) / sampleSize;
+		int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+		// Before KitKat only images which are not sampled down can be decoded into an existing bitmap
+		boolean reusable = width > 0 && height > 0 && (sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+
+		options.inMutable = true;
+		options.inBitmap = reusable ? get(width, height, options.inPreferredConfig) : null;
+
+		if (options.inBitmap != null)
+		{
+			try
+			{
+				Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+				if (bitmap != null) return bitmap;
+			}
+			catch (IllegalArgumentException x)
+			{
+				// The guess of the decoded size was wrong, the bitmap can't be reused
+				Timber.d("Bitmap of %dx%d can't be reused for %s", width, height, path);
+			}
+
+			options.inBitmap = null;
+		}
+
+		return BitmapFactory.decodeFile(path, options);
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config)
+	{
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+		if (config == Bitmap.Config.ALPHA_8) return 1;
+		return 4;
+	}
+}
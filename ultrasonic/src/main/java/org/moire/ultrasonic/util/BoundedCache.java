@@ -0,0 +1,289 @@
+package org.moire.ultrasonic.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe in-memory cache with access ordered (LRU) eviction.
+ *
+ * The key space is split into a fixed number of segments, each guarded by its own lock,
+ * so lookups on different keys rarely contend. Every segment keeps its entries in an
+ * access ordered LinkedHashMap, making both lookup and eviction of the eldest entry O(1).
+ *
+ * The bound applies to the whole cache, not to each segment, so keys which hash unevenly don't
+ * cause early evictions. When it is exceeded, the segments holding more than their share evict
+ * their least recently used entries first, starting with the segment of the new entry, then the
+ * others. So the eviction order is least recently used per segment, not across the whole cache.
+ *
+ * Each entry may carry its own time to live, and the cache can be bounded either by entry
+ * count or by an arbitrary weight (e.g. bytes) supplied by a {@link Weigher}.
+ * Values are held by strong references, the bound is what keeps memory in check.
+ */
+public class BoundedCache<K, V>
+{
+	private static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+	/**
+	 * Calculates the weight of a cache entry. Weights must not change while the entry is cached.
+	 */
+	public interface Weigher<K, V>
+	{
+		long weigh(K key, V value);
+	}
+
+	private final Segment[] segments;
+	private final Weigher<? super K, ? super V> weigher;
+	private final long maxWeight;
+	private final long segmentShare;
+	private final AtomicLong totalWeight = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates a cache which holds at most maxEntries entries.
+	 */
+	public BoundedCache(int maxEntries)
+	{
+		this(maxEntries, null, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Creates a cache bounded by the summed weight of its entries.
+	 *
+	 * @param maxWeight the maximum total weight, or the maximum entry count if weigher is null
+	 * @param weigher calculates the weight of the entries, null to count every entry as one
+	 * @param concurrencyLevel the number of independently locked segments
+	 */
+	@SuppressWarnings("unchecked")
+	public BoundedCache(long maxWeight, Weigher<? super K, ? super V> weigher, int concurrencyLevel)
+	{
+		if (maxWeight <= 0) throw new IllegalArgumentException("maxWeight must be positive");
+
+		this.weigher = weigher;
+		this.maxWeight = maxWeight;
+
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < maxWeight) segmentCount <<= 1;
+
+		segmentShare = (maxWeight + segmentCount - 1) / segmentCount;
+		segments = new BoundedCache.Segment[segmentCount];
+
+		for (int i = 0; i < segmentCount; i++)
+		{
+			segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * Returns the cached value for the key, or null if it is absent or expired.
+	 */
+	public V get(K key)
+	{
+		V value = segmentFor(key).get(key);
+
+		if (value == null) missCount.incrementAndGet();
+		else hitCount.incrementAndGet();
+
+		return value;
+	}
+
+	/**
+	 * Stores the value without an expiry time.
+	 */
+	public void put(K key, V value)
+	{
+		put(key, value, NO_EXPIRY);
+	}
+
+	/**
+	 * Stores the value, which will be treated as absent after the given time has passed.
+	 */
+	public void put(K key, V value, long ttl, TimeUnit timeUnit)
+	{
+		put(key, value, System.nanoTime() + timeUnit.toNanos(ttl));
+	}
+
+	private void put(K key, V value, long expires)
+	{
+		int index = segmentIndexFor(key);
+		segments[index].put(key, value, expires);
+		if (totalWeight.get() > maxWeight) evict(index);
+	}
+
+	/**
+	 * Evicts entries until the cache is within its bound again. The segments are locked one at a time.
+	 */
+	private void evict(int firstSegment)
+	{
+		for (int pass = 0; pass < 2; pass++)
+		{
+			// The first pass only takes from the segments over their share, the second one from any
+			long keep = pass == 0 ? segmentShare : 0;
+
+			for (int i = 0; i < segments.length; i++)
+			{
+				if (totalWeight.get() <= maxWeight) return;
+				segments[(firstSegment + i) & (segments.length - 1)].evict(keep);
+			}
+		}
+	}
+
+	public void remove(K key)
+	{
+		segmentFor(key).remove(key);
+	}
+
+	public void clear()
+	{
+		for (Segment segment : segments)
+		{
+			segment.clear();
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+
+		for (Segment segment : segments)
+		{
+			size += segment.size();
+		}
+
+		return size;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("BoundedCache[size=%d, hits=%d, misses=%d, evictions=%d]",
+				size(), getHitCount(), getMissCount(), getEvictionCount());
+	}
+
+	private Segment segmentFor(K key)
+	{
+		return segments[segmentIndexFor(key)];
+	}
+
+	private int segmentIndexFor(K key)
+	{
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return hash & (segments.length - 1);
+	}
+
+	private long weigh(K key, V value)
+	{
+		return weigher == null ? 1 : weigher.weigh(key, value);
+	}
+
+	private static final class CacheEntry<V>
+	{
+		final V value;
+		final long weight;
+		final long expires;
+
+		CacheEntry(V value, long weight, long expires)
+		{
+			this.value = value;
+			this.weight = weight;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now)
+		{
+			return expires != NO_EXPIRY && now - expires >= 0;
+		}
+	}
+
+	private final class Segment
+	{
+		private final Map<K, CacheEntry<V>> map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+		private long weight;
+
+		synchronized V get(K key)
+		{
+			CacheEntry<V> entry = map.get(key);
+			if (entry == null) return null;
+
+			if (entry.isExpired(System.nanoTime()))
+			{
+				map.remove(key);
+				addWeight(-entry.weight);
+				return null;
+			}
+
+			return entry.value;
+		}
+
+		synchronized void put(K key, V value, long expires)
+		{
+			CacheEntry<V> entry = new CacheEntry<V>(value, weigh(key, value), expires);
+			CacheEntry<V> previous = map.put(key, entry);
+
+			addWeight(previous == null ? entry.weight : entry.weight - previous.weight);
+		}
+
+		synchronized void remove(K key)
+		{
+			CacheEntry<V> entry = map.remove(key);
+			if (entry != null) addWeight(-entry.weight);
+		}
+
+		synchronized void clear()
+		{
+			map.clear();
+			addWeight(-weight);
+		}
+
+		synchronized int size()
+		{
+			return map.size();
+		}
+
+		/**
+		 * Evicts the least recently used entries while the cache is over its bound and this segment
+		 * holds more than the given weight. The iteration order of an access ordered LinkedHashMap
+		 * starts with the least recently used entry.
+		 */
+		synchronized void evict(long keep)
+		{
+			Iterator<CacheEntry<V>> iterator = map.values().iterator();
+
+			while (weight > keep && totalWeight.get() > maxWeight && iterator.hasNext())
+			{
+				CacheEntry<V> eldest = iterator.next();
+				iterator.remove();
+				addWeight(-eldest.weight);
+				evictionCount.incrementAndGet();
+			}
+		}
+
+		// Called while holding the lock of the segment
+		private void addWeight(long delta)
+		{
+			weight += delta;
+			totalWeight.addAndGet(delta);
+		}
+	}
+}
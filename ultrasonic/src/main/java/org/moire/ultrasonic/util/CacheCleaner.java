@@ -9,6 +9,7 @@ import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.Playlist;
 import org.moire.ultrasonic.service.DownloadFile;
 import org.moire.ultrasonic.service.Downloader;
+import org.moire.ultrasonic.service.MusicServiceFactory;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -39,6 +40,8 @@ public class CacheCleaner
 	private final Context context;
 	private Lazy<Downloader> downloader = inject(Downloader.class);
 	private Lazy<ActiveServerProvider> activeServerProvider = inject(ActiveServerProvider.class);
+	private Lazy<CacheIndex> cacheIndex = inject(CacheIndex.class);
+	private Lazy<EvictionPolicy> evictionPolicy = inject(EvictionPolicy.class);
 
 	public CacheCleaner(Context context)
 	{
@@ -113,23 +116,17 @@ public class CacheCleaner
 		}
 	}
 
-	private long getMinimumDelete(List<File> files)
+	private long getMinimumDelete(long bytesUsedBySubsonic)
 	{
-		if (files.isEmpty())
+		if (bytesUsedBySubsonic == 0L)
 		{
 			return 0L;
 		}
 
 		long cacheSizeBytes = Util.getCacheSizeMB(context) * 1024L * 1024L;
-		long bytesUsedBySubsonic = 0L;
-
-		for (File file : files)
-		{
-			bytesUsedBySubsonic += file.length();
-		}
 
 		// Ensure that file system is not more than 95% full.
-		StatFs stat = new StatFs(files.get(0).getPath());
+		StatFs stat = new StatFs(FileUtil.getMusicDirectory(context).getPath());
 		long bytesTotalFs = (long) stat.getBlockCount() * (long) stat.getBlockSize();
 		long bytesAvailableFs = (long) stat.getAvailableBlocks() * (long) stat.getBlockSize();
 		long bytesUsedFs = bytesTotalFs - bytesAvailableFs;
@@ -174,16 +171,64 @@ public class CacheCleaner
 		}
 
 		Timber.i("Deleted           : %s", Util.formatBytes(bytesDeleted));
+		DownloadFile.invalidateFileStates();
+	}
+
+	private void updateOfflineCatalog(List<File> deleted)
+	{
+		if (!deleted.isEmpty())
+		{
+			MusicServiceFactory.getOfflineMusicService().updateCatalog(context, deleted.toArray(new File[0]));
+		}
+	}
+
+	private static long getTotalLength(Iterable<File> files)
+	{
+		long length = 0L;
+
+		for (File file : files)
+		{
+			length += file.length();
+		}
+
+		return length;
+	}
+
+	private static List<File> deleteFiles(CacheIndex index, EvictionPolicy policy, Collection<File> doNotDelete, long bytesToDelete)
+	{
+		long bytesDeleted = 0L;
+		List<File> deleted = new ArrayList<File>();
+
+		for (CacheIndex.Entry entry : index.getEvictionCandidates(bytesToDelete, doNotDelete, policy))
+		{
+			File file = entry.getFile();
+
+			// The file was removed behind our back, it doesn't count towards the freed space
+			if (!file.exists())
+			{
+				Timber.i("Cache index entry %s has no file", file);
+				index.remove(file);
+				continue;
+			}
+
+			if (Util.delete(file))
+			{
+				index.remove(file);
+				bytesDeleted += entry.getSize();
+				deleted.add(file);
+			}
+		}
+
+		Timber.i("Deleted           : %s", Util.formatBytes(bytesDeleted));
+		DownloadFile.invalidateFileStates();
+		return deleted;
 	}
 
 	private static void findCandidatesForDeletion(File file, List<File> files, List<File> dirs)
 	{
 		if (file.isFile())
 		{
-			String name = file.getName();
-			boolean isCacheFile = name.endsWith(".partial") || name.contains(".partial.") || name.endsWith(".complete") || name.contains(".complete.");
-
-			if (isCacheFile)
+			if (CacheIndex.isCacheFile(file))
 			{
 				files.add(file);
 			}
@@ -252,8 +297,23 @@ public class CacheCleaner
 
 				Set<File> filesToNotDelete = findFilesToNotDelete();
 
-				deleteFiles(files, filesToNotDelete, getMinimumDelete(files), true);
+				deleteFiles(files, filesToNotDelete, getMinimumDelete(getTotalLength(files)), true);
 				deleteEmptyDirs(dirs, filesToNotDelete);
+
+				// Having walked the whole tree anyway, refresh the index with the files which were kept
+				List<File> remaining = new ArrayList<File>(files.size());
+				List<File> deleted = new ArrayList<File>();
+				for (File file : files)
+				{
+					if (file.exists()) remaining.add(file);
+					else deleted.add(file);
+				}
+
+				updateOfflineCatalog(deleted);
+
+				CacheIndex index = cacheIndex.getValue();
+				index.rebuild(remaining);
+				index.save();
 			}
 			catch (RuntimeException x)
 			{
@@ -272,17 +332,26 @@ public class CacheCleaner
 			try
 			{
 				Thread.currentThread().setName("BackgroundSpaceCleanup");
-				List<File> files = new ArrayList<File>();
-				List<File> dirs = new ArrayList<File>();
-				findCandidatesForDeletion(FileUtil.getMusicDirectory(context), files, dirs);
+				CacheIndex index = cacheIndex.getValue();
 
-				long bytesToDelete = getMinimumDelete(files);
+				// Only walk the music directory if the index can't be trusted
+				if (!index.isValid())
+				{
+					Timber.i("Cache index is missing or stale, scanning the music directory");
+					List<File> files = new ArrayList<File>();
+					List<File> dirs = new ArrayList<File>();
+					findCandidatesForDeletion(FileUtil.getMusicDirectory(context), files, dirs);
+					index.rebuild(files);
+				}
+
+				long bytesToDelete = getMinimumDelete(index.getCacheSize());
 				if (bytesToDelete > 0L)
 				{
-					sortByAscendingModificationTime(files);
 					Set<File> filesToNotDelete = findFilesToNotDelete();
-					deleteFiles(files, filesToNotDelete, bytesToDelete, false);
+					updateOfflineCatalog(deleteFiles(index, evictionPolicy.getValue(), filesToNotDelete, bytesToDelete));
 				}
+
+				index.save();
 			}
 			catch (RuntimeException x)
 			{
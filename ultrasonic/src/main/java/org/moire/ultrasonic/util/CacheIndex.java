@@ -0,0 +1,528 @@
+package org.moire.ultrasonic.util;
+
+import android.content.Context;
+import timber.log.Timber;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent index of the cache files in the music directory, with their size, last access time, play count
+ * and pinned state.
+ *
+ * The index is kept up to date by the DownloadFiles whenever they write, rename, delete or touch a file,
+ * so the CacheCleaner can calculate the size of the cache and pick the files to evict without walking
+ * the directory tree. Entries are held in access time order, so finding the k least recently used files
+ * costs O(k), other {@link EvictionPolicy}s rank the entries in memory.
+ *
+ * The index is persisted as a snapshot and a log of the changes made since, so a change only appends a
+ * record to the log. The snapshot is rewritten when the index was rebuilt or the log has grown larger
+ * than the index itself.
+ *
+ * The index is considered stale if it is missing, unreadable, was built for another music directory or
+ * hasn't been rebuilt from a full scan for a day.
+ */
+public class CacheIndex
+{
+	private static final String INDEX_FILE_NAME = "cache_index.dat";
+	private static final String LOG_FILE_NAME = "cache_index.log";
+	private static final int INDEX_FILE_VERSION = 2;
+	private static final long MAX_INDEX_AGE = TimeUnit.DAYS.toMillis(1);
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+
+	// The log is compacted into the snapshot when it holds more records than the index has entries, plus this
+	private static final int COMPACTION_SLACK = 256;
+
+	private static final Comparator<Entry> ACCESS_ORDER = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(Entry a, Entry b)
+		{
+			if (a.lastAccess != b.lastAccess) return a.lastAccess < b.lastAccess ? -1 : 1;
+			return a.path.compareTo(b.path);
+		}
+	};
+
+	/**
+	 * A file in the index. Pinned files belong to songs which are being downloaded to be saved, they are never evicted.
+	 */
+	public static final class Entry
+	{
+		private final String path;
+		private final long size;
+		private final long lastAccess;
+		private final int accessCount;
+		private final boolean pinned;
+
+		Entry(String path, long size, long lastAccess, int accessCount, boolean pinned)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastAccess = lastAccess;
+			this.accessCount = accessCount;
+			this.pinned = pinned;
+		}
+
+		public File getFile()
+		{
+			return new File(path);
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastAccess()
+		{
+			return lastAccess;
+		}
+
+		/**
+		 * Returns how many times the song was played since the file was added to the index.
+		 */
+		public int getAccessCount()
+		{
+			return accessCount;
+		}
+
+		public boolean isPinned()
+		{
+			return pinned;
+		}
+	}
+
+	private final Context context;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final TreeSet<Entry> accessOrder = new TreeSet<Entry>(ACCESS_ORDER);
+	private String root;
+	private long builtAt;
+	private long cacheSize;
+	private boolean loaded;
+	private boolean valid;
+	private boolean rewriteNeeded;
+	private int logRecords;
+
+	public CacheIndex(Context context)
+	{
+		this.context = context;
+	}
+
+	public static boolean isCacheFile(File file)
+	{
+		String name = file.getName();
+		return name.endsWith(".partial") || name.contains(".partial.") || name.endsWith(".complete") || name.contains(".complete.");
+	}
+
+	/**
+	 * Returns true if the index can be used instead of scanning the music directory.
+	 */
+	public synchronized boolean isValid()
+	{
+		ensureLoaded();
+		return valid &&
+				FileUtil.getMusicDirectory(context).getPath().equals(root) &&
+				System.currentTimeMillis() - builtAt < MAX_INDEX_AGE;
+	}
+
+	/**
+	 * Updates the entry of the file from the file system: adds or refreshes it if it is an existing cache file,
+	 * removes it otherwise. Saved files are not part of the cache, so saving a file drops it from the index.
+	 */
+	public synchronized void update(File file, boolean pinned, int accessCount)
+	{
+		ensureLoaded();
+		if (!valid) return;
+
+		String path = file.getPath();
+		boolean removed = removeEntry(path);
+
+		if (isCacheFile(file) && file.isFile())
+		{
+			Entry entry = new Entry(path, file.length(), file.lastModified(), accessCount, pinned);
+			addEntry(entry);
+			appendToLog(OP_PUT, path, entry);
+		}
+		else if (removed)
+		{
+			appendToLog(OP_REMOVE, path, null);
+		}
+	}
+
+	/**
+	 * Returns the play count of the file, or 0 if it isn't in the index.
+	 */
+	public synchronized int getAccessCount(File file)
+	{
+		ensureLoaded();
+		Entry entry = entries.get(file.getPath());
+		return entry == null ? 0 : entry.accessCount;
+	}
+
+	public synchronized void remove(File file)
+	{
+		ensureLoaded();
+		if (!valid) return;
+
+		if (removeEntry(file.getPath())) appendToLog(OP_REMOVE, file.getPath(), null);
+	}
+
+	/**
+	 * Replaces the contents of the index with the result of a full scan of the music directory.
+	 * The play counts and the pinned state of the files which were already in the index are kept.
+	 */
+	public synchronized void rebuild(Collection<File> files)
+	{
+		ensureLoaded();
+		Map<String, Entry> previous = new HashMap<String, Entry>(entries);
+		entries.clear();
+		accessOrder.clear();
+		cacheSize = 0;
+
+		for (File file : files)
+		{
+			Entry entry = previous.get(file.getPath());
+			int accessCount = entry == null ? 0 : entry.accessCount;
+			boolean pinned = entry != null && entry.pinned;
+			addEntry(new Entry(file.getPath(), file.length(), file.lastModified(), accessCount, pinned));
+		}
+
+		root = FileUtil.getMusicDirectory(context).getPath();
+		builtAt = System.currentTimeMillis();
+		loaded = true;
+		valid = true;
+		rewriteNeeded = true;
+
+		// The logged changes were made to the replaced contents, they must not be replayed on the new snapshot
+		Util.delete(getLogFile());
+		logRecords = 0;
+
+		Timber.i("Rebuilt cache index with %d entries", entries.size());
+	}
+
+	/**
+	 * Returns the summed size of the cache files.
+	 */
+	public synchronized long getCacheSize()
+	{
+		ensureLoaded();
+		return cacheSize;
+	}
+
+	/**
+	 * Returns the cache files in the order the policy wants them evicted, until their summed size reaches
+	 * the given amount of bytes or the index is exhausted. Pinned files and the files in doNotDelete are skipped.
+	 */
+	public synchronized List<Entry> getEvictionCandidates(long bytes, Collection<File> doNotDelete, EvictionPolicy policy)
+	{
+		ensureLoaded();
+		List<Entry> result = new ArrayList<Entry>();
+		long total = 0L;
+
+		Iterator<Entry> iterator = policy.isAccessOrdered() ? accessOrder.iterator() : rank(policy);
+		while (total < bytes && iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if (entry.pinned || doNotDelete.contains(entry.getFile())) continue;
+
+			result.add(entry);
+			total += entry.size;
+		}
+
+		return result;
+	}
+
+	// The values are calculated once per ranking, the policy doesn't need to be cheap
+	private Iterator<Entry> rank(final EvictionPolicy policy)
+	{
+		final long now = System.currentTimeMillis();
+		final Map<Entry, Double> values = new HashMap<Entry, Double>(entries.size());
+
+		for (Entry entry : accessOrder)
+		{
+			values.put(entry, policy.getValue(entry, now));
+		}
+
+		final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(Math.max(values.size(), 1), new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry a, Entry b)
+			{
+				int result = Double.compare(values.get(a), values.get(b));
+				return result != 0 ? result : ACCESS_ORDER.compare(a, b);
+			}
+		});
+		queue.addAll(values.keySet());
+
+		return new Iterator<Entry>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public Entry next()
+			{
+				return queue.poll();
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Rewrites the snapshot of the index in the cache directory of the application if the index was rebuilt,
+	 * or if the log of the changes has grown too large. The changes are persisted as they are made otherwise.
+	 */
+	public synchronized void save()
+	{
+		if (!valid) return;
+		if (!rewriteNeeded && logRecords <= entries.size() + COMPACTION_SLACK) return;
+
+		File file = getIndexFile();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(INDEX_FILE_VERSION);
+			out.writeUTF(root);
+			out.writeLong(builtAt);
+			out.writeInt(entries.size());
+
+			for (Entry entry : accessOrder)
+			{
+				writeEntry(out, entry);
+			}
+
+			out.close();
+			out = null;
+
+			if (!tmp.renameTo(file)) throw new IOException("Failed to rename " + tmp);
+
+			// The snapshot contains the logged changes, replaying them on it again wouldn't change anything
+			Util.delete(getLogFile());
+			logRecords = 0;
+			rewriteNeeded = false;
+		}
+		catch (IOException x)
+		{
+			Timber.w(x, "Failed to write cache index to %s", file);
+			Util.delete(tmp);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	// A change which can't be logged is persisted with the next snapshot
+	private void appendToLog(byte op, String path, Entry entry)
+	{
+		if (rewriteNeeded) return;
+
+		FileOutputStream out = null;
+
+		try
+		{
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream recordOut = new DataOutputStream(record);
+			recordOut.writeByte(op);
+			if (entry != null) writeEntry(recordOut, entry);
+			else recordOut.writeUTF(path);
+
+			// Written at once, so a crash can only cut the last record
+			out = new FileOutputStream(getLogFile(), true);
+			out.write(record.toByteArray());
+			logRecords++;
+		}
+		catch (IOException x)
+		{
+			Timber.w(x, "Failed to log a change of the cache index");
+			rewriteNeeded = true;
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException
+	{
+		out.writeUTF(entry.path);
+		out.writeLong(entry.size);
+		out.writeLong(entry.lastAccess);
+		out.writeInt(entry.accessCount);
+		out.writeBoolean(entry.pinned);
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException
+	{
+		return new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readBoolean());
+	}
+
+	private File getIndexFile()
+	{
+		return new File(context.getCacheDir(), INDEX_FILE_NAME);
+	}
+
+	private File getLogFile()
+	{
+		return new File(context.getCacheDir(), LOG_FILE_NAME);
+	}
+
+	private void ensureLoaded()
+	{
+		if (loaded) return;
+		loaded = true;
+
+		File file = getIndexFile();
+		if (!file.isFile()) return;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != INDEX_FILE_VERSION) return;
+
+			root = in.readUTF();
+			builtAt = in.readLong();
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++)
+			{
+				addEntry(readEntry(in));
+			}
+
+			valid = true;
+			replayLog();
+			Timber.i("Loaded cache index with %d entries and %d logged changes", count, logRecords);
+		}
+		catch (IOException x)
+		{
+			Timber.w(x, "Failed to read cache index from %s", file);
+			entries.clear();
+			accessOrder.clear();
+			cacheSize = 0;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	private void replayLog()
+	{
+		File file = getLogFile();
+		if (!file.isFile()) return;
+
+		DataInputStream in = null;
+		long validLength = 0;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			while (true)
+			{
+				int op = in.read();
+				if (op == -1) break;
+
+				if (op == OP_PUT)
+				{
+					Entry entry = readEntry(in);
+					removeEntry(entry.path);
+					addEntry(entry);
+				}
+				else
+				{
+					removeEntry(in.readUTF());
+				}
+
+				logRecords++;
+				validLength = file.length() - in.available();
+			}
+		}
+		catch (EOFException x)
+		{
+			// A record cut short by a crash ends the log, drop it so new records can be appended
+			Timber.w("Dropped incomplete record at %d of %s", validLength, file);
+			truncate(file, validLength);
+		}
+		catch (IOException x)
+		{
+			Timber.w(x, "Failed to read cache index log from %s", file);
+			rewriteNeeded = true;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	private void truncate(File file, long length)
+	{
+		RandomAccessFile randomAccessFile = null;
+
+		try
+		{
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			randomAccessFile.setLength(length);
+		}
+		catch (IOException x)
+		{
+			Timber.w(x, "Failed to truncate %s", file);
+			rewriteNeeded = true;
+		}
+		finally
+		{
+			Util.close(randomAccessFile);
+		}
+	}
+
+	private void addEntry(Entry entry)
+	{
+		entries.put(entry.path, entry);
+		accessOrder.add(entry);
+		cacheSize += entry.size;
+	}
+
+	private boolean removeEntry(String path)
+	{
+		Entry entry = entries.remove(path);
+		if (entry == null) return false;
+
+		accessOrder.remove(entry);
+		cacheSize -= entry.size;
+		return true;
+	}
+}
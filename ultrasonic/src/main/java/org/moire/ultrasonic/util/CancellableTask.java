@@ -72,12 +72,13 @@ public abstract class CancellableTask
 
 	public void start()
 	{
+		// Set before the thread is started, so the task is never seen as idle between start() and run()
+		running.set(true);
 		thread.set(new Thread()
 		{
 			@Override
 			public void run()
 			{
-				running.set(true);
 				Timber.i("Starting thread for %s", CancellableTask.this);
 				try
 				{
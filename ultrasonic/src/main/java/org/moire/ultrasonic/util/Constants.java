@@ -89,6 +89,7 @@ public final class Constants
 	public static final String PREFERENCES_KEY_CACHE_SIZE = "cacheSize";
 	public static final String PREFERENCES_KEY_CACHE_LOCATION = "cacheLocation";
 	public static final String PREFERENCES_KEY_PRELOAD_COUNT = "preloadCount";
+	public static final String PREFERENCES_KEY_PARALLEL_DOWNLOADS = "parallelDownloads";
 	public static final String PREFERENCES_KEY_HIDE_MEDIA = "hideMedia";
 	public static final String PREFERENCES_KEY_MEDIA_BUTTONS = "mediaButtons";
 	public static final String PREFERENCES_KEY_SCREEN_LIT_ON_DOWNLOAD = "screenLitOnDownload";
@@ -151,6 +152,8 @@ public final class Constants
 	public static final String DONATION_URL = "http://www.subsonic.org/pages/premium.jsp";
 
 	public static final String FILENAME_DOWNLOADS_SER = "downloadstate.ser";
+	public static final String FILENAME_DOWNLOADS_QUEUE = "downloadstate.queue";
+	public static final String FILENAME_DOWNLOADS_METADATA = "downloadstate.meta";
 
 	public static final String ALBUM_ART_FILE = "folder.jpeg";
 	public static final String STARRED = "starred";
@@ -0,0 +1,271 @@
+package org.moire.ultrasonic.util;
+
+import android.content.Context;
+import timber.log.Timber;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache of the cover art images as sent by the server, keyed by the server, the cover art id and a size tier.
+ *
+ * Requested sizes are rounded up to the next tier, so the lists, the notification, the widget, the lock screen
+ * and the Bluetooth metadata share the downloaded images instead of fetching and decoding each size separately.
+ * Concurrent requests for the same file are coalesced: the first caller downloads it, the others wait for its result.
+ * Images are streamed from the network to the file, the callers decode them from the file.
+ *
+ * The cache is bounded, the least recently used files are deleted when it outgrows its limit.
+ */
+public class CoverArtCache
+{
+	/**
+	 * Tier of the images in their original size, used when the server doesn't scale them.
+	 */
+	public static final int ORIGINAL_SIZE = 0;
+
+	private static final int[] SIZE_TIERS = {128, 256, 512, 1024, 2048};
+	private static final String CACHE_DIR_NAME = "sized";
+	private static final long MAX_CACHE_SIZE = 50L * 1024 * 1024;
+	private static final long TRIMMED_CACHE_SIZE = MAX_CACHE_SIZE * 3 / 4;
+	private static final long TOUCH_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * Writes an image to the stream, normally by downloading it from the server.
+	 */
+	public interface Fetcher
+	{
+		void fetch(OutputStream output) throws Exception;
+	}
+
+	private static final class Request
+	{
+		private final CountDownLatch done = new CountDownLatch(1);
+		private File file;
+		private Exception error;
+	}
+
+	private final Context context;
+	private final String serverId;
+	private final Map<String, Request> inFlight = new HashMap<String, Request>();
+	private long cacheSize = -1;
+
+	public CoverArtCache(Context context, String serverId)
+	{
+		this.context = context;
+		this.serverId = serverId;
+	}
+
+	/**
+	 * Returns the tier the requested size is rounded up to, sizes over the largest tier get the original image.
+	 */
+	public static int getSizeTier(int size)
+	{
+		if (size <= 0) return ORIGINAL_SIZE;
+
+		for (int tier : SIZE_TIERS)
+		{
+			if (size <= tier) return tier;
+		}
+
+		return ORIGINAL_SIZE;
+	}
+
+	/**
+	 * Returns the file of the image in the given tier, which may not exist yet.
+	 */
+	public File getFile(String coverArtId, int tier)
+	{
+		// Cover art ids are only unique on their server
+		String key = String.format("%s/%s", serverId, coverArtId);
+		return new File(getCacheDirectory(), String.format("%s-%d.jpeg", Util.md5Hex(key), tier));
+	}
+
+	/**
+	 * Returns the cached image which fits the requested size best, or null if no tier of the image is cached.
+	 * Larger images are preferred over smaller ones, as they can be sampled down.
+	 */
+	public File getCachedFile(String coverArtId, int size)
+	{
+		if (coverArtId == null) return null;
+
+		int requested = getSizeTier(size);
+		File smaller = null;
+
+		for (int tier : SIZE_TIERS)
+		{
+			File file = getFile(coverArtId, tier);
+			if (!file.exists()) continue;
+
+			if (requested == ORIGINAL_SIZE || tier < requested)
+			{
+				smaller = file;
+			}
+			else
+			{
+				return touch(file);
+			}
+		}
+
+		File original = getFile(coverArtId, ORIGINAL_SIZE);
+		if (original.exists()) return touch(original);
+
+		return smaller == null ? null : touch(smaller);
+	}
+
+	/**
+	 * Returns the image in the given tier, fetching it if it isn't cached.
+	 */
+	public File get(String coverArtId, int tier, Fetcher fetcher) throws Exception
+	{
+		File file = getFile(coverArtId, tier);
+		if (file.exists()) return touch(file);
+
+		File result = fetch(file, fetcher);
+		trim();
+		return result;
+	}
+
+	/**
+	 * Fetches the file unless it exists, concurrent calls for the same file share a single fetch.
+	 * Also used for the original album art files in the music directory, which are not part of the bounded cache.
+	 */
+	public File fetch(File file, Fetcher fetcher) throws Exception
+	{
+		String key = file.getPath();
+		Request request;
+		boolean owner = false;
+
+		synchronized (inFlight)
+		{
+			request = inFlight.get(key);
+			if (request == null)
+			{
+				request = new Request();
+				inFlight.put(key, request);
+				owner = true;
+			}
+		}
+
+		if (!owner)
+		{
+			request.done.await();
+			if (request.error != null) throw request.error;
+			return request.file;
+		}
+
+		try
+		{
+			if (!file.exists()) write(file, fetcher);
+			request.file = file;
+			return file;
+		}
+		catch (Exception x)
+		{
+			request.error = x;
+			throw x;
+		}
+		finally
+		{
+			synchronized (inFlight)
+			{
+				inFlight.remove(key);
+			}
+			request.done.countDown();
+		}
+	}
+
+	// The image is only visible under its name when it is complete
+	private void write(File file, Fetcher fetcher) throws Exception
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream output = null;
+
+		try
+		{
+			output = new FileOutputStream(tmp);
+			fetcher.fetch(output);
+			output.close();
+			output = null;
+
+			if (!tmp.renameTo(file)) throw new IOException("Failed to rename " + tmp);
+		}
+		finally
+		{
+			Util.close(output);
+			Util.delete(tmp);
+		}
+
+		synchronized (this)
+		{
+			if (cacheSize >= 0) cacheSize += file.length();
+		}
+	}
+
+	private synchronized void trim()
+	{
+		if (cacheSize >= 0 && cacheSize <= MAX_CACHE_SIZE) return;
+
+		File[] files = getCacheDirectory().listFiles();
+		if (files == null) return;
+
+		if (cacheSize < 0)
+		{
+			cacheSize = 0;
+			for (File file : files) cacheSize += file.length();
+		}
+
+		if (cacheSize <= MAX_CACHE_SIZE) return;
+
+		final Map<File, Long> lastModified = new HashMap<File, Long>(files.length);
+		for (File file : files) lastModified.put(file, file.lastModified());
+
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				return lastModified.get(a).compareTo(lastModified.get(b));
+			}
+		});
+
+		for (File file : files)
+		{
+			if (cacheSize <= TRIMMED_CACHE_SIZE) break;
+			// Still being written
+			if (file.getName().endsWith(".tmp")) continue;
+
+			long length = file.length();
+			if (Util.delete(file)) cacheSize -= length;
+		}
+
+		Timber.i("Trimmed cover art cache to %s", Util.formatBytes(cacheSize));
+	}
+
+	// The modification time orders the files for trimming, but it is only updated once in a while to spare the writes
+	private static File touch(File file)
+	{
+		long now = System.currentTimeMillis();
+		if (now - file.lastModified() > TOUCH_INTERVAL)
+		{
+			//noinspection ResultOfMethodCallIgnored
+			file.setLastModified(now);
+		}
+
+		return file;
+	}
+
+	private File getCacheDirectory()
+	{
+		File dir = new File(FileUtil.getAlbumArtDirectory(context), CACHE_DIR_NAME);
+		FileUtil.ensureDirectoryExistsAndIsReadWritable(dir);
+		return dir;
+	}
+}
@@ -0,0 +1,88 @@
+package org.moire.ultrasonic.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which files are evicted first when the CacheCleaner has to free space.
+ * Files in the protected sets (the current playlist and pinned files) are never offered to the policy.
+ */
+public interface EvictionPolicy
+{
+	/**
+	 * Returns the value of keeping the file in the cache, the files with the lowest values are evicted first.
+	 * Files with equal values are evicted in order of their last access.
+	 */
+	double getValue(CacheIndex.Entry entry, long now);
+
+	/**
+	 * Returns true if the values follow the last access times, so the index can hand out its entries in
+	 * access order without ranking them.
+	 */
+	boolean isAccessOrdered();
+
+	/**
+	 * Evicts the least recently played files first.
+	 */
+	class LeastRecentlyUsed implements EvictionPolicy
+	{
+		@Override
+		public double getValue(CacheIndex.Entry entry, long now)
+		{
+			return entry.getLastAccess();
+		}
+
+		@Override
+		public boolean isAccessOrdered()
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * Evicts the least often played files first.
+	 */
+	class LeastFrequentlyUsed implements EvictionPolicy
+	{
+		@Override
+		public double getValue(CacheIndex.Entry entry, long now)
+		{
+			return entry.getAccessCount();
+		}
+
+		@Override
+		public boolean isAccessOrdered()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Values the files by how often they are played per megabyte they take, in the style of GDSF.
+	 * Instead of an inflation value, the play count decays with the time since the last play,
+	 * so popular songs which aren't played anymore eventually make room for the new ones.
+	 * Evicting a single large file which is rarely played frees as much space as evicting several
+	 * small popular ones, and causes fewer downloads later.
+	 */
+	class SizeAware implements EvictionPolicy
+	{
+		private static final long HALF_LIFE = TimeUnit.DAYS.toMillis(30);
+		private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+		@Override
+		public double getValue(CacheIndex.Entry entry, long now)
+		{
+			// Preloaded files which were never played still count as one access
+			double frequency = entry.getAccessCount() + 1;
+			double age = Math.max(now - entry.getLastAccess(), 0L);
+			double size = Math.max(entry.getSize() / BYTES_PER_MEGABYTE, 1.0);
+
+			return frequency * Math.pow(0.5, age / HALF_LIFE) / size;
+		}
+
+		@Override
+		public boolean isAccessOrdered()
+		{
+			return false;
+		}
+	}
+}
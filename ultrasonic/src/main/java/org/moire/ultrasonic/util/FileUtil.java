@@ -43,6 +43,8 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
 
+import static org.koin.java.KoinJavaComponent.get;
+
 /**
  * @author Sindre Mehus
  */
@@ -164,7 +166,7 @@ public class FileUtil
 
 		if (bitmap != null)
 		{
-			return bitmap.copy(bitmap.getConfig(), false);
+			return bitmap;
 		}
 
 		if (avatarFile != null && avatarFile.exists())
@@ -234,38 +236,18 @@ public class FileUtil
 
 		if (bitmap != null)
 		{
-			return bitmap.copy(bitmap.getConfig(), false);
+			return bitmap;
 		}
 
-		if (albumArtFile != null && albumArtFile.exists())
+		if (albumArtFile == null || !albumArtFile.exists())
 		{
-			final BitmapFactory.Options opt = new BitmapFactory.Options();
-
-			if (size > 0)
-			{
-				opt.inJustDecodeBounds = true;
-				BitmapFactory.decodeFile(albumArtFile.getPath(), opt);
-
-				if (highQuality)
-				{
-					opt.inDither = true;
-					opt.inPreferQualityOverSpeed = true;
-				}
-
-				opt.inPurgeable = true;
-				opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
-				opt.inJustDecodeBounds = false;
-			}
-
-			try
-			{
-				bitmap = BitmapFactory.decodeFile(albumArtFile.getPath(), opt);
-			}
-			catch (Exception ex)
-			{
-				Timber.e(ex, "Exception in BitmapFactory.decodeFile()");
-			}
+			// The lists may have already downloaded the image in another size
+			albumArtFile = get(CoverArtCache.class).getCachedFile(entry.getCoverArt(), size);
+		}
 
+		if (albumArtFile != null && albumArtFile.exists())
+		{
+			bitmap = getSampledBitmap(albumArtFile, size, highQuality);
 			Timber.i("getAlbumArtBitmap %s", String.valueOf(size));
 
 			if (bitmap != null)
@@ -306,6 +288,41 @@ public class FileUtil
 		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
 	}
 
+	/**
+	 * Decodes the image file, sampled down to about the given size. The file is streamed, not read into memory.
+	 * The image is decoded into a bitmap of the BitmapPool if there is a suitable one.
+	 */
+	public static Bitmap getSampledBitmap(File file, int size, boolean highQuality)
+	{
+		final BitmapFactory.Options opt = new BitmapFactory.Options();
+
+		if (size > 0)
+		{
+			opt.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(file.getPath(), opt);
+
+			if (highQuality)
+			{
+				opt.inDither = true;
+				opt.inPreferQualityOverSpeed = true;
+			}
+
+			opt.inPurgeable = true;
+			opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
+			opt.inJustDecodeBounds = false;
+		}
+
+		try
+		{
+			return get(BitmapPool.class).decodeFile(file.getPath(), opt);
+		}
+		catch (Exception ex)
+		{
+			Timber.e(ex, "Exception in BitmapFactory.decodeFile()");
+			return null;
+		}
+	}
+
 	public static File getAlbumArtDirectory(Context context)
 	{
 		File albumArtDir = new File(getUltrasonicDirectory(context), "artwork");
@@ -5,6 +5,15 @@ import android.view.View;
 import org.moire.ultrasonic.domain.MusicDirectory;
 
 public interface ImageLoader {
+    /**
+     * Ranks the image requests, requests of a higher priority are loaded first.
+     */
+    enum Priority {
+        PREFETCH,
+        VISIBLE,
+        NOW_PLAYING
+    }
+
     boolean isRunning();
 
     void setConcurrency(int concurrency);
@@ -31,8 +40,34 @@ public interface ImageLoader {
             boolean highQuality
     );
 
+    void loadImage(
+            View view,
+            MusicDirectory.Entry entry,
+            boolean large,
+            int size,
+            boolean crossFade,
+            boolean highQuality,
+            Priority priority
+    );
+
+    /**
+     * Loads the image into the cache ahead of its display, after all other requests.
+     */
+    void prefetchImage(MusicDirectory.Entry entry, int size);
+
+    /**
+     * Drops the prefetch requests which haven't been loaded yet.
+     */
+    void cancelPrefetch();
+
+    /**
+     * Returns the cached image, which is shared with the views and must not be modified or recycled.
+     */
     Bitmap getImageBitmap(String username, int size);
 
+    /**
+     * Returns the cached image, which is shared with the views and must not be modified or recycled.
+     */
     Bitmap getImageBitmap(MusicDirectory.Entry entry, boolean large, int size);
 
     void addImageToCache(Bitmap bitmap, MusicDirectory.Entry entry, int size);
@@ -21,10 +21,12 @@ package org.moire.ultrasonic.util;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import timber.log.Timber;
 import android.view.View;
@@ -38,20 +40,52 @@ import org.moire.ultrasonic.service.MusicServiceFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronous loading of images, with caching.
  * <p/>
+ * The cache is bounded by the memory the images occupy, a share of the memory class of the device.
+ * Cached images are handed out without copying them, they must not be modified or recycled.
+ * <p/>
+ * Requests are loaded by priority, the newest first within a priority, so the images of the rows which were
+ * just scrolled into view don't wait for the ones which have already left it. A request is cancelled when its
+ * view is bound to another image.
+ * <p/>
  * There should normally be only one instance of this class.
  *
  * @author Sindre Mehus
  */
 public class LegacyImageLoader implements Runnable, ImageLoader {
-    private final LRUCache<String, Bitmap> cache = new LRUCache<>(150);
+    private static final int MAX_PREFETCH_QUEUE_SIZE = 1000;
+
+    private static final Comparator<Task> TASK_ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.priority != b.priority) {
+                return b.priority.compareTo(a.priority);
+            }
+
+            return a.sequence < b.sequence ? 1 : (a.sequence == b.sequence ? 0 : -1);
+        }
+    };
+
+    private final BoundedCache<String, Bitmap> cache;
     private final BlockingQueue<Task> queue;
+    // The task which loads the image of each view, accessed under its own lock
+    private final Map<View, Task> pendingTasks = new WeakHashMap<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong wastedLoadCount = new AtomicLong();
     private int imageSizeDefault;
     private final int imageSizeLarge;
     private Bitmap largeUnknownImage;
@@ -67,7 +101,15 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
     ) {
         this.context = context;
         this.concurrency = concurrency;
-        queue = new LinkedBlockingQueue<>(1000);
+        queue = new PriorityBlockingQueue<>(64, TASK_ORDER);
+
+        // A single segment, as each segment only holds images up to its share of the budget
+        cache = new BoundedCache<>(Util.getBitmapMemoryBudget(context), new BoundedCache.Weigher<String, Bitmap>() {
+            @Override
+            public long weigh(String key, Bitmap bitmap) {
+                return BitmapPool.getByteCount(bitmap);
+            }
+        }, 1);
 
         Resources resources = context.getResources();
         Drawable drawable = resources.getDrawable(R.drawable.unknown_album);
@@ -108,6 +150,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
     @Override
     public synchronized void stopImageLoader() {
         clear();
+        Timber.i("Stopping image loader: %s, cache: %s", getStatistics(), cache);
 
         for (Thread thread : threads) {
             thread.interrupt();
@@ -144,6 +187,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         view.invalidate();
 
         if (username == null) {
+            cancel(view);
             setUnknownAvatarImage(view);
             return;
         }
@@ -155,13 +199,14 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         Bitmap bitmap = cache.get(getKey(username, size));
 
         if (bitmap != null) {
+            cancel(view);
             setAvatarImageBitmap(view, username, bitmap, crossFade);
             return;
         }
 
         setUnknownAvatarImage(view);
 
-        queue.offer(new Task(view, username, size, large, crossFade, highQuality));
+        enqueue(new Task(view, null, username, size, large, crossFade, highQuality, Priority.VISIBLE));
     }
 
     @Override
@@ -172,10 +217,24 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
             int size,
             boolean crossFade,
             boolean highQuality
+    ) {
+        loadImage(view, entry, large, size, crossFade, highQuality, large ? Priority.NOW_PLAYING : Priority.VISIBLE);
+    }
+
+    @Override
+    public void loadImage(
+            View view,
+            MusicDirectory.Entry entry,
+            boolean large,
+            int size,
+            boolean crossFade,
+            boolean highQuality,
+            Priority priority
     ) {
         view.invalidate();
 
         if (entry == null) {
+            cancel(view);
             setUnknownImage(view, large);
             return;
         }
@@ -183,6 +242,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         String coverArt = entry.getCoverArt();
 
         if (TextUtils.isEmpty(coverArt)) {
+            cancel(view);
             setUnknownImage(view, large);
             return;
         }
@@ -194,13 +254,105 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         Bitmap bitmap = cache.get(getKey(coverArt, size));
 
         if (bitmap != null) {
+            cancel(view);
             setImageBitmap(view, entry, bitmap, crossFade);
             return;
         }
 
         setUnknownImage(view, large);
 
-        queue.offer(new Task(view, entry, size, large, crossFade, highQuality));
+        enqueue(new Task(view, entry, null, size, large, crossFade, highQuality, priority));
+    }
+
+    @Override
+    public void prefetchImage(MusicDirectory.Entry entry, int size) {
+        if (entry == null || TextUtils.isEmpty(entry.getCoverArt())) {
+            return;
+        }
+
+        if (size <= 0) {
+            size = imageSizeDefault;
+        }
+
+        if (cache.get(getKey(entry.getCoverArt(), size)) != null || queue.size() >= MAX_PREFETCH_QUEUE_SIZE) {
+            return;
+        }
+
+        queue.offer(new Task(null, entry, null, size, false, false, true, Priority.PREFETCH));
+    }
+
+    @Override
+    public void cancelPrefetch() {
+        Iterator<Task> iterator = queue.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().priority == Priority.PREFETCH) {
+                iterator.remove();
+                cancelledCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Queues the task, replacing the task which was loading another image for the same view.
+     */
+    private void enqueue(Task task) {
+        synchronized (pendingTasks) {
+            Task pending = pendingTasks.get(task.view);
+
+            if (pending != null) {
+                if (pending.key.equals(task.key) && !pending.cancelled) {
+                    // The view was bound to the same image again, it is already being loaded
+                    return;
+                }
+
+                pending.cancel();
+            }
+
+            pendingTasks.put(task.view, task);
+        }
+
+        queue.offer(task);
+    }
+
+    private void cancel(View view) {
+        synchronized (pendingTasks) {
+            Task pending = pendingTasks.remove(view);
+
+            if (pending != null) {
+                pending.cancel();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of queued requests, and how many requests were loaded, cancelled before they were loaded
+     * and loaded for views which had been bound to another image in the meantime.
+     */
+    public String getStatistics() {
+        return String.format(
+                "queued: %d, loaded: %d, cancelled: %d, wasted: %d",
+                queue.size(),
+                loadCount.get(),
+                cancelledCount.get(),
+                wastedLoadCount.get()
+        );
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public long getWastedLoadCount() {
+        return wastedLoadCount.get();
     }
 
     private static String getKey(String coverArtId, int size) {
@@ -212,8 +364,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         Bitmap bitmap = cache.get(getKey(username, size));
 
         if (bitmap != null && !bitmap.isRecycled()) {
-            Bitmap.Config config = bitmap.getConfig();
-            return bitmap.copy(config, false);
+            return bitmap;
         }
 
         return null;
@@ -238,8 +389,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         Bitmap bitmap = cache.get(getKey(coverArt, size));
 
         if (bitmap != null && !bitmap.isRecycled()) {
-            Bitmap.Config config = bitmap.getConfig();
-            return bitmap.copy(config, false);
+            return bitmap;
         }
 
         return null;
@@ -267,8 +417,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
                 Drawable newDrawable = Util.createDrawableFromBitmap(this.context, bitmap);
 
                 if (existingDrawable == null) {
-                    Bitmap emptyImage = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-                    existingDrawable = new BitmapDrawable(context.getResources(), emptyImage);
+                    existingDrawable = new ColorDrawable(Color.TRANSPARENT);
                 }
 
                 Drawable[] layers = new Drawable[]{existingDrawable, newDrawable};
@@ -306,12 +455,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
                 Drawable newDrawable = Util.createDrawableFromBitmap(this.context, bitmap);
 
                 if (existingDrawable == null) {
-                    Bitmap emptyImage = Bitmap.createBitmap(
-                            bitmap.getWidth(),
-                            bitmap.getHeight(),
-                            Bitmap.Config.ARGB_8888
-                    );
-                    existingDrawable = new BitmapDrawable(context.getResources(), emptyImage);
+                    existingDrawable = new ColorDrawable(Color.TRANSPARENT);
                 }
 
                 Drawable[] layers = new Drawable[]{existingDrawable, newDrawable};
@@ -353,6 +497,14 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
 
     @Override
     public void clear() {
+        synchronized (pendingTasks) {
+            for (Task task : pendingTasks.values()) {
+                task.cancelled = true;
+            }
+
+            pendingTasks.clear();
+        }
+
         queue.clear();
     }
 
@@ -361,7 +513,10 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         while (running.get()) {
             try {
                 Task task = queue.take();
-                task.execute();
+
+                if (!task.cancelled) {
+                    task.execute();
+                }
             } catch (InterruptedException ignored) {
                 running.set(false);
                 break;
@@ -375,79 +530,105 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
         private final View view;
         private final MusicDirectory.Entry entry;
         private final String username;
-        private final Handler handler;
+        private final String key;
         private final int size;
         private final boolean saveToFile;
         private final boolean crossFade;
         private final boolean highQuality;
+        private final Priority priority;
+        private final long sequence;
+        private volatile boolean cancelled;
 
         Task(
                 View view,
                 MusicDirectory.Entry entry,
+                String username,
                 int size,
                 boolean saveToFile,
                 boolean crossFade,
-                boolean highQuality
+                boolean highQuality,
+                Priority priority
         ) {
             this.view = view;
             this.entry = entry;
-            this.username = null;
+            this.username = username;
+            this.key = getKey(entry != null ? entry.getCoverArt() : username, size);
             this.size = size;
             this.saveToFile = saveToFile;
             this.crossFade = crossFade;
             this.highQuality = highQuality;
-            handler = new Handler();
+            this.priority = priority;
+            this.sequence = LegacyImageLoader.this.sequence.incrementAndGet();
         }
 
-        Task(
-                View view,
-                String username,
-                int size,
-                boolean saveToFile,
-                boolean crossFade,
-                boolean highQuality
-        ) {
-            this.view = view;
-            this.entry = null;
-            this.username = username;
-            this.size = size;
-            this.saveToFile = saveToFile;
-            this.crossFade = crossFade;
-            this.highQuality = highQuality;
-            handler = new Handler();
+        void cancel() {
+            cancelled = true;
+
+            if (queue.remove(this)) {
+                cancelledCount.incrementAndGet();
+            }
         }
 
-        public void execute() {
-            try {
-                MusicService musicService = MusicServiceFactory.getMusicService(view.getContext());
-                final boolean isAvatar = this.username != null && this.entry == null;
-                final Bitmap bitmap = this.entry != null
-                        ? musicService.getCoverArt(view.getContext(), entry, size, saveToFile, highQuality, null)
-                        : musicService.getAvatar(view.getContext(), username, size, saveToFile, highQuality, null);
-
-                if (bitmap == null) {
-                    Timber.d("Found empty album art.");
-                    return;
+        /**
+         * Releases the view of the task, returns false if the task was cancelled and the view shows another image.
+         */
+        boolean complete() {
+            synchronized (pendingTasks) {
+                if (cancelled) {
+                    return false;
                 }
 
-                if (isAvatar)
-                    addImageToCache(bitmap, username, size);
-                else
-                    addImageToCache(bitmap, entry, size);
-
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (isAvatar) {
-                            setAvatarImageBitmap(view, username, bitmap, crossFade);
-                        } else {
-                            setImageBitmap(view, entry, bitmap, crossFade);
-                        }
-                    }
-                });
+                if (view != null && pendingTasks.get(view) == this) {
+                    pendingTasks.remove(view);
+                }
+
+                return true;
+            }
+        }
+
+        public void execute() {
+            final boolean isAvatar = this.username != null && this.entry == null;
+            Bitmap loaded = null;
+
+            try {
+                MusicService musicService = MusicServiceFactory.getMusicService(context);
+                loaded = this.entry != null
+                        ? musicService.getCoverArt(context, entry, size, saveToFile, highQuality, null)
+                        : musicService.getAvatar(context, username, size, saveToFile, highQuality, null);
             } catch (Throwable x) {
                 Timber.e(x, "Failed to download album art.");
             }
+
+            loadCount.incrementAndGet();
+
+            if (loaded == null) {
+                Timber.d("Found empty album art.");
+                complete();
+                return;
+            }
+
+            final Bitmap bitmap = loaded;
+            cache.put(key, bitmap);
+
+            if (view == null) {
+                return;
+            }
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!complete()) {
+                        wastedLoadCount.incrementAndGet();
+                        return;
+                    }
+
+                    if (isAvatar) {
+                        setAvatarImageBitmap(view, username, bitmap, crossFade);
+                    } else {
+                        setImageBitmap(view, entry, bitmap, crossFade);
+                    }
+                }
+            });
         }
     }
 }
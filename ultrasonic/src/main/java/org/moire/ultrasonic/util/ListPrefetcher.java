@@ -0,0 +1,297 @@
+package org.moire.ultrasonic.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import timber.log.Timber;
+
+import org.moire.ultrasonic.api.subsonic.CallScope;
+import org.moire.ultrasonic.domain.MusicDirectory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms the caches for the rows ahead of the visible part of a list, in the direction it is scrolled.
+ *
+ * The cover art of the rows ahead is queued in the image loader with prefetch priority, the faster the list
+ * is scrolled the more rows ahead. The data the rows open, like the directory of an album, is only loaded for
+ * the visible rows and a few rows ahead, once the list moves slowly enough for the user to tap them.
+ * Data loads run on a few threads and are limited to a number per second. Pending loads are dropped when the
+ * scroll direction changes and when the prefetcher is cancelled.
+ */
+public class ListPrefetcher implements AbsListView.OnScrollListener
+{
+	private static final int MIN_IMAGE_LOOKAHEAD = 5;
+	private static final int MAX_IMAGE_LOOKAHEAD = 40;
+	// The images of the rows which are expected to be shown within this time are prefetched
+	private static final long IMAGE_LOOKAHEAD_TIME = 1000L;
+	private static final int DATA_LOOKAHEAD = 5;
+	// Rows per second, the rows of a faster moving list are not expected to be opened
+	private static final float MAX_DATA_PREFETCH_VELOCITY = 8f;
+	private static final int DATA_THREADS = 2;
+	private static final long DATA_LOAD_INTERVAL = 500L;
+	private static final int DATA_LOAD_BURST = DATA_LOOKAHEAD;
+	private static final int MAX_REMEMBERED_ITEMS = 500;
+
+	public interface Source
+	{
+		/**
+		 * Returns the entry whose cover art is shown for the item, or null if it doesn't show any.
+		 */
+		MusicDirectory.Entry getCoverArtEntry(Object item);
+
+		/**
+		 * Returns true if the item opens data which can be prefetched.
+		 */
+		boolean hasData(Object item);
+
+		/**
+		 * Loads the data the item opens into the caches, called on a background thread.
+		 */
+		void prefetchData(Object item) throws Exception;
+	}
+
+	private final Context context;
+	private final ImageLoader imageLoader;
+	private final Source source;
+	private final ThreadPoolExecutor executor;
+	// Loads which have already started are only cancelled on shutdown
+	private final CallScope callScope = new CallScope();
+	// The items whose data was prefetched or is queued
+	private final Set<Object> prefetchedData = Collections.synchronizedSet(new LinkedHashSet<Object>());
+
+	private volatile int generation;
+	private long nextDataLoadAt;
+
+	private int direction = 1;
+	private int lastFirstVisible = -1;
+	private long lastScrollTime;
+	private float velocity;
+	private int imageFrontier = -1;
+	private int scrollState = SCROLL_STATE_IDLE;
+
+	public ListPrefetcher(Context context, ImageLoader imageLoader, Source source)
+	{
+		this.context = context;
+		this.imageLoader = imageLoader;
+		this.source = source;
+
+		executor = new ThreadPoolExecutor(DATA_THREADS, DATA_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState)
+	{
+		this.scrollState = scrollState;
+
+		if (scrollState == SCROLL_STATE_IDLE)
+		{
+			velocity = 0;
+			prefetch(view, view.getFirstVisiblePosition(), view.getChildCount(), view.getCount());
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+		if (visibleItemCount == 0 || totalItemCount == 0) return;
+
+		long now = SystemClock.uptimeMillis();
+
+		if (firstVisibleItem != lastFirstVisible)
+		{
+			if (lastFirstVisible >= 0)
+			{
+				int newDirection = firstVisibleItem > lastFirstVisible ? 1 : -1;
+
+				if (newDirection != direction)
+				{
+					direction = newDirection;
+					cancel();
+				}
+
+				velocity = Math.abs(firstVisibleItem - lastFirstVisible) * 1000f / Math.max(now - lastScrollTime, 1);
+			}
+
+			lastFirstVisible = firstVisibleItem;
+			lastScrollTime = now;
+		}
+		else if (scrollState == SCROLL_STATE_IDLE)
+		{
+			velocity = 0;
+		}
+
+		prefetch(view, firstVisibleItem, visibleItemCount, totalItemCount);
+	}
+
+	/**
+	 * Drops the pending prefetches, loads which have already started are completed.
+	 */
+	public void cancel()
+	{
+		generation++;
+		imageFrontier = -1;
+
+		// The dropped loads are tried again when their rows come around
+		for (Runnable task : executor.getQueue().toArray(new Runnable[0]))
+		{
+			if (executor.remove(task)) prefetchedData.remove(((DataTask) task).item);
+		}
+
+		imageLoader.cancelPrefetch();
+	}
+
+	/**
+	 * Forgets the scroll position, to be called when the list gets new content.
+	 */
+	public void reset()
+	{
+		cancel();
+		direction = 1;
+		lastFirstVisible = -1;
+		velocity = 0;
+	}
+
+	public void shutdown()
+	{
+		cancel();
+		callScope.cancel();
+		executor.shutdown();
+	}
+
+	private void prefetch(AbsListView view, int firstVisible, int visibleCount, int totalCount)
+	{
+		int start = direction > 0 ? firstVisible + visibleCount : firstVisible - 1;
+
+		prefetchImages(view, start, totalCount);
+
+		if (velocity <= MAX_DATA_PREFETCH_VELOCITY)
+		{
+			// The visible rows are the most likely to be opened
+			for (int position = firstVisible; position < firstVisible + visibleCount; position++)
+			{
+				prefetchData(view, position, totalCount);
+			}
+
+			for (int i = 0; i < DATA_LOOKAHEAD; i++)
+			{
+				prefetchData(view, start + direction * i, totalCount);
+			}
+		}
+	}
+
+	private void prefetchImages(AbsListView view, int start, int totalCount)
+	{
+		long lookahead = MIN_IMAGE_LOOKAHEAD + Math.round(velocity * IMAGE_LOOKAHEAD_TIME / 1000f);
+		int count = (int) Math.min(lookahead, MAX_IMAGE_LOOKAHEAD);
+		int end = start + direction * count;
+
+		// Only the rows beyond the ones already requested in this direction
+		int position = imageFrontier < 0 ? start : (direction > 0 ? Math.max(start, imageFrontier + 1) : Math.min(start, imageFrontier - 1));
+
+		for (; direction > 0 ? position < end : position > end; position += direction)
+		{
+			if (position < 0 || position >= totalCount) break;
+
+			imageFrontier = position;
+			MusicDirectory.Entry entry = source.getCoverArtEntry(view.getItemAtPosition(position));
+
+			if (entry != null)
+			{
+				imageLoader.prefetchImage(entry, 0);
+			}
+		}
+	}
+
+	private void prefetchData(AbsListView view, int position, int totalCount)
+	{
+		if (position < 0 || position >= totalCount) return;
+
+		Object item = view.getItemAtPosition(position);
+		if (item == null || prefetchedData.contains(item) || !source.hasData(item)) return;
+		if (!Util.isNetworkConnected(context)) return;
+
+		synchronized (prefetchedData)
+		{
+			prefetchedData.add(item);
+
+			if (prefetchedData.size() > MAX_REMEMBERED_ITEMS)
+			{
+				Iterator<Object> iterator = prefetchedData.iterator();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+
+		executor.execute(new DataTask(item, generation));
+	}
+
+	private class DataTask implements Runnable
+	{
+		private final Object item;
+		private final int taskGeneration;
+
+		DataTask(Object item, int taskGeneration)
+		{
+			this.item = item;
+			this.taskGeneration = taskGeneration;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				if (taskGeneration == generation)
+				{
+					long wait = reserveDataLoad();
+					if (wait > 0) Thread.sleep(wait);
+				}
+
+				if (taskGeneration != generation)
+				{
+					prefetchedData.remove(item);
+					return;
+				}
+
+				CallScope.Activation activation = callScope.activate();
+
+				try
+				{
+					source.prefetchData(item);
+				}
+				finally
+				{
+					activation.close();
+				}
+			}
+			catch (InterruptedException ignored)
+			{
+				prefetchedData.remove(item);
+			}
+			catch (Exception x)
+			{
+				prefetchedData.remove(item);
+				Timber.d(x, "Failed to prefetch %s", item);
+			}
+		}
+	}
+
+	// Returns how long the caller has to wait before it may start a data load
+	private synchronized long reserveDataLoad()
+	{
+		long now = SystemClock.uptimeMillis();
+		nextDataLoadAt = Math.max(nextDataLoadAt, now - (DATA_LOAD_BURST - 1) * DATA_LOAD_INTERVAL);
+
+		long wait = nextDataLoadAt - now;
+		nextDataLoadAt += DATA_LOAD_INTERVAL;
+		return wait;
+	}
+}
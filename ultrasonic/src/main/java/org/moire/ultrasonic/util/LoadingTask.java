@@ -19,7 +19,7 @@ public abstract class LoadingTask<T> extends BackgroundTask<T>
 
 	public LoadingTask(SubsonicTabActivity activity, final boolean cancellable)
 	{
-		super(activity);
+		super(activity, activity.getCallScope());
 		tabActivity = activity;
 		this.cancellable = cancellable;
 	}
@@ -33,6 +33,7 @@ public abstract class LoadingTask<T> extends BackgroundTask<T>
 			public void onCancel(DialogInterface dialog)
 			{
 				cancelled = true;
+				cancelCalls();
 			}
 
 		});
@@ -44,7 +45,7 @@ public abstract class LoadingTask<T> extends BackgroundTask<T>
 			{
 				try
 				{
-					final T result = doInBackground();
+					final T result = runInBackground();
 					if (isCancelled())
 					{
 						return;
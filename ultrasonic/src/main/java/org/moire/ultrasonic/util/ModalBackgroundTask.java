@@ -87,7 +87,7 @@ public abstract class ModalBackgroundTask<T> extends BackgroundTask<T>
 			{
 				try
 				{
-					final T result = doInBackground();
+					final T result = runInBackground();
 					if (cancelled)
 					{
 						progressDialog.dismiss();
@@ -145,6 +145,7 @@ public abstract class ModalBackgroundTask<T> extends BackgroundTask<T>
 	protected void cancel()
 	{
 		cancelled = true;
+		cancelCalls();
 		if (thread != null)
 		{
 			thread.interrupt();
@@ -27,7 +27,11 @@ import org.moire.ultrasonic.service.MusicService;
 import org.moire.ultrasonic.service.MusicServiceFactory;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -40,8 +44,11 @@ public class ShufflePlayBuffer
 {
 	private static final int CAPACITY = 50;
 	private static final int REFILL_THRESHOLD = 40;
+	// Offline, the songs which were taken from the buffer lately are not picked again
+	private static final int RECENT_SONGS = 200;
 
 	private final List<MusicDirectory.Entry> buffer = new ArrayList<MusicDirectory.Entry>();
+	private final Set<String> recentSongIds = new LinkedHashSet<String>();
 	private final Context context;
 	private ScheduledExecutorService executorService;
 	private int currentServer;
@@ -83,7 +90,9 @@ public class ShufflePlayBuffer
 		{
 			while (!buffer.isEmpty() && result.size() < size)
 			{
-				result.add(buffer.remove(buffer.size() - 1));
+				MusicDirectory.Entry song = buffer.remove(buffer.size() - 1);
+				result.add(song);
+				addRecentSong(song);
 			}
 		}
 		Timber.i("Taking %d songs from shuffle play buffer. %d remaining.", result.size(), buffer.size());
@@ -104,9 +113,18 @@ public class ShufflePlayBuffer
 
 		try
 		{
-			MusicService service = MusicServiceFactory.getMusicService(context);
 			int n = CAPACITY - buffer.size();
-			MusicDirectory songs = service.getRandomSongs(n, context, null);
+			MusicDirectory songs;
+
+			if (ActiveServerProvider.Companion.isOffline(context))
+			{
+				songs = MusicServiceFactory.getOfflineMusicService().getRandomSongs(n, getExcludedSongIds(), context);
+			}
+			else
+			{
+				MusicService service = MusicServiceFactory.getMusicService(context);
+				songs = service.getRandomSongs(n, context, null);
+			}
 
 			synchronized (buffer)
 			{
@@ -128,7 +146,40 @@ public class ShufflePlayBuffer
 			{
 				currentServer = ActiveServerProvider.Companion.getActiveServerId(context);
 				buffer.clear();
+				recentSongIds.clear();
+			}
+		}
+	}
+
+	// Must be called while holding the buffer lock
+	private void addRecentSong(MusicDirectory.Entry song)
+	{
+		if (song.getId() == null) return;
+
+		recentSongIds.remove(song.getId());
+		recentSongIds.add(song.getId());
+
+		if (recentSongIds.size() > RECENT_SONGS)
+		{
+			Iterator<String> iterator = recentSongIds.iterator();
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	// The songs in the buffer are excluded as well, so they are not buffered twice
+	private Set<String> getExcludedSongIds()
+	{
+		synchronized (buffer)
+		{
+			Set<String> excluded = new HashSet<String>(recentSongIds);
+
+			for (MusicDirectory.Entry song : buffer)
+			{
+				excluded.add(song.getId());
 			}
+
+			return excluded;
 		}
 	}
 }
\ No newline at end of file
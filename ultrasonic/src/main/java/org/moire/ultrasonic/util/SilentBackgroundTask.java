@@ -41,7 +41,7 @@ public abstract class SilentBackgroundTask<T> extends BackgroundTask<T>
 			{
 				try
 				{
-					final T result = doInBackground();
+					final T result = runInBackground();
 
 					getHandler().post(new Runnable()
 					{
@@ -6,45 +6,57 @@ import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.service.DownloadFile;
 import org.moire.ultrasonic.service.Supplier;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
 import java.util.StringTokenizer;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the partially downloaded file of the current playing song to the MediaPlayer over HTTP.
+ *
+ * Range requests are answered with 206 responses so the MediaPlayer is able to seek, and the file contents
+ * are transferred to the socket by the kernel with FileChannel.transferTo. When the client has received
+ * everything available, the proxy waits for the DownloadFile to signal that it has written more data.
+ */
 public class StreamProxy implements Runnable
 {
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)", Pattern.CASE_INSENSITIVE);
+	private static final long DATA_WAIT_TIMEOUT = 1000L;
+
 	private Thread thread;
-	private boolean isRunning;
-	private ServerSocket socket;
+	private volatile boolean isRunning;
+	private ServerSocketChannel socket;
+	private ExecutorService clientExecutor;
 	private int port;
 	private Supplier<DownloadFile> currentPlaying;
 
 	public StreamProxy(Supplier<DownloadFile> currentPlaying)
 	{
+		this.currentPlaying = currentPlaying;
 
 		// Create listening socket
 		try
 		{
-			socket = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-			socket.setSoTimeout(5000);
-			port = socket.getLocalPort();
-			this.currentPlaying = currentPlaying;
-		}
-		catch (UnknownHostException e)
-		{ // impossible
+			socket = ServerSocketChannel.open();
+			socket.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+			port = socket.socket().getLocalPort();
 		}
 		catch (IOException e)
 		{
@@ -59,14 +71,18 @@ public class StreamProxy implements Runnable
 
 	public void start()
 	{
-		thread = new Thread(this);
+		clientExecutor = Executors.newCachedThreadPool();
+		thread = new Thread(this, "StreamProxy");
 		thread.start();
 	}
 
 	public void stop()
 	{
 		isRunning = false;
+		// Interrupting the thread blocked in accept() closes the channel
 		thread.interrupt();
+		Util.close(socket);
+		clientExecutor.shutdownNow();
 	}
 
 	@Override
@@ -77,23 +93,26 @@ public class StreamProxy implements Runnable
 		{
 			try
 			{
-				Socket client = socket.accept();
-				if (client == null)
-				{
-					continue;
-				}
+				SocketChannel client = socket.accept();
 				Timber.i("Client connected");
 
 				StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client);
 				if (task.processRequest())
 				{
-					new Thread(task).start();
+					clientExecutor.execute(task);
 				}
-
+				else
+				{
+					Util.close(client);
+				}
+			}
+			catch (ClosedByInterruptException e)
+			{
+				break;
 			}
-			catch (SocketTimeoutException e)
+			catch (ClosedChannelException e)
 			{
-				// Do nothing
+				break;
 			}
 			catch (IOException e)
 			{
@@ -103,176 +122,239 @@ public class StreamProxy implements Runnable
 		Timber.i("Proxy interrupted. Shutting down.");
 	}
 
-    private class StreamToMediaPlayerTask implements Runnable {
-        String localPath;
-        Socket client;
-        int cbSkip;
-
-        StreamToMediaPlayerTask(Socket client) {
-            this.client = client;
-        }
-
-        private String readRequest() {
-            InputStream is;
-            String firstLine;
-            try {
-                is = client.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8192);
-                firstLine = reader.readLine();
-            } catch (IOException e) {
-                Timber.e(e, "Error parsing request");
-                return null;
-            }
-
-            if (firstLine == null) {
-                Timber.i("Proxy client closed connection without a request.");
-                return null;
-            }
-
-            StringTokenizer st = new StringTokenizer(firstLine);
-            st.nextToken(); // method
-            String uri = st.nextToken();
-            String realUri = uri.substring(1);
-            Timber.i(realUri);
-
-            return realUri;
-        }
-
-        boolean processRequest() {
-            final String uri = readRequest();
-            if (uri == null || uri.isEmpty()) {
-                return false;
-            }
-
-            // Read HTTP headers
-            Timber.i("Processing request: %s", uri);
-
-            try {
-                localPath = URLDecoder.decode(uri, Constants.UTF_8);
-            } catch (UnsupportedEncodingException e) {
-                Timber.e(e, "Unsupported encoding");
-                return false;
-            }
-
-            Timber.i("Processing request for file %s", localPath);
-            File file = new File(localPath);
-            if (!file.exists()) {
-                Timber.e("File %s does not exist", localPath);
-                return false;
-            }
-
-            return true;
-        }
+	private class StreamToMediaPlayerTask implements Runnable
+	{
+		private final SocketChannel client;
+		private String localPath;
+		private long rangeStart;
+		private long rangeEnd = -1;
+		private boolean isRangeRequest;
+
+		StreamToMediaPlayerTask(SocketChannel client)
+		{
+			this.client = client;
+		}
+
+		private String readRequest()
+		{
+			String firstLine;
+			try
+			{
+				// The request is a GET without body, so everything up to the empty line belongs to it
+				BufferedReader reader = new BufferedReader(new InputStreamReader(client.socket().getInputStream()), 8192);
+				firstLine = reader.readLine();
+
+				String header;
+				while ((header = reader.readLine()) != null && !header.isEmpty())
+				{
+					parseHeader(header);
+				}
+			}
+			catch (IOException e)
+			{
+				Timber.e(e, "Error parsing request");
+				return null;
+			}
+
+			if (firstLine == null)
+			{
+				Timber.i("Proxy client closed connection without a request.");
+				return null;
+			}
+
+			StringTokenizer st = new StringTokenizer(firstLine);
+			st.nextToken(); // method
+			String uri = st.nextToken();
+			String realUri = uri.substring(1);
+			Timber.i(realUri);
+
+			return realUri;
+		}
+
+		private void parseHeader(String header)
+		{
+			int separator = header.indexOf(':');
+			if (separator == -1 || !"range".equalsIgnoreCase(header.substring(0, separator).trim())) return;
+
+			Matcher matcher = RANGE_PATTERN.matcher(header.substring(separator + 1).trim());
+			if (!matcher.matches()) return;
+
+			isRangeRequest = true;
+			rangeStart = Long.parseLong(matcher.group(1));
+			rangeEnd = matcher.group(2).isEmpty() ? -1 : Long.parseLong(matcher.group(2));
+			Timber.i("Requested range %d-%d", rangeStart, rangeEnd);
+		}
+
+		boolean processRequest()
+		{
+			final String uri = readRequest();
+			if (uri == null || uri.isEmpty())
+			{
+				return false;
+			}
+
+			Timber.i("Processing request: %s", uri);
+
+			try
+			{
+				localPath = URLDecoder.decode(uri, Constants.UTF_8);
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				Timber.e(e, "Unsupported encoding");
+				return false;
+			}
+
+			Timber.i("Processing request for file %s", localPath);
+			File file = new File(localPath);
+			if (!file.exists())
+			{
+				Timber.e("File %s does not exist", localPath);
+				return false;
+			}
+
+			return true;
+		}
 
 		@Override
 		public void run()
 		{
 			Timber.i("Streaming song in background");
-			DownloadFile downloadFile = currentPlaying == null? null : currentPlaying.get();
-			MusicDirectory.Entry song = downloadFile.getSong();
-			long fileSize = downloadFile.getBitRate() * ((song.getDuration() != null) ? song.getDuration() : 0) * 1000 / 8;
-			Timber.i("Streaming fileSize: %d", fileSize);
+			DownloadFile downloadFile = currentPlaying == null ? null : currentPlaying.get();
+			if (downloadFile == null)
+			{
+				Util.close(client);
+				return;
+			}
 
-			// Create HTTP header
-			String headers = "HTTP/1.0 200 OK\r\n";
-			headers += "Content-Type: application/octet-stream\r\n";
-			headers += "Connection: close\r\n";
-			headers += "\r\n";
+			MusicDirectory.Entry song = downloadFile.getSong();
+			long estimatedSize = downloadFile.getBitRate() * ((song.getDuration() != null) ? song.getDuration() : 0) * 1000L / 8;
+			Timber.i("Streaming fileSize: %d", estimatedSize);
 
-			long cbToSend = fileSize - cbSkip;
-			OutputStream output = null;
-			byte[] buff = new byte[64 * 1024];
+			// The partial file keeps its identity when it is renamed after the download, so it can be read on
+			File file = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
+			RandomAccessFile randomAccessFile = null;
 
 			try
 			{
-				output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-				output.write(headers.getBytes());
+				randomAccessFile = new RandomAccessFile(file, "r");
+				FileChannel input = randomAccessFile.getChannel();
+
+				boolean isComplete = downloadFile.isWorkDone();
+				long position = rangeStart;
+				long end = rangeEnd;
 
-				if (!downloadFile.isWorkDone())
+				if (isComplete && isRangeRequest && rangeStart >= input.size())
 				{
-					// Loop as long as there's stuff to send
-					while (isRunning && !client.isClosed())
-					{
-						// See if there's more to send
-						File file = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
-						int cbSentThisBatch = 0;
-
-						if (file.exists())
-						{
-							FileInputStream input = new FileInputStream(file);
-
-							try
-							{
-								long skip = input.skip(cbSkip);
-								int cbToSendThisBatch = input.available();
-
-								while (cbToSendThisBatch > 0)
-								{
-									int cbToRead = Math.min(cbToSendThisBatch, buff.length);
-									int cbRead = input.read(buff, 0, cbToRead);
-
-									if (cbRead == -1)
-									{
-										break;
-									}
-
-									cbToSendThisBatch -= cbRead;
-									cbToSend -= cbRead;
-									output.write(buff, 0, cbRead);
-									output.flush();
-									cbSkip += cbRead;
-									cbSentThisBatch += cbRead;
-								}
-							}
-							finally
-							{
-								input.close();
-							}
-
-							// Done regardless of whether or not it thinks it is
-							if (downloadFile.isWorkDone() && cbSkip >= file.length())
-							{
-								break;
-							}
-						}
-
-						// If we did nothing this batch, block for a second
-						if (cbSentThisBatch == 0)
-						{
-							Timber.d("Blocking until more data appears (%d)", cbToSend);
-							Util.sleepQuietly(1000L);
-						}
-					}
+					Timber.i("Range starting at %d is past the end of %s", rangeStart, file);
+					writeRangeNotSatisfiable(input.size());
+					return;
 				}
-				else
+
+				if (isComplete && (end == -1 || end >= input.size())) end = input.size() - 1;
+
+				writeHeaders(isComplete ? input.size() : -1, Math.max(estimatedSize, input.size()));
+
+				// Loop as long as there's stuff to send
+				while (isRunning && client.isOpen() && (end == -1 || position <= end))
 				{
-					Timber.w("Requesting data for completely downloaded file");
+					long available = input.size();
+
+					if (position < available)
+					{
+						long count = (end == -1 ? available : Math.min(available, end + 1)) - position;
+						position += input.transferTo(position, count, client);
+						continue;
+					}
+
+					// All data is written when the work is done, send what was appended since the size was read
+					if (downloadFile.isWorkDone())
+					{
+						if (position >= input.size()) break;
+						continue;
+					}
+
+					Timber.d("Blocking until more data appears (%d)", position);
+					if (!downloadFile.waitForProgress(position + 1, DATA_WAIT_TIMEOUT) && (downloadFile.isFailed() || downloadFile.isDownloadCancelled()))
+					{
+						// No more data will appear, end the response so the player learns about it
+						Timber.i("Download of %s has stopped, ending the stream at %d", downloadFile, position);
+						break;
+					}
 				}
 			}
-			catch (SocketException socketException)
+			catch (InterruptedException e)
 			{
-				Timber.e("SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
+				Timber.i("Streaming task interrupted");
+			}
+			catch (IOException e)
+			{
+				Timber.i("Proxy client has probably closed the connection: %s", e.getLocalizedMessage());
 			}
 			catch (Exception e)
 			{
-				Timber.e("Exception thrown from streaming task:");
-				Timber.e("%s : %s", e.getClass().getName(), e.getLocalizedMessage());
+				Timber.e(e, "Exception thrown from streaming task");
 			}
+			finally
+			{
+				Util.close(randomAccessFile);
+				Util.close(client);
+			}
+		}
 
-			// Cleanup
-			try
+		/**
+		 * Writes the response headers.
+		 * @param length the exact length of the file, or -1 if the file is still being downloaded
+		 * @param estimatedLength the expected length of the file, used in the Content-Range header while downloading
+		 */
+		private void writeHeaders(long length, long estimatedLength) throws IOException
+		{
+			StringBuilder headers = new StringBuilder();
+
+			if (isRangeRequest)
 			{
-				if (output != null)
-				{
-					output.close();
-				}
-				client.close();
+				long total = length == -1 ? estimatedLength : length;
+				long end = rangeEnd == -1 || rangeEnd >= total ? total - 1 : rangeEnd;
+
+				headers.append("HTTP/1.1 206 Partial Content\r\n");
+				headers.append(String.format(Locale.ROOT, "Content-Range: bytes %d-%d/%s\r\n",
+						rangeStart, Math.max(end, rangeStart), length == -1 ? "*" : String.valueOf(length)));
+
+				if (length != -1) headers.append(String.format(Locale.ROOT, "Content-Length: %d\r\n", Math.max(end - rangeStart + 1, 0)));
 			}
-			catch (IOException e)
+			else
+			{
+				headers.append("HTTP/1.1 200 OK\r\n");
+				if (length != -1) headers.append(String.format(Locale.ROOT, "Content-Length: %d\r\n", length));
+			}
+
+			headers.append("Content-Type: application/octet-stream\r\n");
+			headers.append("Accept-Ranges: bytes\r\n");
+			writeHeaderBlock(headers);
+		}
+
+		/**
+		 * Answers a range request which starts at or past the end of the complete file.
+		 */
+		private void writeRangeNotSatisfiable(long length) throws IOException
+		{
+			StringBuilder headers = new StringBuilder();
+			headers.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+			headers.append(String.format(Locale.ROOT, "Content-Range: bytes */%d\r\n", length));
+			headers.append("Content-Length: 0\r\n");
+			writeHeaderBlock(headers);
+		}
+
+		private void writeHeaderBlock(StringBuilder headers) throws IOException
+		{
+			headers.append("Connection: close\r\n");
+			headers.append("\r\n");
+
+			ByteBuffer buffer = ByteBuffer.wrap(headers.toString().getBytes(Constants.UTF_8));
+			while (buffer.hasRemaining())
 			{
-				Timber.e("IOException while cleaning up streaming task:");
-				Timber.e("%s : %s", e.getClass().getName(), e.getLocalizedMessage());
+				client.write(buffer);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -14,7 +14,7 @@ public abstract class TabActivityBackgroundTask<T> extends BackgroundTask<T>
 
 	public TabActivityBackgroundTask(SubsonicTabActivity activity, boolean changeProgress)
 	{
-		super(activity);
+		super(activity, activity.getCallScope());
 		tabActivity = activity;
 		this.changeProgress = changeProgress;
 	}
@@ -34,7 +34,7 @@ public abstract class TabActivityBackgroundTask<T> extends BackgroundTask<T>
 			{
 				try
 				{
-					final T result = doInBackground();
+					final T result = runInBackground();
 					if (isCancelled())
 					{
 						return;
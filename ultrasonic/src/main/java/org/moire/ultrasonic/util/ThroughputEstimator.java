@@ -0,0 +1,78 @@
+package org.moire.ultrasonic.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a rolling estimate of the download throughput of each server,
+ * as an exponentially weighted moving average of the samples reported by the downloads.
+ */
+public class ThroughputEstimator
+{
+	// The weight of a new sample, the estimate adapts to changes of the link in a few seconds
+	private static final double SAMPLE_WEIGHT = 0.3;
+	// Samples over very short periods are mostly measuring the buffers of the network stack
+	private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private final Map<Integer, Double> estimates = new ConcurrentHashMap<Integer, Double>();
+
+	/**
+	 * Records that the given amount of bytes has been received from the server in the given time.
+	 */
+	public void addSample(int serverId, long bytes, long elapsedNanos)
+	{
+		if (elapsedNanos < MIN_SAMPLE_NANOS || bytes <= 0) return;
+
+		double sample = bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+
+		synchronized (estimates)
+		{
+			Double estimate = estimates.get(serverId);
+			estimates.put(serverId, estimate == null ? sample : estimate + SAMPLE_WEIGHT * (sample - estimate));
+		}
+	}
+
+	/**
+	 * Returns the estimated throughput of the server in bytes per second, or -1 if nothing has been measured yet.
+	 */
+	public long getBytesPerSecond(int serverId)
+	{
+		Double estimate = estimates.get(serverId);
+		return estimate == null ? -1 : estimate.longValue();
+	}
+
+	/**
+	 * Measures the throughput of a single download, and reports it in samples of at least the minimum length.
+	 */
+	public class Meter
+	{
+		private final int serverId;
+		private long sampleStart;
+		private long sampleBytes;
+
+		Meter(int serverId)
+		{
+			this.serverId = serverId;
+			sampleStart = System.nanoTime();
+		}
+
+		public void onBytesReceived(long bytes)
+		{
+			sampleBytes += bytes;
+			long now = System.nanoTime();
+
+			if (now - sampleStart >= MIN_SAMPLE_NANOS)
+			{
+				addSample(serverId, sampleBytes, now - sampleStart);
+				sampleStart = now;
+				sampleBytes = 0;
+			}
+		}
+	}
+
+	public Meter createMeter(int serverId)
+	{
+		return new Meter(serverId);
+	}
+}
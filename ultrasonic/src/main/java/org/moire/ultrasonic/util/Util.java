@@ -19,6 +19,7 @@
 package org.moire.ultrasonic.util;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.PendingIntent;
 import android.content.*;
@@ -195,6 +196,13 @@ public class Util
 		return preloadCount == -1 ? Integer.MAX_VALUE : preloadCount;
 	}
 
+	public static int getParallelDownloads(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		int parallelDownloads = Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_PARALLEL_DOWNLOADS, "3"));
+		return Math.max(parallelDownloads, 1);
+	}
+
 	public static int getCacheSizeMB(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -703,7 +711,12 @@ public class Util
 	public static Bitmap scaleBitmap(Bitmap bitmap, int size)
 	{
 		if (bitmap == null) return null;
-		return Bitmap.createScaledBitmap(bitmap, size, getScaledHeight(bitmap, size), true);
+
+		int height = getScaledHeight(bitmap, size);
+		// createScaledBitmap always copies mutable bitmaps, even if they already have the size
+		if (bitmap.getWidth() == size && bitmap.getHeight() == height) return bitmap;
+
+		return Bitmap.createScaledBitmap(bitmap, size, height, true);
 	}
 
 	public static void registerMediaButtonEventReceiver(Context context, boolean isService)
@@ -1006,6 +1019,15 @@ public class Util
 		return Math.max(metrics.widthPixels, metrics.heightPixels);
 	}
 
+	/**
+	 * Returns the number of bytes the decoded images may occupy in memory, an eighth of the memory class of the device.
+	 */
+	public static long getBitmapMemoryBudget(Context context)
+	{
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		return activityManager.getMemoryClass() * 1024L * 1024L / 8;
+	}
+
 	public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight)
 	{
 		// Raw height and width of image
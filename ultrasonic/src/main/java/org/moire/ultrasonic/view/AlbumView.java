@@ -20,16 +20,15 @@ package org.moire.ultrasonic.view;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
-import timber.log.Timber;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
+import org.koin.java.KoinJavaComponent;
 import org.moire.ultrasonic.R;
 import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.MusicDirectory;
-import org.moire.ultrasonic.service.MusicService;
-import org.moire.ultrasonic.service.MusicServiceFactory;
+import org.moire.ultrasonic.service.ActionQueue;
 import org.moire.ultrasonic.util.ImageLoader;
 import org.moire.ultrasonic.util.Util;
 
@@ -152,31 +151,17 @@ public class AlbumView extends UpdateView
 						album.setStarred(false);
 					}
 
-                    final MusicService musicService = MusicServiceFactory.getMusicService(view.getContext());
-					new Thread(new Runnable()
+					ActionQueue actionQueue = KoinJavaComponent.get(ActionQueue.class);
+					ActionQueue.Target target = Util.getShouldUseId3Tags(getContext()) ? ActionQueue.Target.ALBUM_ID : ActionQueue.Target.ID;
+
+					if (!isStarred)
+					{
+						actionQueue.star(id, target);
+					}
+					else
 					{
-						@Override
-						public void run()
-						{
-							boolean useId3 = Util.getShouldUseId3Tags(getContext());
-
-							try
-							{
-								if (!isStarred)
-								{
-									musicService.star(!useId3 ? id : null, useId3 ? id : null, null, getContext(), null);
-								}
-								else
-								{
-									musicService.unstar(!useId3 ? id : null, useId3 ? id : null, null, getContext(), null);
-								}
-							}
-							catch (Exception e)
-							{
-								Timber.e(e);
-							}
-						}
-					}).start();
+						actionQueue.unstar(id, target);
+					}
 				}
 			});
 		}
@@ -1,36 +1,38 @@
 package org.moire.ultrasonic.view;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import timber.log.Timber;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.LinearLayout;
 
-import org.moire.ultrasonic.util.Util;
+import org.moire.ultrasonic.service.PlaybackStateNotifier;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Set;
 import java.util.WeakHashMap;
 
+import static org.koin.java.KoinJavaComponent.get;
+
+/**
+ * A list item which displays playback or download state. The shown views are updated when the
+ * PlaybackStateNotifier reports a change: views of a song when the download of that song has changed,
+ * all of them when the playlist or the player state has changed.
+ */
 public class UpdateView extends LinearLayout
 {
 	private static final WeakHashMap<UpdateView, ?> INSTANCES = new WeakHashMap<UpdateView, Object>();
 
-	private static Handler backgroundHandler;
-	private static Handler uiHandler;
-	private static Runnable updateRunnable;
-	private static Context context;
+	private static PlaybackStateNotifier.Listener listener;
 
 	public UpdateView(Context context)
 	{
 		super(context);
-		UpdateView.context = context;
 
 		setLayoutParams(new AbsListView.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
 		INSTANCES.put(this, null);
-		startUpdater();
+		startListening();
 	}
 
 	@Override
@@ -39,108 +41,86 @@ public class UpdateView extends LinearLayout
 
 	}
 
-	private static synchronized void startUpdater()
+	// Views are only created on the main thread, which is where the notifications are delivered as well
+	private static void startListening()
 	{
-		if (uiHandler != null)
+		if (listener != null)
 		{
 			return;
 		}
 
-		uiHandler = new Handler();
-		updateRunnable = new Runnable()
+		listener = new PlaybackStateNotifier.Listener()
 		{
 			@Override
-			public void run()
+			public void onDownloadStateChanged(Set<String> songIds)
+			{
+				for (UpdateView view : getShownViews())
+				{
+					String songId = view.getSongId();
+					if (songId != null && songIds.contains(songId))
+					{
+						updateView(view);
+					}
+				}
+			}
+
+			@Override
+			public void onPlaylistChanged()
 			{
 				updateAll();
 			}
-		};
 
-		new Thread(new Runnable()
-		{
 			@Override
-			public void run()
+			public void onPlayerStateChanged()
 			{
-				Thread.currentThread().setName("startUpdater");
-				Looper.prepare();
-				backgroundHandler = new Handler(Looper.myLooper());
-				uiHandler.post(updateRunnable);
-				Looper.loop();
+				updateAll();
 			}
-		}).start();
+		};
+
+		get(PlaybackStateNotifier.class).addListener(listener);
 	}
 
-	private static void updateAll()
+	private static Collection<UpdateView> getShownViews()
 	{
-		try
-		{
-			Collection<UpdateView> views = new ArrayList<UpdateView>();
+		Collection<UpdateView> views = new ArrayList<UpdateView>();
 
-			for (UpdateView view : INSTANCES.keySet())
+		for (UpdateView view : INSTANCES.keySet())
+		{
+			if (view.isShown())
 			{
-				if (view.isShown())
-				{
-					views.add(view);
-				}
+				views.add(view);
 			}
-
-			updateAllLive(views);
 		}
-		catch (Throwable x)
+
+		return views;
+	}
+
+	private static void updateAll()
+	{
+		for (UpdateView view : getShownViews())
 		{
-			Timber.w(x, "Error when updating song views.");
+			updateView(view);
 		}
 	}
 
-	private static void updateAllLive(final Iterable<UpdateView> views)
+	private static void updateView(UpdateView view)
 	{
-		final Runnable runnable = new Runnable()
+		try
 		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					for (UpdateView view : views)
-					{
-						view.update();
-					}
-				}
-				catch (Throwable x)
-				{
-					Timber.w(x, "Error when updating song views.");
-				}
-
-				uiHandler.postDelayed(updateRunnable, Util.getViewRefreshInterval(context));
-			}
-		};
-
-		backgroundHandler.post(new Runnable()
+			view.update();
+		}
+		catch (Throwable x)
 		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					Thread.currentThread().setName("updateAllLive-Background");
-
-					for (UpdateView view : views)
-					{
-						view.updateBackground();
-					}
-					uiHandler.post(runnable);
-				}
-				catch (Throwable x)
-				{
-					Timber.w(x, "Error when updating song views.");
-				}
-			}
-		});
+			Timber.w(x, "Error when updating song views.");
+		}
 	}
 
-	protected void updateBackground()
+	/**
+	 * Returns the id of the song the view displays, or null if it doesn't display the state of a song.
+	 */
+	protected String getSongId()
 	{
-
+		return null;
 	}
 
 	protected void update()
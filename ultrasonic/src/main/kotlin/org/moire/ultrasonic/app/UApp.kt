@@ -1,5 +1,6 @@
 package org.moire.ultrasonic.app
 
+import android.content.ComponentCallbacks2
 import androidx.multidex.MultiDexApplication
 import org.koin.android.ext.koin.androidContext
 import org.koin.core.context.startKoin
@@ -13,6 +14,7 @@ import org.moire.ultrasonic.di.mediaPlayerModule
 import org.moire.ultrasonic.di.musicServiceModule
 import org.moire.ultrasonic.log.FileLoggerTree
 import org.moire.ultrasonic.log.timberLogger
+import org.moire.ultrasonic.service.MusicServiceFactory
 import org.moire.ultrasonic.util.Util
 import timber.log.Timber
 import timber.log.Timber.DebugTree
@@ -44,4 +46,13 @@ class UApp : MultiDexApplication() {
             )
         }
     }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+
+        // The process may be killed without notice once the app is in the background
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            MusicServiceFactory.saveSearchIndexes()
+        }
+    }
 }
@@ -5,13 +5,26 @@ import org.koin.android.ext.koin.androidContext
 import org.koin.android.viewmodel.dsl.viewModel
 import org.koin.core.qualifier.named
 import org.koin.dsl.module
+import org.moire.ultrasonic.BuildConfig
 import org.moire.ultrasonic.activity.ServerSettingsModel
+import org.moire.ultrasonic.cache.KeyedFileStorage
+import org.moire.ultrasonic.cache.OfflineCatalog
+import org.moire.ultrasonic.cache.SearchIndex
 import org.moire.ultrasonic.data.ActiveServerProvider
 import org.moire.ultrasonic.data.AppDatabase
 import org.moire.ultrasonic.data.MIGRATION_1_2
+import org.moire.ultrasonic.service.ActionQueue
+import org.moire.ultrasonic.util.BitmapPool
+import org.moire.ultrasonic.util.CacheIndex
+import org.moire.ultrasonic.util.EvictionPolicy
 import org.moire.ultrasonic.util.Util
 
 const val SP_NAME = "Default_SP"
+internal const val OFFLINE_SEARCH_INDEX = "OfflineSearchIndex"
+
+// The downloaded files are shared by all servers, so is their catalog
+private const val OFFLINE_STORAGE_ID = "offline"
+private const val ACTION_QUEUE_STORAGE_ID = "actions"
 
 val appPermanentStorage = module {
     single(named(SP_NAME)) { Util.getPreferences(androidContext()) }
@@ -32,4 +45,20 @@ val appPermanentStorage = module {
     viewModel { ServerSettingsModel(get(), get(), androidContext()) }
 
     single { ActiveServerProvider(get(), androidContext()) }
+
+    single { CacheIndex(androidContext()) }
+    single<EvictionPolicy> { EvictionPolicy.SizeAware() }
+    single(named(OFFLINE_STORAGE_ID)) {
+        KeyedFileStorage(get(), OFFLINE_STORAGE_ID, BuildConfig.DEBUG)
+    }
+    single { OfflineCatalog(get(named(OFFLINE_STORAGE_ID))) }
+    single(named(OFFLINE_SEARCH_INDEX)) { SearchIndex(get(named(OFFLINE_STORAGE_ID))) }
+
+    single {
+        ActionQueue(
+            androidContext(), KeyedFileStorage(get(), ACTION_QUEUE_STORAGE_ID, BuildConfig.DEBUG)
+        )
+    }
+
+    single { BitmapPool(Util.getBitmapMemoryBudget(androidContext()) / 4) }
 }
@@ -11,7 +11,9 @@ import org.moire.ultrasonic.service.LocalMediaPlayer
 import org.moire.ultrasonic.service.MediaPlayerController
 import org.moire.ultrasonic.service.MediaPlayerControllerImpl
 import org.moire.ultrasonic.service.MediaPlayerLifecycleSupport
+import org.moire.ultrasonic.service.PlaybackStateNotifier
 import org.moire.ultrasonic.util.ShufflePlayBuffer
+import org.moire.ultrasonic.util.ThroughputEstimator
 
 val mediaPlayerModule = module {
     single<MediaPlayerController> {
@@ -23,9 +25,11 @@ val mediaPlayerModule = module {
     single { DownloadQueueSerializer(androidContext()) }
     single { ExternalStorageMonitor(androidContext()) }
     single { ShufflePlayBuffer(androidContext()) }
-    single { Downloader(androidContext(), get(), get(), get()) }
-    single { LocalMediaPlayer(get(), androidContext()) }
+    single { Downloader(androidContext(), get(), get(), get(), get()) }
+    single { LocalMediaPlayer(get(), get(), get(), androidContext()) }
+    single { ThroughputEstimator() }
     single { AudioFocusHandler(get()) }
+    single { PlaybackStateNotifier(androidContext()) }
 
     // TODO Ideally this can be cleaned up when all circular references are removed.
     single { MediaPlayerControllerImpl(androidContext(), get(), get(), get(), get(), get()) }
@@ -10,7 +10,9 @@ import org.moire.ultrasonic.BuildConfig
 import org.moire.ultrasonic.api.subsonic.SubsonicAPIClient
 import org.moire.ultrasonic.api.subsonic.SubsonicAPIVersions
 import org.moire.ultrasonic.api.subsonic.SubsonicClientConfiguration
+import org.moire.ultrasonic.cache.KeyedFileStorage
 import org.moire.ultrasonic.cache.PermanentFileStorage
+import org.moire.ultrasonic.cache.SearchIndex
 import org.moire.ultrasonic.data.ActiveServerProvider
 import org.moire.ultrasonic.log.TimberOkHttpLogger
 import org.moire.ultrasonic.service.ApiCallResponseChecker
@@ -20,6 +22,7 @@ import org.moire.ultrasonic.service.OfflineMusicService
 import org.moire.ultrasonic.service.RESTMusicService
 import org.moire.ultrasonic.subsonic.loader.image.SubsonicImageLoader
 import org.moire.ultrasonic.util.Constants
+import org.moire.ultrasonic.util.CoverArtCache
 
 internal const val ONLINE_MUSIC_SERVICE = "OnlineMusicService"
 internal const val OFFLINE_MUSIC_SERVICE = "OfflineMusicService"
@@ -41,6 +44,15 @@ val musicServiceModule = module {
         return@single PermanentFileStorage(get(), serverId, BuildConfig.DEBUG)
     }
 
+    single {
+        val serverId = get<String>(named("ServerID"))
+        return@single KeyedFileStorage(get(), serverId, BuildConfig.DEBUG)
+    }
+
+    single { CoverArtCache(androidContext(), get(named("ServerID"))) }
+
+    single { SearchIndex(get<KeyedFileStorage>()) }
+
     single {
         return@single SubsonicClientConfiguration(
             baseUrl = get<ActiveServerProvider>().getActiveServer().url,
@@ -63,11 +75,11 @@ val musicServiceModule = module {
     single { ApiCallResponseChecker(get(), get()) }
 
     single<MusicService>(named(ONLINE_MUSIC_SERVICE)) {
-        CachedMusicService(RESTMusicService(get(), get(), get(), get()))
+        CachedMusicService(RESTMusicService(get(), get(), get(), get(), get(), get()), get(), get())
     }
 
     single<MusicService>(named(OFFLINE_MUSIC_SERVICE)) {
-        OfflineMusicService()
+        OfflineMusicService(get(), get(named(OFFLINE_SEARCH_INDEX)))
     }
 
     single { SubsonicImageLoader(androidContext(), get()) }
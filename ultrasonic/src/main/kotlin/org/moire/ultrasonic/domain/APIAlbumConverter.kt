@@ -20,7 +20,7 @@ fun Album.toDomainEntity(): MusicDirectory.Entry = MusicDirectory.Entry(
 )
 
 fun Album.toMusicDirectoryDomainEntity(): MusicDirectory = MusicDirectory().apply {
-    addAll(this@toMusicDirectoryDomainEntity.songList.map { it.toDomainEntity() })
+    this@toMusicDirectoryDomainEntity.songList.forEach { addChild(it.toDomainEntity()) }
 }
 
 fun List<Album>.toDomainEntityList(): List<MusicDirectory.Entry> = this.map { it.toDomainEntity() }
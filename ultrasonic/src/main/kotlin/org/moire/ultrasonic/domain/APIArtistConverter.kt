@@ -12,5 +12,5 @@ fun APIArtist.toDomainEntity(): Artist = Artist(
 
 fun APIArtist.toMusicDirectoryDomainEntity(): MusicDirectory = MusicDirectory().apply {
     name = this@toMusicDirectoryDomainEntity.name
-    addAll(this@toMusicDirectoryDomainEntity.albumsList.map { it.toDomainEntity() })
+    this@toMusicDirectoryDomainEntity.albumsList.forEach { addChild(it.toDomainEntity()) }
 }
@@ -9,9 +9,11 @@ import org.moire.ultrasonic.api.subsonic.models.Indexes as APIIndexes
 fun APIIndexes.toDomainEntity(): Indexes = Indexes(
     this.lastModified, this.ignoredArticles,
     this.shortcutList.map { it.toDomainEntity() }.toMutableList(),
-    this.indexList.foldIndexToArtistList().toMutableList()
+    this.indexList.flattenIndexToArtistList()
 )
 
-private fun List<Index>.foldIndexToArtistList(): List<Artist> = this.fold(
-    listOf(), { acc, index -> acc + index.artists.map { it.toDomainEntity() } }
-)
+private fun List<Index>.flattenIndexToArtistList(): MutableList<Artist> {
+    val artists = ArrayList<Artist>(this.sumBy { it.artists.size })
+    this.forEach { index -> index.artists.mapTo(artists) { it.toDomainEntity() } }
+    return artists
+}
@@ -53,5 +53,5 @@ fun List<MusicDirectoryChild>.toDomainEntityList() = this.map { it.toDomainEntit
 
 fun APIMusicDirectory.toDomainEntity(): MusicDirectory = MusicDirectory().apply {
     name = this@toDomainEntity.name
-    addAll(this@toDomainEntity.childList.map { it.toDomainEntity() })
+    this@toDomainEntity.childList.forEach { addChild(it.toDomainEntity()) }
 }
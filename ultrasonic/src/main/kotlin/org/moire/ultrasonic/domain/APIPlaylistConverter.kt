@@ -11,7 +11,7 @@ internal val playlistDateFormat by lazy(NONE) { SimpleDateFormat.getInstance() }
 
 fun APIPlaylist.toMusicDirectoryDomainEntity(): MusicDirectory = MusicDirectory().apply {
     name = this@toMusicDirectoryDomainEntity.name
-    addAll(this@toMusicDirectoryDomainEntity.entriesList.map { it.toDomainEntity() })
+    this@toMusicDirectoryDomainEntity.entriesList.forEach { addChild(it.toDomainEntity()) }
 }
 
 fun APIPlaylist.toDomainEntity(): Playlist = Playlist(
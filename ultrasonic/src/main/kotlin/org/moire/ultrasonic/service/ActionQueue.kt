@@ -0,0 +1,349 @@
+package org.moire.ultrasonic.service
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.ConnectivityManager
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import java.io.IOException
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import org.moire.ultrasonic.api.subsonic.ApiNotSupportedException
+import org.moire.ultrasonic.cache.KeyedFileStorage
+import org.moire.ultrasonic.data.ActiveServerProvider.Companion.isOffline
+import org.moire.ultrasonic.util.Util
+import timber.log.Timber
+
+private const val ACTION_QUEUE_KEY_PREFIX = "actions:"
+private const val ACTION_QUEUE_VERSION = 1
+private const val ACTION_VERSION = 2
+
+internal const val MIN_RETRY_DELAY = 30L * 1000L
+internal const val MAX_RETRY_DELAY = 30L * 60L * 1000L
+
+// An action the server keeps failing on is dropped after this many attempts
+internal const val MAX_ATTEMPTS = 5
+
+// Errors caused by the request itself: a missing parameter, an item which doesn't exist
+private val REQUEST_ERROR_CODES = setOf(10, 70)
+
+// Errors which apply to every request until the server or the settings change: incompatible
+// versions, wrong credentials, missing authorization, an expired trial
+private val BLOCKING_ERROR_CODES = setOf(20, 30, 40, 41, 50, 60)
+
+// Answers which apply to every request for a while: missing authentication or authorization,
+// timeouts and rate limits
+private val BLOCKING_HTTP_CODES = setOf(401, 403, 408, 429)
+
+// Telling the server what is playing is pointless once the song is probably over
+private const val NOW_PLAYING_MAX_AGE = 10L * 60L * 1000L
+
+/**
+ * Queue of the changes which are sent to the server without the user waiting for them:
+ * scrobbles, stars and ratings.
+ *
+ * The actions are persisted per server, so they survive being offline and restarts, and are
+ * sent by a single worker in the order they were made. Pending actions which supersede each
+ * other are merged: a star and an unstar of the same item cancel out, only the last rating of
+ * a song and the last now playing notification are kept.
+ * When the server can't be reached, sending is retried with an exponential backoff, and as
+ * soon as the network is connected again. The same happens when the server refuses every request
+ * for now, as when the credentials are wrong or a rate limit is hit, the actions are kept until it
+ * accepts them again. An action the server fails on is moved behind the others so it doesn't hold
+ * them up, and is dropped after [MAX_ATTEMPTS] attempts. Actions the server rejects because of the
+ * request itself, like an item which doesn't exist, or doesn't support are dropped at once.
+ *
+ * Submissions are sent one per call, although the API takes several ids and times in one scrobble.
+ * The server fails such a call as a whole without telling which id it failed on, so one song it
+ * doesn't know anymore would make it drop all the others. Several submissions are only queued
+ * after being offline, so the calls saved wouldn't make up for that.
+ */
+class ActionQueue(private val context: Context, private val storage: KeyedFileStorage) {
+    private val queues = HashMap<String, MutableList<Action>>()
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private var retry: ScheduledFuture<*>? = null
+    private var retryDelay = MIN_RETRY_DELAY
+    private var sending: Action? = null
+
+    enum class Kind { NOW_PLAYING, SUBMISSION, STAR, UNSTAR, RATING }
+
+    /**
+     * How sending an action failed: [REJECTED] actions are dropped, [BLOCKED] means that none of
+     * the actions can be sent for now, a [FAILED] action is retried after the others.
+     */
+    enum class Failure { REJECTED, BLOCKED, FAILED }
+
+    /**
+     * What a star applies to, as the API tells folders, ID3 albums and ID3 artists apart.
+     */
+    enum class Target { ID, ALBUM_ID, ARTIST_ID }
+
+    data class Action(
+        val kind: Kind,
+        val id: String,
+        val target: Target = Target.ID,
+        val time: Long = System.currentTimeMillis(),
+        val rating: Int = 0
+    ) {
+        // Not part of the identity of the action, it only counts the failed attempts
+        var attempts = 0
+
+        internal fun isStarOf(other: Action) = id == other.id && target == other.target &&
+            (kind == Kind.STAR || kind == Kind.UNSTAR)
+    }
+
+    init {
+        val networkReceiver = object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                if (Util.isNetworkConnected(context)) send(resetBackoff = true)
+            }
+        }
+        context.registerReceiver(
+            networkReceiver, IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION)
+        )
+
+        // The actions queued before the last exit are sent as soon as possible
+        send(resetBackoff = true)
+    }
+
+    fun scrobble(id: String, submission: Boolean) =
+        add(Action(if (submission) Kind.SUBMISSION else Kind.NOW_PLAYING, id))
+
+    fun star(id: String, target: Target) = add(Action(Kind.STAR, id, target))
+
+    fun unstar(id: String, target: Target) = add(Action(Kind.UNSTAR, id, target))
+
+    fun setRating(id: String, rating: Int) = add(Action(Kind.RATING, id, rating = rating))
+
+    private fun add(action: Action) {
+        val serverId = MusicServiceFactory.getServerId()
+
+        synchronized(this) {
+            val queue = getQueue(serverId)
+            if (merge(queue, action, sending)) queue.add(action)
+            persist(serverId, queue)
+        }
+
+        send(resetBackoff = true)
+    }
+
+    private fun send(resetBackoff: Boolean) {
+        synchronized(this) {
+            if (resetBackoff) retryDelay = MIN_RETRY_DELAY
+            retry?.cancel(false)
+            retry = null
+        }
+        executor.execute { sendPending() }
+    }
+
+    // Runs on the worker only
+    private fun sendPending() {
+        val serverId = MusicServiceFactory.getServerId()
+        // The actions which failed in this round, they are retried with the next one
+        val failed = Collections.newSetFromMap(IdentityHashMap<Action, Boolean>())
+
+        loop@ while (true) {
+            val action = synchronized(this) {
+                sending = getQueue(serverId).firstOrNull { it !in failed }
+                sending
+            }
+
+            if (action == null) {
+                if (failed.isNotEmpty()) scheduleRetry()
+                return
+            }
+
+            if (isOffline(context) || !Util.isNetworkConnected(context)) {
+                synchronized(this) { sending = null }
+                scheduleRetry()
+                return
+            }
+
+            try {
+                if (action.kind != Kind.NOW_PLAYING ||
+                    System.currentTimeMillis() - action.time < NOW_PLAYING_MAX_AGE
+                ) {
+                    execute(action)
+                }
+            } catch (e: Exception) {
+                when (classify(e)) {
+                    Failure.REJECTED -> {
+                        // Sending it again won't change the answer of the server
+                        Timber.w(e, "Dropped %s", action)
+                    }
+                    Failure.BLOCKED -> {
+                        // The other actions would fail as well
+                        Timber.i(e, "Failed to send %s", action)
+                        synchronized(this) { sending = null }
+                        scheduleRetry()
+                        return
+                    }
+                    Failure.FAILED -> {
+                        Timber.i(e, "Failed to send %s", action)
+                        synchronized(this) { postpone(serverId, action) }
+                        failed.add(action)
+                        continue@loop
+                    }
+                }
+            }
+
+            synchronized(this) {
+                val queue = getQueue(serverId)
+                // The action may have been merged away while it was being sent
+                if (queue.remove(action)) persist(serverId, queue)
+                sending = null
+                if (failed.isEmpty()) retryDelay = MIN_RETRY_DELAY
+            }
+        }
+    }
+
+    private fun postpone(serverId: String, action: Action) {
+        val queue = getQueue(serverId)
+        sending = null
+        if (postpone(queue, action)) persist(serverId, queue)
+    }
+
+    private fun execute(action: Action) {
+        val musicService = MusicServiceFactory.getMusicService(context)
+        val id = if (action.target == Target.ID) action.id else null
+        val albumId = if (action.target == Target.ALBUM_ID) action.id else null
+        val artistId = if (action.target == Target.ARTIST_ID) action.id else null
+
+        when (action.kind) {
+            Kind.NOW_PLAYING -> musicService.scrobble(action.id, null, false, context, null)
+            Kind.SUBMISSION -> musicService.scrobble(action.id, action.time, true, context, null)
+            Kind.STAR -> musicService.star(id, albumId, artistId, context, null)
+            Kind.UNSTAR -> musicService.unstar(id, albumId, artistId, context, null)
+            Kind.RATING -> musicService.setRating(action.id, action.rating, context, null)
+        }
+        Timber.i("Sent %s", action)
+    }
+
+    @Synchronized
+    private fun scheduleRetry() {
+        retry = executor.schedule({ sendPending() }, retryDelay, TimeUnit.MILLISECONDS)
+        retryDelay = getNextRetryDelay(retryDelay)
+    }
+
+    private fun getQueue(serverId: String) = queues.getOrPut(serverId) {
+        storage.load(
+            "$ACTION_QUEUE_KEY_PREFIX$serverId", actionListSerializer, ACTION_QUEUE_VERSION
+        )?.toMutableList() ?: ArrayList()
+    }
+
+    private fun persist(serverId: String, queue: List<Action>) {
+        val key = "$ACTION_QUEUE_KEY_PREFIX$serverId"
+        try {
+            if (queue.isEmpty()) {
+                storage.remove(key)
+            } else {
+                storage.store(key, queue, actionListSerializer, ACTION_QUEUE_VERSION)
+            }
+        } catch (e: Exception) {
+            // The actions are still sent while the app is running
+            Timber.w(e, "Failed to persist the queued actions")
+        }
+    }
+
+    companion object {
+        /**
+         * Removes the pending actions which [action] makes pointless, except the one [sending].
+         * Returns false if [action] itself doesn't have to be sent anymore.
+         */
+        internal fun merge(queue: MutableList<Action>, action: Action, sending: Action?): Boolean {
+            when (action.kind) {
+                Kind.NOW_PLAYING -> queue.removeAll { it.kind == Kind.NOW_PLAYING }
+                Kind.RATING -> queue.removeAll { it.kind == Kind.RATING && it.id == action.id }
+                Kind.STAR, Kind.UNSTAR -> {
+                    // The action being sent can't be taken back anymore
+                    val pending = queue.lastOrNull { it !== sending && it.isStarOf(action) }
+                    if (pending != null) {
+                        queue.remove(pending)
+                        // The pending opposite action was not sent, so the item is as it was
+                        return pending.kind == action.kind
+                    }
+                }
+                Kind.SUBMISSION -> Unit
+            }
+            return true
+        }
+
+        /**
+         * Moves [action] which the server failed on behind the other actions, or drops it when it
+         * failed too often or a later action decides the outcome anyway.
+         * Returns false if [action] was not in the queue anymore.
+         */
+        internal fun postpone(queue: MutableList<Action>, action: Action): Boolean {
+            if (!queue.remove(action)) return false
+
+            action.attempts++
+            when {
+                action.attempts >= MAX_ATTEMPTS -> Timber.w("Dropped %s after failing", action)
+                // A pending star must not be overtaken by the opposite one, which replaces it
+                queue.any { it.isStarOf(action) } -> Timber.i("Dropped superseded %s", action)
+                else -> queue.add(action)
+            }
+            return true
+        }
+
+        internal fun classify(e: Exception) = when (e) {
+            is ApiNotSupportedException -> Failure.REJECTED
+            is SubsonicRESTException -> when (e.code) {
+                in REQUEST_ERROR_CODES -> Failure.REJECTED
+                in BLOCKING_ERROR_CODES -> Failure.BLOCKED
+                else -> Failure.FAILED
+            }
+            is SubsonicHTTPException -> when {
+                e.code in BLOCKING_HTTP_CODES -> Failure.BLOCKED
+                e.isClientError -> Failure.REJECTED
+                else -> Failure.FAILED
+            }
+            // The server can't be reached
+            is IOException -> Failure.BLOCKED
+            else -> Failure.FAILED
+        }
+
+        internal fun getNextRetryDelay(retryDelay: Long) = minOf(retryDelay * 2, MAX_RETRY_DELAY)
+    }
+}
+
+private val actionSerializer = object :
+    ObjectSerializer<ActionQueue.Action>(ACTION_VERSION) {
+    override fun serializeObject(
+        context: SerializationContext,
+        output: SerializerOutput<out SerializerOutput<*>>,
+        item: ActionQueue.Action
+    ) {
+        output.writeInt(item.kind.ordinal)
+            .writeString(item.id)
+            .writeInt(item.target.ordinal)
+            .writeLong(item.time)
+            .writeInt(item.rating)
+            .writeInt(item.attempts)
+    }
+
+    override fun deserializeObject(
+        context: SerializationContext,
+        input: SerializerInput,
+        versionNumber: Int
+    ): ActionQueue.Action? {
+        if (versionNumber > ACTION_VERSION) return null
+
+        val kind = ActionQueue.Kind.values()[input.readInt()]
+        val id = input.readString() ?: return null
+        val target = ActionQueue.Target.values()[input.readInt()]
+        return ActionQueue.Action(kind, id, target, input.readLong(), input.readInt()).apply {
+            if (versionNumber >= 2) attempts = input.readInt()
+        }
+    }
+}
+
+private val actionListSerializer = CollectionSerializers.getListSerializer(actionSerializer)
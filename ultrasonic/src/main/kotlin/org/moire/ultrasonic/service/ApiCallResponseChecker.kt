@@ -52,7 +52,7 @@ class ApiCallResponseChecker(
                 return
             }
             if (!response.isSuccessful) {
-                throw IOException("Server error, code: " + response.code())
+                throw SubsonicHTTPException(response.code())
             } else if (
                 response.body()!!.status === SubsonicResponse.Status.ERROR &&
                 response.body()!!.error != null
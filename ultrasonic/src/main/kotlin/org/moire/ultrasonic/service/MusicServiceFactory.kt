@@ -25,8 +25,10 @@ import org.koin.core.context.unloadKoinModules
 import org.koin.core.get
 import org.koin.core.qualifier.named
 import org.moire.ultrasonic.cache.Directories
+import org.moire.ultrasonic.cache.SearchIndex
 import org.moire.ultrasonic.data.ActiveServerProvider
 import org.moire.ultrasonic.di.OFFLINE_MUSIC_SERVICE
+import org.moire.ultrasonic.di.OFFLINE_SEARCH_INDEX
 import org.moire.ultrasonic.di.ONLINE_MUSIC_SERVICE
 import org.moire.ultrasonic.di.musicServiceModule
 
@@ -47,6 +49,8 @@ object MusicServiceFactory : KoinComponent {
      */
     @JvmStatic
     fun resetMusicService() {
+        // The index of the previous server is dropped with the module
+        saveSearchIndexes()
         unloadKoinModules(musicServiceModule)
         loadKoinModules(musicServiceModule)
     }
@@ -56,4 +60,23 @@ object MusicServiceFactory : KoinComponent {
 
     @JvmStatic
     fun getDirectories() = get<Directories>()
+
+    /**
+     * Returns the index of the library of the active server.
+     */
+    @JvmStatic
+    fun getSearchIndex() = get<SearchIndex>()
+
+    /**
+     * Persists the changes of the search indexes, which are otherwise only saved periodically.
+     */
+    @JvmStatic
+    fun saveSearchIndexes() {
+        get<SearchIndex>().save()
+        get<SearchIndex>(named(OFFLINE_SEARCH_INDEX)).save()
+    }
+
+    @JvmStatic
+    fun getOfflineMusicService() =
+        get<MusicService>(named(OFFLINE_MUSIC_SERVICE)) as OfflineMusicService
 }
@@ -20,7 +20,6 @@ package org.moire.ultrasonic.service
 
 import android.content.Context
 import android.graphics.Bitmap
-import android.text.TextUtils
 import androidx.annotation.StringRes
 import java.io.BufferedWriter
 import java.io.File
@@ -29,8 +28,13 @@ import java.io.FileWriter
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.util.Collections
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import org.moire.ultrasonic.R
 import org.moire.ultrasonic.api.subsonic.ApiNotSupportedException
 import org.moire.ultrasonic.api.subsonic.SubsonicAPIClient
@@ -61,7 +65,9 @@ import org.moire.ultrasonic.domain.toDomainEntitiesList
 import org.moire.ultrasonic.domain.toDomainEntity
 import org.moire.ultrasonic.domain.toDomainEntityList
 import org.moire.ultrasonic.domain.toMusicDirectoryDomainEntity
+import org.moire.ultrasonic.util.BitmapPool
 import org.moire.ultrasonic.util.CancellableTask
+import org.moire.ultrasonic.util.CoverArtCache
 import org.moire.ultrasonic.util.FileUtil
 import org.moire.ultrasonic.util.ProgressListener
 import org.moire.ultrasonic.util.Util
@@ -74,8 +80,13 @@ open class RESTMusicService(
     private val subsonicAPIClient: SubsonicAPIClient,
     private val fileStorage: PermanentFileStorage,
     private val activeServerProvider: ActiveServerProvider,
-    private val responseChecker: ApiCallResponseChecker
+    private val responseChecker: ApiCallResponseChecker,
+    private val coverArtCache: CoverArtCache,
+    private val bitmapPool: BitmapPool
 ) : MusicService {
+    private val revalidating = Collections.synchronizedSet(HashSet<String>())
+    // The background revalidations belong to this service, a failing one doesn't cancel the others
+    private val revalidationScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
 
     @Throws(Exception::class)
     override fun ping(context: Context, progressListener: ProgressListener?) {
@@ -103,10 +114,18 @@ open class RESTMusicService(
             MUSIC_FOLDER_STORAGE_NAME, getMusicFolderListSerializer()
         )
 
-        if (cachedMusicFolders != null && !refresh) return cachedMusicFolders
+        if (cachedMusicFolders != null && !refresh) {
+            revalidateIfStale(MUSIC_FOLDER_STORAGE_NAME, FULL_REVALIDATION_AGE) {
+                fetchMusicFolders()
+            }
+            return cachedMusicFolders
+        }
 
         updateProgressListener(progressListener, R.string.parser_reading)
+        return fetchMusicFolders()
+    }
 
+    private fun fetchMusicFolders(): List<MusicFolder> {
         val response = responseChecker.callWithResponseCheck { api ->
             api.getMusicFolders().execute()
         }
@@ -124,17 +143,48 @@ open class RESTMusicService(
         context: Context,
         progressListener: ProgressListener?
     ): Indexes {
-        val cachedIndexes = fileStorage.load(INDEXES_STORAGE_NAME, getIndexesSerializer())
-        if (cachedIndexes != null && !refresh) return cachedIndexes
+        val storageName = getIndexesStorageName(musicFolderId)
+        val cachedIndexes = fileStorage.load(storageName, getIndexesSerializer())
+
+        if (cachedIndexes != null && !refresh) {
+            revalidateIfStale(storageName, CONDITIONAL_REVALIDATION_AGE) {
+                syncIndexes(musicFolderId, storageName, cachedIndexes)
+            }
+            return cachedIndexes
+        }
 
         updateProgressListener(progressListener, R.string.parser_reading)
+        return syncIndexes(musicFolderId, storageName, cachedIndexes)
+    }
+
+    /**
+     * Asks the server for the indexes only if they were modified since [cachedIndexes] were
+     * fetched, and keeps using [cachedIndexes] when they weren't.
+     */
+    private fun syncIndexes(
+        musicFolderId: String?,
+        storageName: String,
+        cachedIndexes: Indexes?
+    ): Indexes {
+        val ifModifiedSince = cachedIndexes?.lastModified?.takeIf { it > 0 }
 
         val response = responseChecker.callWithResponseCheck { api ->
-            api.getIndexes(musicFolderId, null).execute()
+            api.getIndexes(musicFolderId, ifModifiedSince).execute()
         }
 
-        val indexes = response.body()!!.indexes.toDomainEntity()
-        fileStorage.store(INDEXES_STORAGE_NAME, indexes, getIndexesSerializer())
+        val apiIndexes = response.body()!!.indexes
+
+        // The server leaves out the entries of unmodified indexes
+        if (cachedIndexes != null && ifModifiedSince != null &&
+            apiIndexes.indexList.isEmpty() && apiIndexes.shortcutList.isEmpty() &&
+            apiIndexes.lastModified <= ifModifiedSince
+        ) {
+            fileStorage.touch(storageName)
+            return cachedIndexes
+        }
+
+        val indexes = apiIndexes.toDomainEntity()
+        fileStorage.store(storageName, indexes, getIndexesSerializer())
         return indexes
     }
 
@@ -145,10 +195,17 @@ open class RESTMusicService(
         progressListener: ProgressListener?
     ): Indexes {
         val cachedArtists = fileStorage.load(ARTISTS_STORAGE_NAME, getIndexesSerializer())
-        if (cachedArtists != null && !refresh) return cachedArtists
+
+        if (cachedArtists != null && !refresh) {
+            revalidateIfStale(ARTISTS_STORAGE_NAME, FULL_REVALIDATION_AGE) { fetchArtists() }
+            return cachedArtists
+        }
 
         updateProgressListener(progressListener, R.string.parser_reading)
+        return fetchArtists()
+    }
 
+    private fun fetchArtists(): Indexes {
         val response = responseChecker.callWithResponseCheck { api ->
             api.getArtists(null).execute()
         }
@@ -500,6 +557,7 @@ open class RESTMusicService(
     @Throws(Exception::class)
     override fun scrobble(
         id: String,
+        time: Long?,
         submission: Boolean,
         context: Context,
         progressListener: ProgressListener?
@@ -507,7 +565,7 @@ open class RESTMusicService(
         updateProgressListener(progressListener, R.string.parser_reading)
 
         responseChecker.callWithResponseCheck { api ->
-            api.scrobble(id, null, submission).execute()
+            api.scrobble(id, time, submission).execute()
         }
     }
 
@@ -622,60 +680,67 @@ open class RESTMusicService(
         highQuality: Boolean,
         progressListener: ProgressListener?
     ): Bitmap? {
-        // Synchronize on the entry so that we don't download concurrently for
-        // the same song.
         if (entry == null) {
             return null
         }
 
-        synchronized(entry) {
-            // Use cached file, if existing.
-            var bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality)
-            val serverScaling = isServerScalingEnabled(context)
+        // Use cached file, if existing.
+        var bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality)
 
-            if (bitmap == null) {
-                Timber.d("Loading cover art for: %s", entry)
+        if (bitmap == null) {
+            Timber.d("Loading cover art for: %s", entry)
 
-                val id = entry.coverArt
+            val id = entry.coverArt
 
-                if (TextUtils.isEmpty(id)) {
-                    return null // Can't load
-                }
+            if (id.isNullOrEmpty()) {
+                return null // Can't load
+            }
 
-                val response = subsonicAPIClient.getCoverArt(id!!, size.toLong())
-                checkStreamResponseError(response)
+            val serverScaling = isServerScalingEnabled(context)
+            val albumArtFile = FileUtil.getAlbumArtFile(context, entry)
 
-                if (response.stream == null) {
-                    return null // Failed to load
+            // If we aren't allowing server-side scaling, always save the file to disk
+            // because it will be unmodified
+            val file = if (!serverScaling && albumArtFile != null) {
+                coverArtCache.fetch(albumArtFile) { fetchCoverArt(id, 0, it) }
+            } else {
+                // Requests of the same image in similar sizes share a download
+                val tier =
+                    if (serverScaling) CoverArtCache.getSizeTier(size)
+                    else CoverArtCache.ORIGINAL_SIZE
+                val sizedFile = coverArtCache.get(id, tier) { fetchCoverArt(id, tier, it) }
+
+                if (saveToFile && albumArtFile != null && !albumArtFile.exists()) {
+                    Util.atomicCopy(sizedFile, albumArtFile)
                 }
+                sizedFile
+            }
 
-                var inputStream: InputStream? = null
-                try {
-                    inputStream = response.stream
-                    val bytes = Util.toByteArray(inputStream)
+            val sampled = FileUtil.getSampledBitmap(file, size, highQuality) ?: return null
+            val scaled = Util.scaleBitmap(sampled, size)
 
-                    // If we aren't allowing server-side scaling, always save the file to disk
-                    // because it will be unmodified
-                    if (!serverScaling || saveToFile) {
-                        var outputStream: OutputStream? = null
-                        try {
-                            outputStream = FileOutputStream(
-                                FileUtil.getAlbumArtFile(context, entry)
-                            )
-                            outputStream.write(bytes)
-                        } finally {
-                            Util.close(outputStream)
-                        }
-                    }
+            // The sampled image is not referenced anywhere else, it can be decoded into again
+            if (scaled !== sampled) bitmapPool.put(sampled)
+            return scaled
+        }
 
-                    bitmap = FileUtil.getSampledBitmap(bytes, size, highQuality)
-                } finally {
-                    Util.close(inputStream)
-                }
-            }
+        // Return scaled bitmap
+        return Util.scaleBitmap(bitmap, size)
+    }
 
-            // Return scaled bitmap
-            return Util.scaleBitmap(bitmap, size)
+    /**
+     * Streams the cover art into [output], scaled by the server unless [size] is 0.
+     */
+    @Throws(Exception::class)
+    private fun fetchCoverArt(id: String, size: Int, output: OutputStream) {
+        val response = subsonicAPIClient.getCoverArt(id, if (size > 0) size.toLong() else null)
+        checkStreamResponseError(response)
+
+        val inputStream = response.stream ?: throw IOException("Null stream response")
+        try {
+            Util.copy(inputStream, output)
+        } finally {
+            Util.close(inputStream)
         }
     }
 
@@ -1079,6 +1144,28 @@ open class RESTMusicService(
         }
     }
 
+    private fun getIndexesStorageName(musicFolderId: String?) =
+        if (musicFolderId == null) INDEXES_STORAGE_NAME else "$INDEXES_STORAGE_NAME-$musicFolderId"
+
+    /**
+     * Runs [revalidate] in the background if the object stored with [storageName] is older than
+     * [maxAge], so the next read is up to date without waiting for the server now.
+     */
+    private fun revalidateIfStale(storageName: String, maxAge: Long, revalidate: () -> Unit) {
+        val age = System.currentTimeMillis() - fileStorage.getStoreTime(storageName)
+        if (age < maxAge || !revalidating.add(storageName)) return
+
+        revalidationScope.launch {
+            try {
+                revalidate()
+            } catch (e: Exception) {
+                Timber.i(e, "Failed to revalidate %s", storageName)
+            } finally {
+                revalidating.remove(storageName)
+            }
+        }
+    }
+
     private fun updateProgressListener(
         progressListener: ProgressListener?,
         @StringRes messageId: Int
@@ -1090,5 +1177,9 @@ open class RESTMusicService(
         private const val MUSIC_FOLDER_STORAGE_NAME = "music_folder"
         private const val INDEXES_STORAGE_NAME = "indexes"
         private const val ARTISTS_STORAGE_NAME = "artists"
+
+        // Revalidating the indexes is cheap, as unmodified indexes are not sent again
+        private const val CONDITIONAL_REVALIDATION_AGE = 60L * 60L * 1000L
+        private const val FULL_REVALIDATION_AGE = 24L * 60L * 60L * 1000L
     }
 }
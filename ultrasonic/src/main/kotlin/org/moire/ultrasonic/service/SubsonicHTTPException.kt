@@ -0,0 +1,13 @@
+package org.moire.ultrasonic.service
+
+import java.io.IOException
+
+/**
+ * Exception thrown when the server answers a call with an unsuccessful HTTP status `code`.
+ */
+class SubsonicHTTPException(val code: Int) : IOException("Server error, code: $code") {
+    /**
+     * True for the 4xx statuses, by which the server blames the request.
+     */
+    val isClientError: Boolean get() = code in 400..499
+}
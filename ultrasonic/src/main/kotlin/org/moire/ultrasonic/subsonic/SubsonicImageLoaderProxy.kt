@@ -26,6 +26,18 @@ class SubsonicImageLoaderProxy(
         size: Int,
         crossFade: Boolean,
         highQuality: Boolean
+    ) {
+        loadImage(view, entry, large, size, crossFade, highQuality, ImageLoader.Priority.VISIBLE)
+    }
+
+    override fun loadImage(
+        view: View?,
+        entry: MusicDirectory.Entry?,
+        large: Boolean,
+        size: Int,
+        crossFade: Boolean,
+        highQuality: Boolean,
+        priority: ImageLoader.Priority?
     ) {
         val id = entry?.coverArt
 
@@ -31,13 +31,12 @@ import org.moire.ultrasonic.data.ActiveServerProvider.Companion.isOffline
 import org.moire.ultrasonic.domain.MusicDirectory
 import org.moire.ultrasonic.featureflags.Feature
 import org.moire.ultrasonic.featureflags.FeatureStorage
+import org.moire.ultrasonic.service.ActionQueue
 import org.moire.ultrasonic.service.DownloadFile
 import org.moire.ultrasonic.service.MediaPlayerController
-import org.moire.ultrasonic.service.MusicServiceFactory.getMusicService
 import org.moire.ultrasonic.util.Util
 import org.moire.ultrasonic.util.VideoPlayerType
 import org.moire.ultrasonic.view.EntryAdapter.SongViewHolder
-import timber.log.Timber
 
 /**
  * Used to display songs and videos in a `ListView`.
@@ -93,8 +92,6 @@ class SongView(context: Context) : UpdateView(context), Checkable {
     }
 
     fun setSong(song: MusicDirectory.Entry, checkable: Boolean, draggable: Boolean) {
-        updateBackground()
-
         entry = song
         downloadFile = mediaPlayerControllerLazy.value.getDownloadFileForSong(song)
 
@@ -191,7 +188,7 @@ class SongView(context: Context) : UpdateView(context), Checkable {
 
                 viewHolder?.star?.setOnClickListener {
                     val isStarred = song.starred
-                    val id = song.id
+                    val id = song.id ?: return@setOnClickListener
 
                     if (!isStarred) {
                         viewHolder?.star?.setImageDrawable(starDrawable)
@@ -200,29 +197,22 @@ class SongView(context: Context) : UpdateView(context), Checkable {
                         viewHolder?.star?.setImageDrawable(starHollowDrawable)
                         song.starred = false
                     }
-                    Thread {
-                        val musicService = getMusicService(this@SongView.context)
-                        try {
-                            if (!isStarred) {
-                                musicService.star(id, null, null, this@SongView.context, null)
-                            } else {
-                                musicService.unstar(id, null, null, this@SongView.context, null)
-                            }
-                        } catch (e: Exception) {
-                            Timber.e(e)
-                        }
-                    }.start()
+                    mediaPlayerControllerLazy.value.songChanged(song)
+                    val actionQueue = get(ActionQueue::class.java)
+                    if (!isStarred) {
+                        actionQueue.star(id, ActionQueue.Target.ID)
+                    } else {
+                        actionQueue.unstar(id, ActionQueue.Target.ID)
+                    }
                 }
             }
         }
         update()
     }
 
-    override fun updateBackground() {}
+    override fun getSongId(): String? = entry?.id
 
     public override fun update() {
-        updateBackground()
-
         downloadFile = mediaPlayerControllerLazy.value.getDownloadFileForSong(entry)
 
         val partialFile = downloadFile!!.partialFile
@@ -246,7 +236,7 @@ class SongView(context: Context) : UpdateView(context), Checkable {
         if (
             downloadFile!!.isDownloading &&
             !downloadFile!!.isDownloadCancelled &&
-            partialFile.exists()
+            downloadFile!!.isPartialFileAvailable
         ) {
             viewHolder?.status?.text = Util.formatLocalizedBytes(
                 partialFile.length(), this.context
@@ -0,0 +1,159 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.io.IOException
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.api.subsonic.ApiNotSupportedException
+import org.moire.ultrasonic.api.subsonic.SubsonicAPIVersions
+import org.moire.ultrasonic.api.subsonic.SubsonicError
+import org.moire.ultrasonic.service.ActionQueue.Action
+import org.moire.ultrasonic.service.ActionQueue.Failure
+import org.moire.ultrasonic.service.ActionQueue.Kind
+import org.moire.ultrasonic.service.ActionQueue.Target
+
+/**
+ * Unit test for the queueing rules of [ActionQueue].
+ */
+class ActionQueueTest {
+    @Test
+    fun `Should keep only the last now playing notification`() {
+        val queue = mutableListOf(Action(Kind.NOW_PLAYING, "1"), Action(Kind.SUBMISSION, "1"))
+        val action = Action(Kind.NOW_PLAYING, "2")
+
+        ActionQueue.merge(queue, action, null) `should be equal to` true
+
+        queue.map { it.kind } `should equal` listOf(Kind.SUBMISSION)
+    }
+
+    @Test
+    fun `Should keep only the last rating of a song`() {
+        val other = Action(Kind.RATING, "2", rating = 3)
+        val queue = mutableListOf(Action(Kind.RATING, "1", rating = 1), other)
+
+        val action = Action(Kind.RATING, "1", rating = 5)
+
+        ActionQueue.merge(queue, action, null) `should be equal to` true
+
+        queue `should equal` listOf(other)
+    }
+
+    @Test
+    fun `Should cancel out a star and an unstar of the same item`() {
+        val queue = mutableListOf(Action(Kind.STAR, "1", Target.ALBUM_ID))
+
+        val action = Action(Kind.UNSTAR, "1", Target.ALBUM_ID)
+
+        ActionQueue.merge(queue, action, null) `should be equal to` false
+
+        queue.isEmpty() `should be equal to` true
+    }
+
+    @Test
+    fun `Should not merge stars of different targets`() {
+        val queue = mutableListOf(Action(Kind.STAR, "1", Target.ALBUM_ID))
+
+        val action = Action(Kind.UNSTAR, "1", Target.ARTIST_ID)
+
+        ActionQueue.merge(queue, action, null) `should be equal to` true
+
+        queue.size `should be equal to` 1
+    }
+
+    @Test
+    fun `Should not take back the star being sent`() {
+        val sending = Action(Kind.STAR, "1")
+        val queue = mutableListOf(sending)
+
+        ActionQueue.merge(queue, Action(Kind.UNSTAR, "1"), sending) `should be equal to` true
+
+        queue `should equal` listOf(sending)
+    }
+
+    @Test
+    fun `Should move a failed action behind the others`() {
+        val failed = Action(Kind.SUBMISSION, "1")
+        val other = Action(Kind.SUBMISSION, "2")
+        val queue = mutableListOf(failed, other)
+
+        ActionQueue.postpone(queue, failed) `should be equal to` true
+
+        queue `should equal` listOf(other, failed)
+        failed.attempts `should be equal to` 1
+    }
+
+    @Test
+    fun `Should drop an action after failing too often`() {
+        val failed = Action(Kind.SUBMISSION, "1").apply { attempts = MAX_ATTEMPTS - 1 }
+        val queue = mutableListOf(failed)
+
+        ActionQueue.postpone(queue, failed) `should be equal to` true
+
+        queue.isEmpty() `should be equal to` true
+    }
+
+    @Test
+    fun `Should drop a failed star superseded by a later one`() {
+        val failed = Action(Kind.STAR, "1")
+        val later = Action(Kind.UNSTAR, "1")
+        val queue = mutableListOf(failed, later)
+
+        ActionQueue.postpone(queue, failed)
+
+        queue `should equal` listOf(later)
+    }
+
+    @Test
+    fun `Should not postpone an action merged away while it was sent`() {
+        val queue = mutableListOf(Action(Kind.SUBMISSION, "2"))
+
+        ActionQueue.postpone(queue, Action(Kind.SUBMISSION, "1")) `should be equal to` false
+
+        queue.size `should be equal to` 1
+    }
+
+    @Test
+    fun `Should double the retry delay up to the maximum`() {
+        ActionQueue.getNextRetryDelay(MIN_RETRY_DELAY) `should be equal to` 2 * MIN_RETRY_DELAY
+
+        var delay = MIN_RETRY_DELAY
+        repeat(20) { delay = ActionQueue.getNextRetryDelay(delay) }
+
+        delay `should be equal to` MAX_RETRY_DELAY
+    }
+
+    @Test
+    fun `Should drop only actions rejected because of the request`() {
+        ActionQueue.classify(rest(SubsonicError.RequestedDataWasNotFound)) `should equal`
+            Failure.REJECTED
+        ActionQueue.classify(rest(SubsonicError.RequiredParamMissing)) `should equal`
+            Failure.REJECTED
+        ActionQueue.classify(SubsonicHTTPException(404)) `should equal` Failure.REJECTED
+        ActionQueue.classify(ApiNotSupportedException(SubsonicAPIVersions.V1_1_0)) `should equal`
+            Failure.REJECTED
+    }
+
+    @Test
+    fun `Should stop sending when the server refuses every request`() {
+        ActionQueue.classify(rest(SubsonicError.WrongUsernameOrPassword)) `should equal`
+            Failure.BLOCKED
+        ActionQueue.classify(rest(SubsonicError.UserNotAuthorizedForOperation)) `should equal`
+            Failure.BLOCKED
+        ActionQueue.classify(rest(SubsonicError.IncompatibleServerProtocolVersion)) `should equal`
+            Failure.BLOCKED
+        listOf(401, 403, 408, 429).forEach {
+            ActionQueue.classify(SubsonicHTTPException(it)) `should equal` Failure.BLOCKED
+        }
+        ActionQueue.classify(IOException()) `should equal` Failure.BLOCKED
+    }
+
+    @Test
+    fun `Should retry actions the server failed on`() {
+        ActionQueue.classify(SubsonicHTTPException(500)) `should equal` Failure.FAILED
+        ActionQueue.classify(rest(SubsonicError.Generic("busy"))) `should equal` Failure.FAILED
+    }
+
+    private fun rest(error: SubsonicError) = SubsonicRESTException(error)
+}
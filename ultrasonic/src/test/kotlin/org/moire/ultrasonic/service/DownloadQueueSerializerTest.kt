@@ -0,0 +1,158 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import android.content.Context
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import java.io.File
+import java.io.RandomAccessFile
+import org.amshove.kluent.`it returns`
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.util.Constants
+
+/**
+ * Unit test for [DownloadQueueSerializer].
+ */
+class DownloadQueueSerializerTest {
+    @get:Rule val tempFileRule = TemporaryFolder()
+
+    private lateinit var cacheFolder: File
+    private lateinit var context: Context
+    private val downloader = mock<Downloader>()
+
+    private val queueFile get() = File(cacheFolder, Constants.FILENAME_DOWNLOADS_QUEUE)
+    private val metadataFiles get() = cacheFolder.listFiles()!!
+        .filter { it.name.startsWith(Constants.FILENAME_DOWNLOADS_METADATA) }
+
+    @Before
+    fun setUp() {
+        cacheFolder = tempFileRule.newFolder("cache")
+        context = mock {
+            on { cacheDir } `it returns` cacheFolder
+        }
+    }
+
+    @Test
+    fun `Should restore stored queue and player state`() {
+        val serializer = DownloadQueueSerializer(context)
+
+        serializer.store(listOf(song("a"), song("b"), song("c")), index = 1, position = 4200)
+
+        val state = restore()
+        state.songs.map { it.id } `should equal` listOf("a", "b", "c")
+        state.currentPlayingIndex `should be equal to` 1
+        state.currentPlayingPosition `should be equal to` 4200
+    }
+
+    @Test
+    fun `Should append only the changed part of the queue to the log`() {
+        val serializer = DownloadQueueSerializer(context)
+        serializer.store(listOf(song("a"), song("b"), song("c")))
+
+        // Header of version, generation and player state, then an add record of each song
+        queueFile.length() `should be equal to` 20L + 3 * ADD_RECORD_SIZE
+        RandomAccessFile(queueFile, "r").use { it.readInt() } `should be equal to` 3
+
+        serializer.store(listOf(song("a"), song("b"), song("d")), from = 2)
+
+        queueFile.length() `should be equal to` 20L + 4 * ADD_RECORD_SIZE + TRUNCATE_RECORD_SIZE
+        restore().songs.map { it.id } `should equal` listOf("a", "b", "d")
+    }
+
+    @Test
+    fun `Should apply updated metadata to every position of the song`() {
+        val serializer = DownloadQueueSerializer(context)
+        val queue = listOf(song("a", "old"), song("b"), song("a", "old"))
+        serializer.store(queue)
+
+        serializer.store(queue, from = queue.size, updated = listOf(song("a", "new")))
+
+        restore().songs.map { it.title } `should equal` listOf("new", "b", "new")
+    }
+
+    @Test
+    fun `Should discard a record cut short at the end of the log`() {
+        val serializer = DownloadQueueSerializer(context)
+        serializer.store(listOf(song("a"), song("b")))
+        val length = queueFile.length()
+
+        // The start of an add record, as left by a crash while it was appended
+        queueFile.appendBytes(byteArrayOf(1, 0, 5, 'x'.toByte()))
+
+        restore().songs.map { it.id } `should equal` listOf("a", "b")
+        queueFile.length() `should be equal to` length
+    }
+
+    @Test
+    fun `Should compact the files when the log has grown`() {
+        val serializer = DownloadQueueSerializer(context)
+        serializer.store(listOf(song("a"), song("b"), song("c")))
+        val firstMetadataFile = metadataFiles.single()
+
+        for (i in 0 until 50) {
+            serializer.store(listOf(song("a"), song("b"), song("c$i")), from = 2)
+        }
+
+        metadataFiles.size `should be equal to` 1
+        firstMetadataFile.exists() `should equal` false
+        restore().songs.map { it.id } `should equal` listOf("a", "b", "c49")
+    }
+
+    @Test
+    fun `Should ignore files left by an interrupted compaction`() {
+        val serializer = DownloadQueueSerializer(context)
+        serializer.store(listOf(song("a"), song("b")), index = 1)
+        val metadataFile = metadataFiles.single()
+        val strayMetadataFile = File(cacheFolder, "${Constants.FILENAME_DOWNLOADS_METADATA}.7")
+        strayMetadataFile.writeBytes(byteArrayOf(0, 0, 0, 1))
+        File(cacheFolder, "${Constants.FILENAME_DOWNLOADS_QUEUE}.tmp").writeBytes(byteArrayOf(3))
+
+        val state = restore()
+
+        state.songs.map { it.id } `should equal` listOf("a", "b")
+        state.currentPlayingIndex `should be equal to` 1
+        metadataFiles `should equal` listOf(metadataFile)
+    }
+
+    private fun DownloadQueueSerializer.store(
+        queue: List<MusicDirectory.Entry>,
+        from: Int = 0,
+        updated: List<MusicDirectory.Entry> = emptyList(),
+        index: Int = 0,
+        position: Int = 0
+    ) {
+        whenever(downloader.takePlaylistChanges(true))
+            .thenReturn(DownloadQueueSerializer.Changes(0, queue, emptyList()))
+        whenever(downloader.takePlaylistChanges(false))
+            .thenReturn(DownloadQueueSerializer.Changes(from, queue.drop(from), updated))
+
+        serializeDownloadQueueNow(downloader, index, position)
+    }
+
+    private fun restore(): State {
+        var restored: State? = null
+        DownloadQueueSerializer(context).deserializeDownloadQueueNow(
+            object : Consumer<State>() {
+                override fun accept(state: State) {
+                    restored = state
+                }
+            }
+        )
+        return restored!!
+    }
+
+    private fun song(id: String, title: String = id) = MusicDirectory.Entry(id = id, title = title)
+
+    companion object {
+        // Op, length of a one character id and the id, metadata offset
+        private const val ADD_RECORD_SIZE = 1L + 2 + 1 + 8
+        private const val TRUNCATE_RECORD_SIZE = 1L + 4
+    }
+}
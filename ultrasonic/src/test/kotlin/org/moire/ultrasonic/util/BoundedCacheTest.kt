@@ -0,0 +1,86 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.util
+
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+
+/**
+ * Unit test for [BoundedCache].
+ */
+class BoundedCacheTest {
+    @Test
+    fun `Should hold no more than the maximum entry count`() {
+        val cache = BoundedCache<Int, String>(10)
+
+        for (key in 0 until 100) cache.put(key, "$key")
+
+        cache.size() `should be equal to` 10
+        cache.evictionCount `should be equal to` 90L
+    }
+
+    @Test
+    fun `Should fill the whole cache with keys of one segment`() {
+        val cache = BoundedCache<Int, String>(8)
+
+        // Keys with the same low bits are all kept by the same segment
+        for (key in 0 until 8) cache.put(key * 16, "$key")
+
+        cache.size() `should be equal to` 8
+        cache.evictionCount `should be equal to` 0L
+    }
+
+    @Test
+    fun `Should evict from other segments when the segment of a new entry is small`() {
+        val cache = BoundedCache<Int, String>(8)
+        for (key in 0 until 8) cache.put(key * 16, "$key")
+
+        cache.put(1, "other")
+
+        cache.size() `should be equal to` 8
+        cache[1] `should equal` "other"
+        cache[0] `should equal` null
+    }
+
+    @Test
+    fun `Should evict least recently used entry`() {
+        val cache = BoundedCache<Int, String>(3, null, 1)
+        cache.put(1, "1")
+        cache.put(2, "2")
+        cache.put(3, "3")
+
+        cache[1]
+        cache.put(4, "4")
+
+        cache[2] `should equal` null
+        cache[1] `should equal` "1"
+        cache[3] `should equal` "3"
+        cache[4] `should equal` "4"
+    }
+
+    @Test
+    fun `Should bound summed weight of entries`() {
+        val weigher = BoundedCache.Weigher<Int, String> { _, value -> value.length.toLong() }
+        val cache = BoundedCache<Int, String>(10, weigher, 1)
+        cache.put(1, "aaaa")
+        cache.put(2, "bbbb")
+
+        cache.put(3, "cccc")
+
+        cache.size() `should be equal to` 2
+        cache[1] `should equal` null
+    }
+
+    @Test
+    fun `Should return null for expired entry`() {
+        val cache = BoundedCache<Int, String>(10)
+        cache.put(1, "expired", 0, TimeUnit.NANOSECONDS)
+        cache.put(2, "valid", 1, TimeUnit.HOURS)
+
+        cache[1] `should equal` null
+        cache[2] `should equal` "valid"
+        cache.size() `should be equal to` 1
+    }
+}